@@ -0,0 +1,57 @@
+
+package damulticast;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The deliveries of a message sent to several peers at once. The messages are
+ * queued to all the peers before any of them is written, so they are delivered
+ * concurrently and the time it takes is the one of the slowest peer, not the
+ * sum of all of them.
+ * @author cesar
+ */
+public class Broadcast {
+    
+    /** The delivery for every peer the message was sent to */
+    private LinkedHashMap<RemoteDevice, Delivery> deliveries;
+    
+    public Broadcast() {
+        this.deliveries = new LinkedHashMap<RemoteDevice, Delivery>();
+    }
+    
+    /**
+     * Adds the delivery of the message to a peer.
+     * @param peer The peer
+     * @param delivery The delivery of the message to that peer
+     */
+    public void add(RemoteDevice peer, Delivery delivery) {
+        deliveries.put(peer, delivery);
+    }
+    
+    /**
+     * Waits until the message is delivered to all the peers, or the deadline
+     * passes. The timeout is for the whole broadcast, not for every peer.
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return The outcome for every peer
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public Map<RemoteDevice, DeliveryOutcome> await(long timeout) 
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        LinkedHashMap<RemoteDevice, DeliveryOutcome> outcomes = 
+            new LinkedHashMap<RemoteDevice, DeliveryOutcome>();
+        for (Map.Entry<RemoteDevice, Delivery> entry : deliveries.entrySet()) {
+            long left = Math.max(0, deadline - System.currentTimeMillis());
+            outcomes.put(entry.getKey(), entry.getValue().await(left));
+        }
+        return outcomes;
+    }
+    
+    /**
+     * @return the number of peers the message was sent to
+     */
+    public int size() {
+        return deliveries.size();
+    }
+}
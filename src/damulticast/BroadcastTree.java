@@ -0,0 +1,320 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends the broadcasts of the device through a k-ary tree of the peers
+ * instead of to every peer. The members, the peers and this device, are
+ * sorted by id and every broadcast uses the tree rooted at its sender: the
+ * member at position p of the order that starts at the sender forwards the
+ * message to the positions k*p+1 to k*p+k. Every device computes the same
+ * tree from its peer list, so a broadcast takes N-1 messages and no device
+ * sends more than k of them. The tree is rebuilt when the peers change.
+ * The messages travel as 'tree' messages, 'origin|ip|port|target|header|
+ * message', the target is -1 for a broadcast or the id of the only peer the
+ * message is for, which is then sent along the path of the tree to that peer
+ * so it arrives after the broadcasts sent before it. The ip is empty when the
+ * origin is the sender.
+ * When a message can not be delivered to a child, it is sent to the children
+ * of the child instead while the child is still a peer, and the next
+ * broadcasts skip the child once it is dismissed.
+ * @author cesar
+ */
+public class BroadcastTree {
+
+    /** The id of the target of a broadcast */
+    public static final int ALL = -1;
+
+    /** The device that sends and forwards the messages */
+    private Device device;
+    /** The children of every member */
+    private int arity;
+    /** The members when the peers last changed */
+    private volatile View view;
+
+    public BroadcastTree(Device device, int arity) {
+        this.device = device;
+        this.arity = arity;
+        this.view = new View(new int[0], new RemoteDevice[0]);
+    }
+
+    /**
+     * Rebuilds the tree from the peer list, called when it changes.
+     */
+    public synchronized void rebuild() {
+        List<RemoteDevice> peers = new ArrayList<RemoteDevice>(device.getPeers());
+        RemoteDevice[] members = new RemoteDevice[peers.size() + 1];
+        int[] ids = new int[members.length];
+        /* Sorted by id, with the index in the list in the low bits. This
+         * device has the index 0 and is the null member */
+        long[] order = new long[members.length];
+        order[0] = (long) device.getId() << 32;
+        for (int i = 0; i < peers.size(); i++) {
+            order[i + 1] = ((long) peers.get(i).getId() << 32) | (i + 1);
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < order.length; i++) {
+            int index = (int) order[i];
+            ids[i] = (int) (order[i] >> 32);
+            members[i] = index == 0 ? null : peers.get(index - 1);
+        }
+        view = new View(ids, members);
+    }
+
+    /**
+     * Sends a message to every peer through the tree rooted at this device.
+     * @param header The header of the message
+     * @param message The content of the message
+     * @return The deliveries to the children of this device
+     */
+    public Broadcast broadcast(String header, String message) {
+        Broadcast broadcast = new Broadcast();
+        String tree = device.getId() + "||" + device.getPort() + "|" + ALL + "|"
+            + header + "|" + message;
+        View current = view;
+        int root = current.indexOf(device.getId());
+        if (root < 0) {
+            rebuild();
+            current = view;
+            root = current.indexOf(device.getId());
+        }
+        for (RemoteDevice child : current.children(root, 0)) {
+            Message m = new Message(child, "tree", tree);
+            Delivery delivery = new Delivery();
+            m.setDelivery(delivery);
+            broadcast.add(child, delivery);
+            forward(m);
+        }
+        return broadcast;
+    }
+
+    /**
+     * Sends a message to a single peer along the path of the tree rooted at
+     * this device, so it is not received before the broadcasts sent earlier.
+     * @param target The peer
+     * @param header The header of the message
+     * @param message The content of the message
+     */
+    public void send(RemoteDevice target, String header, String message) {
+        View current = view;
+        int root = current.indexOf(device.getId());
+        RemoteDevice next = current.nextHop(root, 0, target.getId());
+        forward(new Message(next == null ? target : next, "tree", device.getId()
+            + "||" + device.getPort() + "|" + target.getId() + "|" + header + "|"
+            + message));
+    }
+
+    /**
+     * Forwards a 'tree' message received to the children of this device, or to
+     * the next peer in the path to its target.
+     * @param m The message
+     * @return The message it carries if it is for this device, null otherwise
+     */
+    public Message received(Message m) {
+        String[] fields = split(m.getMessage());
+        if (fields == null) {
+            System.err.println("Incorrect format for tree.");
+            return null;
+        }
+        int origin;
+        int port;
+        int target;
+        try {
+            origin = Integer.parseInt(fields[0]);
+            port = Integer.parseInt(fields[2]);
+            target = Integer.parseInt(fields[3]);
+        } catch (NumberFormatException nfe) {
+            System.err.println("Incorrect format for tree.");
+            return null;
+        }
+        RemoteDevice sender;
+        if (origin == m.getPeer().getId()) {
+            sender = m.getPeer();
+        } else if (fields[4].equals("hello")) {
+            /* The peer that joins is added before the tree is computed */
+            sender = device.lookUpSender(origin, fields[1], port);
+        } else {
+            sender = device.lookUpPeer(origin);
+            if (sender == null) {
+                sender = new RemoteDevice(origin, fields[1], port);
+            }
+        }
+        /* The ip of the origin for the next hops */
+        String forwarded = origin + "|" + sender.getIpAddress() + "|" + port + "|"
+            + target + "|" + fields[4] + "|" + fields[5];
+        View current = view;
+        int root = current.indexOf(origin);
+        int self = current.indexOf(device.getId());
+        if (target == ALL) {
+            if (root >= 0) {
+                for (RemoteDevice child : current.children(root,
+                        current.position(root, self))) {
+                    forward(new Message(child, "tree", forwarded));
+                }
+            }
+        } else if (target != device.getId()) {
+            RemoteDevice next = root < 0 ? null : current.nextHop(root,
+                current.position(root, self), target);
+            if (next == null) {
+                next = device.lookUpPeer(target);
+            }
+            if (next != null) {
+                forward(new Message(next, "tree", forwarded));
+            }
+            return null;
+        }
+        return new Message(m.getId(), sender, fields[4], fields[5]);
+    }
+
+    /**
+     * Hands a 'tree' message that could not be delivered to a child to the
+     * children of the child, or to the next peer in the path to its target.
+     * @param m The message that was not delivered
+     */
+    public void forwardFailed(Message m) {
+        String[] fields = split(m.getMessage());
+        if (fields == null) {
+            return;
+        }
+        int origin = Integer.parseInt(fields[0]);
+        int target = Integer.parseInt(fields[3]);
+        int failed = m.getPeer().getId();
+        if (target == failed) {
+            return;
+        }
+        View current = view;
+        int root = current.indexOf(origin);
+        int index = current.indexOf(failed);
+        if (root < 0 || index < 0) {
+            /* The child was dismissed, the tree does not have it anymore */
+            return;
+        }
+        int position = current.position(root, index);
+        if (target == ALL) {
+            for (RemoteDevice child : current.children(root, position)) {
+                forward(new Message(child, "tree", m.getMessage()));
+            }
+        } else {
+            RemoteDevice next = current.nextHop(root, position, target);
+            if (next != null) {
+                forward(new Message(next, "tree", m.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Queues a message to the next hop, the failures are handed back to
+     * forwardFailed by the device.
+     */
+    private void forward(Message m) {
+        try {
+            device.send(m);
+        } catch (IOException ioe) {
+            device.deliveryFailed(m, ioe);
+        }
+    }
+
+    /**
+     * Splits a 'tree' message in its six fields, the last one can have any
+     * character.
+     * @return The fields, null if there are less
+     */
+    private static String[] split(String message) {
+        String[] fields = new String[6];
+        int start = 0;
+        for (int i = 0; i < 5; i++) {
+            int separator = message.indexOf('|', start);
+            if (separator < 0) {
+                return null;
+            }
+            fields[i] = message.substring(start, separator);
+            start = separator + 1;
+        }
+        fields[5] = message.substring(start);
+        return fields;
+    }
+
+    /**
+     * @return the arity
+     */
+    public int getArity() {
+        return arity;
+    }
+
+    /**
+     * The members of the tree, sorted by id.
+     */
+    private class View {
+
+        /** The ids of the members */
+        private int[] ids;
+        /** The members, null for this device */
+        private RemoteDevice[] members;
+
+        private View(int[] ids, RemoteDevice[] members) {
+            this.ids = ids;
+            this.members = members;
+        }
+
+        /**
+         * @return the index of a member, or a negative number if it is not one
+         */
+        private int indexOf(int id) {
+            return Arrays.binarySearch(ids, id);
+        }
+
+        /**
+         * @return the position of a member in the tree rooted at another one
+         */
+        private int position(int root, int index) {
+            return (index - root + ids.length) % ids.length;
+        }
+
+        /**
+         * @return the member at a position of the tree rooted at another one
+         */
+        private RemoteDevice at(int root, int position) {
+            return members[(root + position) % ids.length];
+        }
+
+        /**
+         * Returns the children of a position of the tree rooted at a member.
+         */
+        private List<RemoteDevice> children(int root, int position) {
+            ArrayList<RemoteDevice> children = new ArrayList<RemoteDevice>(arity);
+            for (int i = 1; i <= arity; i++) {
+                long child = (long) arity * position + i;
+                if (child >= ids.length) {
+                    break;
+                }
+                children.add(at(root, (int) child));
+            }
+            return children;
+        }
+
+        /**
+         * Returns the child of a position whose subtree has a member.
+         * @return The child, null if the member is not in the subtree or not
+         * a member at all
+         */
+        private RemoteDevice nextHop(int root, int position, int target) {
+            int index = indexOf(target);
+            if (root < 0 || index < 0) {
+                return null;
+            }
+            int child = position(root, index);
+            while (child > position) {
+                int parent = (child - 1) / arity;
+                if (parent == position) {
+                    return at(root, child);
+                }
+                child = parent;
+            }
+            return null;
+        }
+    }
+}
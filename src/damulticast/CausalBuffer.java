@@ -0,0 +1,318 @@
+
+package damulticast;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the updates of the peers in causal order, whatever the order in
+ * which they arrive. The new resources and the updates sent by the device are
+ * events: they increase the count of the device in its VectorClock, and they
+ * are sent as 'causal' messages with the clock, 'clock|header|message'. The
+ * lock_ack are sent with the clock too but are not events, so a device does
+ * not get a lock before receiving the updates the peer had seen when it
+ * replied.
+ * An event from a peer is delivered when it is the next one of the peer and
+ * every other count of its clock has been delivered, any other message when
+ * all the counts have been delivered. The messages that are not deliverable
+ * wait in the buffer, and are delivered anyway after the timeout, so the
+ * updates lost with a peer that left do not hold the rest forever.
+ * A single thread delivers at a time, so the messages are handled in the
+ * order they become deliverable, but outside the lock of the buffer.
+ * @author cesar
+ */
+public class CausalBuffer implements Runnable {
+
+    /** The device that handles the messages delivered */
+    private Device device;
+    /** The time a message can wait for the messages it depends on */
+    private long timeout;
+    /** The events delivered from every peer and the ones sent by this device */
+    private VectorClock clock;
+    /** The messages that are not deliverable yet, in the order they came */
+    private ArrayList<Pending> pending;
+    /** If a thread is delivering the messages */
+    private boolean draining;
+    /** The thread that delivers the messages that timed out */
+    private ScheduledExecutorService timer;
+    /** The messages delivered */
+    private long delivered;
+    /** The messages that had to wait for others */
+    private long buffered;
+    /** The messages delivered after the timeout */
+    private long forced;
+
+    public CausalBuffer(Device device, long timeout) {
+        this.device = device;
+        this.timeout = timeout;
+        this.clock = new VectorClock();
+        this.pending = new ArrayList<Pending>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "causal-buffer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, timeout / 2);
+        timer.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the messages with this header are events
+     */
+    public static boolean isEvent(String header) {
+        return header.equals("new_resource") || header.equals("update_resource")
+            || header.equals("update_batch");
+    }
+
+    /**
+     * @return true if the messages with this header are sent with the clock
+     */
+    public static boolean isCausal(String header) {
+        return isEvent(header) || header.equals("lock_ack");
+    }
+
+    /**
+     * Adds the clock to a message sent by this device, counting it if it is an
+     * event.
+     * @param header The header of the message
+     * @param message The content of the message
+     * @return The content of the 'causal' message
+     */
+    public synchronized String stamp(String header, String message) {
+        if (isEvent(header)) {
+            clock.increment(device.getId());
+        }
+        return clock + "|" + header + "|" + message;
+    }
+
+    /**
+     * Receives a 'causal' message, it is delivered once the messages it
+     * depends on have been.
+     * @param m The message
+     */
+    public void received(Message m) {
+        String message = m.getMessage();
+        int first = message.indexOf('|');
+        int second = message.indexOf('|', first + 1);
+        Pending p;
+        try {
+            p = new Pending(new Message(m.getId(), m.getPeer(),
+                message.substring(first + 1, second), message.substring(second + 1)),
+                VectorClock.parse(message.substring(0, first)));
+        } catch (IndexOutOfBoundsException ioobe) {
+            System.err.println("Incorrect format for causal.");
+            return;
+        } catch (NumberFormatException nfe) {
+            System.err.println("Incorrect format for causal.");
+            return;
+        }
+        synchronized (this) {
+            if (p.isEvent() && p.clock.get(p.sender()) <= clock.get(p.sender())) {
+                /* Delivered already, or covered by the state received */
+                return;
+            }
+            pending.add(p);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        drain();
+    }
+
+    /**
+     * Takes the clock of the peer the state was received from, the events it
+     * had delivered are in the state and are not delivered again.
+     * @param baseline The clock of the peer
+     */
+    public void receivedState(VectorClock baseline) {
+        synchronized (this) {
+            clock.merge(baseline);
+            Iterator<Pending> it = pending.iterator();
+            while (it.hasNext()) {
+                Pending p = it.next();
+                if (p.isEvent() && p.clock.get(p.sender()) <= clock.get(p.sender())) {
+                    it.remove();
+                }
+            }
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        drain();
+    }
+
+    /**
+     * Delivers the messages that timed out.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (draining || pending.isEmpty()) {
+                return;
+            }
+            draining = true;
+        }
+        drain();
+    }
+
+    /**
+     * Delivers the messages while there are deliverable ones. Only called by
+     * the thread that set draining.
+     */
+    private void drain() {
+        while (true) {
+            Pending next;
+            synchronized (this) {
+                next = poll();
+                if (next == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            try {
+                device.receiveMessage(next.message);
+            } catch (RuntimeException re) {
+                System.err.println("Error while delivering " + next.message.getHeader()
+                    + " from peer " + next.sender() + ", " + re.getMessage());
+            }
+            synchronized (this) {
+                clock.merge(next.clock);
+                delivered++;
+            }
+        }
+    }
+
+    /**
+     * Removes the first deliverable message, or the first one that timed out.
+     * @return The message, null if none can be delivered
+     */
+    private Pending poll() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < pending.size(); i++) {
+            Pending p = pending.get(i);
+            if (p.isDeliverable(clock)) {
+                pending.remove(i);
+                return p;
+            }
+            p.waited = true;
+            if (now - p.arrived >= timeout) {
+                System.err.println("Delivering " + p.message.getHeader() + " from peer "
+                    + p.sender() + " out of causal order, " + p.clock + " at " + clock);
+                forced++;
+                pending.remove(i);
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops the timer, the messages still waiting are not delivered.
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * @return a copy of the clock, as text
+     */
+    public synchronized String getClock() {
+        return clock.toString();
+    }
+
+    /**
+     * @return the number of messages waiting
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the delivered
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return the buffered
+     */
+    public synchronized long getBuffered() {
+        return buffered;
+    }
+
+    /**
+     * @return the forced
+     */
+    public synchronized long getForced() {
+        return forced;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "clock=" + clock + " delivered=" + delivered + " buffered=" + buffered
+            + " forced=" + forced + " pending=" + pending.size();
+    }
+
+    /**
+     * A message waiting to be delivered.
+     */
+    private class Pending {
+
+        /** The message carried */
+        private Message message;
+        /** The clock of the sender when it was sent */
+        private VectorClock clock;
+        /** When it was received */
+        private long arrived;
+        /** If it was found not deliverable once */
+        private boolean waited;
+
+        private Pending(Message message, VectorClock clock) {
+            this.message = message;
+            this.clock = clock;
+            this.arrived = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the id of the peer that sent the message
+         */
+        private int sender() {
+            return message.getPeer().getId();
+        }
+
+        /**
+         * @return true if the message is an event
+         */
+        private boolean isEvent() {
+            return CausalBuffer.isEvent(message.getHeader());
+        }
+
+        /**
+         * Checks if the messages this one depends on have been delivered, and
+         * counts it as buffered the first time it is delivered after waiting.
+         */
+        private boolean isDeliverable(VectorClock delivered) {
+            boolean deliverable;
+            if (isEvent()) {
+                deliverable = clock.get(sender()) == delivered.get(sender()) + 1
+                    && clock.isCoveredBy(delivered, sender());
+            } else {
+                deliverable = clock.isCoveredBy(delivered, -1);
+            }
+            if (deliverable && waited) {
+                buffered++;
+            }
+            return deliverable;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+
+package damulticast;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the delivery of a single message to a peer. The peer 
+ * connection completes it when the message is written or given up, and the
+ * sender can wait for it with a timeout.
+ * @author cesar
+ */
+public class Delivery {
+    
+    /** The outcome, null while the message is pending */
+    private volatile DeliveryOutcome outcome;
+    /** Released when the outcome is known */
+    private CountDownLatch done;
+    
+    public Delivery() {
+        this.done = new CountDownLatch(1);
+    }
+    
+    /**
+     * Sets the outcome of the delivery. Only the first outcome is kept.
+     * @param outcome The outcome
+     */
+    public synchronized void complete(DeliveryOutcome outcome) {
+        if (this.outcome == null) {
+            this.outcome = outcome;
+            done.countDown();
+        }
+    }
+    
+    /**
+     * Waits for the outcome of the delivery.
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return The outcome, TIMED_OUT if it is not known after the timeout
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public DeliveryOutcome await(long timeout) throws InterruptedException {
+        if (done.await(timeout, TimeUnit.MILLISECONDS)) {
+            return outcome;
+        }
+        return DeliveryOutcome.TIMED_OUT;
+    }
+
+    /**
+     * @return the outcome, null if still pending
+     */
+    public DeliveryOutcome getOutcome() {
+        return outcome;
+    }
+}
@@ -0,0 +1,16 @@
+
+package damulticast;
+
+/**
+ * The result of sending a message to a peer.
+ * @author cesar
+ */
+public enum DeliveryOutcome {
+    
+    /** The message was written to the connection of the peer */
+    DELIVERED,
+    /** The message could not be written after all the retries */
+    FAILED,
+    /** The message was still waiting to be written when the deadline passed */
+    TIMED_OUT
+}
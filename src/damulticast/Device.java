@@ -1,24 +1,38 @@
 
 package damulticast;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class that implements the P2P communication with other peers, and keeps tracks
  * of the Shared Resources and it's locks. For the time being the Shared Resources
  * are just variables with a String key, and a numerical value.
+ * The messages can be handled by several threads at once (see ThreadMode), so
+ * the state is not guarded by the monitor of the device but by finer locks: the
+ * peer list is a copy on write list, the lock of every resource is guarded by
+ * its ResourceState, and the values by the SharedResources.
+ * The device does not use sockets directly, the frames are moved by the 
+ * Transport of the configuration, or the default one for the ThreadMode.
  * @author cesar
  */
 public class Device implements Runnable {
@@ -27,35 +41,126 @@ public class Device implements Runnable {
     private int id;
     /** The class that keeps the state of shared resources */
     private SharedResources sharedResources;
-    /** The peer list */
-    private ArrayList<RemoteDevice> peers;
-    /** Socket that will use for incoming P2P messages */
-    private ServerSocket serverSocket;
+    /** The peer list, changes are rare compared to the times it is read */
+    private CopyOnWriteArrayList<RemoteDevice> peers;
+    /** Moves the frames to and from the peers and the tracker */
+    private Transport transport;
+    /** If the transport was created by the device, and must be closed by it */
+    private boolean ownsTransport;
+    /** The server that accepts the connections of the peers */
+    private TransportServer server;
+    /** Released when the device is closed */
+    private CountDownLatch stopped;
     /** A counter for the id of outcoming messages */
-    private int messageId;
+    private AtomicInteger messageId;
+    /** The settings of the device */
+    private DeviceConfig config;
+    /** Batches the updates of resources, null if batching is disabled */
+    private UpdateBatcher batcher;
+    /** Sends the messages for all peers by multicast, null if disabled */
+    private MulticastChannel multicast;
+    /** Spreads the new resources and updates by gossip, null if disabled */
+    private Gossip gossip;
+    /** Sends the broadcasts through a tree of the peers, null if disabled */
+    private BroadcastTree tree;
+    /** Delivers the updates in causal order, null if disabled */
+    private CausalBuffer causal;
+    /** Delivers the updates in the same order in all devices, null if disabled */
+    private TotalOrder order;
+    /** Handles the messages of different resources in parallel, null to
+     * handle them on the thread that receives them */
+    private ResourceExecutor executor;
+    /** The ids of the resources in the messages, null if the keys are sent */
+    private KeyDictionary dictionary;
+    /** The handlers of the messages of the protocol, by opcode */
+    private AtomicReferenceArray<MessageHandler> opcodeHandlers;
+    /** The handlers of the rest of the messages of the peers, by header */
+    private ConcurrentHashMap<String, MessageHandler> handlers;
     /** A listener for the events in the protocol (the actual program running on a device) */
     private RicartListener listener;
+    /** Calls the listener on the executor of the configuration, null if
+     * disabled */
+    private ListenerDispatcher dispatcher;
     
     public static final int serverPort = 12345;
+    /** The time to wait for the tracker to reply when joining */
+    public static final int TRACKER_TIMEOUT = 5000;
+    /** The size of a chunk of the state after which no more resources are
+     * added to it, in bytes once encoded as UTF-8 */
+    public static final int STATE_CHUNK_BYTES = 32768;
+    /** The key of the hello, goodbye and ping messages in the executor, no
+     * resource has a '|' in its id */
+    private static final String MEMBERSHIP = "|membership";
     
     /**
      * Listening thread for incoming messages. 
      */
     @Override
     public void run() {
-        try {
-            this.listen();
-        } catch (IOException ioe) {
-            System.err.println("General IOException: " + ioe);
-        }
+        this.listen();
     }
     
     public Device(RicartListener listener) {
+        this(listener, new DeviceConfig());
+    }
+    
+    public Device(RicartListener listener, DeviceConfig config) {
         this.id = 0;
         this.sharedResources = new SharedResources();
-        this.peers = new ArrayList<RemoteDevice>();
-        this.messageId = 0;
-        this.listener = listener;
+        this.peers = new CopyOnWriteArrayList<RemoteDevice>();
+        this.messageId = new AtomicInteger();
+        this.config = config;
+        if (config.getListenerExecutor() != null) {
+            this.dispatcher = new ListenerDispatcher(listener,
+                config.getListenerExecutor(), config.getListenerQueueCapacity());
+            this.listener = dispatcher;
+        } else {
+            this.listener = listener;
+        }
+        this.stopped = new CountDownLatch(1);
+        this.opcodeHandlers = new AtomicReferenceArray<MessageHandler>(
+            Opcode.values().length);
+        this.handlers = new ConcurrentHashMap<String, MessageHandler>();
+        registerProtocolHandlers();
+        this.transport = config.getTransport();
+        if (transport == null) {
+            this.transport = config.getThreadMode().newTransport();
+            if (config.isSharedMemory()) {
+                this.transport = new SharedMemoryTransport(transport,
+                    config.getThreadMode(), config.getSharedMemorySpins());
+            }
+            this.ownsTransport = true;
+        }
+        if (config.getGossipFanout() > 0) {
+            /* The rounds already batch the updates */
+            this.gossip = new Gossip(this, config.getGossipFanout(),
+                config.getGossipPeriod(), config.getGossipStopCount());
+            gossip.start();
+        } else if (config.getBatchWindow() > 0) {
+            this.batcher = new UpdateBatcher(this, config.getBatchWindow(), 
+                config.getBatchSize());
+        }
+        if (config.getTreeArity() > 0) {
+            this.tree = new BroadcastTree(this, config.getTreeArity());
+        }
+        if (config.isCausalDelivery()) {
+            this.causal = new CausalBuffer(this, config.getCausalTimeout());
+        }
+        if (config.isTotalOrder()) {
+            this.order = new TotalOrder(this, config.getOrderGapTimeout());
+        }
+        if (config.isInternKeys()) {
+            if (gossip != null) {
+                /* The rumors carry the keys, the peers would not learn the ids */
+                System.err.println("The keys are not interned with gossip.");
+            } else {
+                this.dictionary = new KeyDictionary(sharedResources);
+            }
+        }
+        if (config.getResourceThreads() > 0) {
+            this.executor = new ResourceExecutor(config.getThreadMode(),
+                config.getResourceThreads());
+        }
     }
     
     /**
@@ -64,358 +169,1325 @@ public class Device implements Runnable {
      * @throws UnknownHostException If the tracker can't be found
      * @throws IOException If an IOException occurs in the communication
      */
-    public void establishConnection(String serverIP) 
-            throws UnknownHostException, IOException {
-        
-        Socket tracker = new Socket(serverIP, serverPort);
-        DataInputStream in = new DataInputStream(tracker.getInputStream());
-        DataOutputStream out =new DataOutputStream(tracker.getOutputStream());
-
-        /* Create a new listening socket from the ephemeral (random) port list */
-        int port = this.setListener(0);
-        out.writeInt(port);
-
-        /* Read the id given and peer list */
-        this.setId(in.readInt());
-        boolean morePeers = in.readBoolean();
-        while (morePeers) {
-            RemoteDevice peer = new RemoteDevice(in.readInt(), 
-                in.readUTF(), in.readInt());
-            /* If the peer appears to be localhost, assign the tracker's ip address */
-            if (peer.getIpAddress().equals("127.0.0.1")) {
-                peer.setIpAddress(tracker.getInetAddress().getHostAddress());
-            }
-            this.getPeers().add(peer);
-            morePeers = in.readBoolean();
+    public void establishConnection(String serverIP) 
+            throws UnknownHostException, IOException {
+        
+        /* Create a new listening port from the ephemeral (random) port list */
+        int port = this.setListener(0);
+
+        /* The tracker replies with a single frame */
+        final LinkedBlockingQueue<Message> replies = new LinkedBlockingQueue<Message>();
+        TransportConnection tracker = transport.connect(serverIP, serverPort,
+            TRACKER_TIMEOUT, new TransportListener() {
+                private FrameCodec codec = new FrameCodec();
+
+                @Override
+                public void received(TransportConnection connection, ByteBuffer frame) {
+                    try {
+                        replies.add(codec.decode(frame));
+                    } catch (ProtocolException pe) {
+                        System.err.println("Incorrect format for join reply.");
+                    }
+                }
+
+                @Override
+                public void closed(TransportConnection connection, IOException cause) {
+                }
+            });
+        FrameCodec codec = new FrameCodec();
+        Message reply;
+        try {
+            tracker.send(codec.encode(new Message(0, null, "join", 
+                String.valueOf(port))));
+            reply = replies.poll(TRACKER_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            throw new IOException("Interrupted while joining");
+        } finally {
+            tracker.close();
+        }
+        if (reply == null) {
+            throw new SocketTimeoutException("The tracker did not reply");
+        }
+
+        /* Read the id given and peer list, 'id&peerId|ip|port&...' */
+        StringTokenizer st = new StringTokenizer(reply.getMessage(), "&");
+        try {
+            this.setId(Integer.parseInt(st.nextToken()));
+            while (st.hasMoreTokens()) {
+                StringTokenizer st2 = new StringTokenizer(st.nextToken(), "|");
+                RemoteDevice peer = new RemoteDevice(Integer.parseInt(st2.nextToken()), 
+                    st2.nextToken(), Integer.parseInt(st2.nextToken()));
+                /* If the peer appears to be localhost, assign the tracker's ip address */
+                if (peer.getIpAddress().equals("127.0.0.1")) {
+                    peer.setIpAddress(tracker.getRemoteAddress());
+                }
+                this.getPeers().add(peer);
+            }
+        } catch (NoSuchElementException nsee) {
+            throw new ProtocolException("Incorrect format for join reply.");
+        } catch (NumberFormatException nfe) {
+            throw new ProtocolException("Incorrect format for join reply.");
+        }
+        membershipChanged();
+        
+        /* Join the multicast group once the id is known */
+        if (config.getMulticastGroup() != null) {
+            multicast = new MulticastChannel(this, config.getMulticastGroup(),
+                config.getMulticastPort());
+            Thread t = new Thread(multicast, "multicast");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+    
+    /**
+     * The listen method for the devices. Every peer keeps one connection open
+     * with this device, the connections are accepted and read by the threads of
+     * the Transport, which hand the frames to an InboundHandler. With the 
+     * SELECTOR mode all the connections are read by a single Selector without 
+     * blocking, so a slow peer does not delay the messages of the rest. With 
+     * the PLATFORM and VIRTUAL modes every connection is read by its own 
+     * thread. This method waits until the device is closed or the thread is
+     * interrupted, and then stops accepting connections. This method should
+     * not be called directly by the application rather, start a new Thread
+     * and run it.
+     * The logic for handling the messages is in the receiveMessage method. This
+     * method should not be edited anymore.
+     */
+    private void listen() {
+        
+        try {
+            stopped.await();
+        } catch (InterruptedException ie) {
+            /* Interrupted to stop listening */
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+    
+    /**
+     * Stops listening and closes the connections with the peers. The transport
+     * is closed too if it was created by the device.
+     */
+    public void close() {
+        stopped.countDown();
+        if (gossip != null) {
+            gossip.close();
+        }
+        if (causal != null) {
+            causal.close();
+        }
+        if (order != null) {
+            order.close();
+        }
+        if (executor != null) {
+            executor.close();
+        }
+        /* Null if the device never started listening */
+        if (server != null) {
+            server.close();
+        }
+        for (RemoteDevice peer : peers) {
+            if (peer.getConnection() != null) {
+                peer.getConnection().close();
+            }
+        }
+        if (ownsTransport) {
+            transport.close();
+        }
+    }
+    
+    /**
+     * Looks for the sender of an incoming connection in the peer list. If the
+     * sender is not found it is added to the list.
+     * @param senderId The id the sender identified itself with
+     * @param ipAddress The ip address of the sender
+     * @param port The port in which the sender listens
+     * @return The peer object of the sender
+     */
+    public RemoteDevice lookUpSender(int senderId, String ipAddress, int port) {
+        /* If the sender is the tracker */
+        if (senderId == -2) {
+            return new RemoteDevice(-2, ipAddress, port);
+        }
+        synchronized (peers) {
+            RemoteDevice sender = lookUpPeer(senderId);
+            /* If peer is not found, add it to the list */
+            if (sender == null) {
+                sender = new RemoteDevice(senderId, ipAddress, port);
+                peers.add(sender);
+                membershipChanged();
+            }
+            return sender;
+        }
+    }
+    
+    /**
+     * The sending method that will execute the instructions necessary for a 
+     * message to reach the destination peer. The message is added to the 
+     * outbound queue of the peer and the method returns right away, the writer
+     * of the peer connection delivers it. If the message can not be delivered
+     * the deliveryFailed method is called. Messages prefixed with 'sync-' in 
+     * the header are queued the same way, but the reply is waited for and 
+     * handled by receiveMessage, see request to not wait.
+     * @param m The message to be sent.
+     * @throws SocketTimeoutException If the reply of a sync message does not
+     * arrive within the request timeout of the configuration.
+     * @throws IOException If the queue of the peer is full, or an IO error 
+     * happens during the communication of a sync message
+     * @throws UnkownHostException This shouldn't happen when using IP addresses.
+     */
+    public void send(Message m) throws SocketTimeoutException,
+            IOException, UnknownHostException {
+        
+        /* If the message is sync, implement the receive instruction */
+        if (m.getHeader().startsWith("sync-")) {
+            ReplyFuture future = request(m);
+            receiveMessage(awaitReply(future));
+        } else {
+            m.setId(messageId.incrementAndGet());
+            getConnection(m.getPeer()).enqueue(m);
+        }
+    }
+    
+    /**
+     * Queues the reply to a 'sync-' request to the peer that sent it, instead
+     * of writing it on the connection of the request. See InboundHandler.
+     * @param reply The reply, with the id of the request
+     * @throws IOException If the queue of the peer is full
+     */
+    public void sendReply(Message reply) throws IOException {
+        getConnection(reply.getPeer()).enqueue(reply);
+    }
+    
+    /**
+     * Completes a request with a reply that the peer queued, see sendReply.
+     * @param reply The reply, with the id of the request
+     */
+    public void replyReceived(Message reply) {
+        getConnection(reply.getPeer()).replied(reply);
+    }
+    
+    /**
+     * Sends a 'sync-' request to a peer without waiting for the reply. The id
+     * of the message is used to match the reply, so any number of requests can
+     * be waiting for replies from any number of peers.
+     * @param m The request
+     * @return The future reply, it is not handled by receiveMessage
+     * @throws IOException If the queue of the peer is full
+     */
+    public ReplyFuture request(Message m) throws IOException {
+        m.setId(messageId.incrementAndGet());
+        return getConnection(m.getPeer()).request(m);
+    }
+    
+    /**
+     * Waits for the reply of a request up to the timeout of the peer, see
+     * getTimeout. The time the request waits in the queue of the peer is not
+     * counted, up to the request timeout of the configuration.
+     * @param future The future reply
+     * @return The reply
+     * @throws SocketTimeoutException If the reply did not arrive in time
+     * @throws IOException If the request failed or the thread was interrupted
+     */
+    public Message awaitReply(ReplyFuture future) throws SocketTimeoutException,
+            IOException {
+        RemoteDevice peer = future.getPeer();
+        long deadline = System.currentTimeMillis() + config.getRequestTimeout();
+        try {
+            while (true) {
+                try {
+                    return future.get(getTimeout(peer), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException te) {
+                    if (future.getSent() == 0 
+                            && System.currentTimeMillis() < deadline) {
+                        /* Still queued behind other messages to the peer */
+                        continue;
+                    }
+                    peer.getRtt().timedOut();
+                    future.cancel(false);
+                    throw new SocketTimeoutException(te.getMessage());
+                }
+            }
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+        } catch (InterruptedException ie) {
+            future.cancel(false);
+            throw new IOException("Interrupted while waiting for message " 
+                + future.getId());
+        }
+    }
+    
+    /**
+     * Called by the peer connections when a message could not be delivered
+     * after all the retries. The lock requests and replies are queued again
+     * while the peer is in the peer list, they are only given up once it is
+     * removed: a request that is not delivered must not count as a vote. A
+     * lock request to a peer that is gone is no longer waited for.
+     * @param m The message that was not delivered
+     * @param ioe The error of the last attempt
+     */
+    public void deliveryFailed(Message m, IOException ioe) {
+        System.err.println("Could not deliver " + m.getHeader() + " to peer " 
+            + m.getPeer().getId() + ", " + ioe.getMessage());
+        if (OutboundQueue.isExempt(m.getHeader()) && peers.contains(m.getPeer())) {
+            try {
+                getConnection(m.getPeer()).enqueue(m);
+                return;
+            } catch (IOException closed) {
+                /* Removed meanwhile */
+            }
+        }
+        if (m.getDelivery() != null) {
+            m.getDelivery().complete(DeliveryOutcome.FAILED);
+        }
+        if (m.getOpcode() == Opcode.LOCK_RESOURCE && m.hasFields()) {
+            ResourceState lock = getLock(m);
+            if (lock != null) {
+                checkGranted(lock);
+            }
+        } else if (m.getHeader().equals("tree") && tree != null) {
+            tree.forwardFailed(m);
+        }
+    }
+    
+    /**
+     * Counts the reply of a peer for a lock requested by this device, see
+     * checkGranted.
+     * @param lock The lock of the resource
+     * @param peer The peer that replied
+     */
+    private void ackReceived(ResourceState lock, RemoteDevice peer) {
+        synchronized (lock) {
+            lock.addAck(peer.getId());
+        }
+        checkGranted(lock);
+    }
+    
+    /**
+     * Holds a lock requested by this device once all the peers in the peer
+     * list have replied, and notifies the listener. The peers that are removed
+     * are no longer waited for.
+     * @param lock The lock of the resource
+     */
+    private void checkGranted(ResourceState lock) {
+        synchronized (lock) {
+            if (!lock.getState().equals("WANTED") || !lock.isAckedBy(peers)) {
+                return;
+            }
+            lock.setState("HELD");
+        }
+        /* We send the event to the main device so it knows we have
+         * held the device.
+         */
+        listener.lockGranted(lock.getKey());
+    }
+    
+    /**
+     * Returns the connection kept with a peer, creating it if the peer does
+     * not have one yet. The connection is not opened until it is used.
+     * @param peer The peer
+     * @return The connection with the peer
+     */
+    private PeerConnection getConnection(RemoteDevice peer) {
+        synchronized (peer) {
+            PeerConnection connection = peer.getConnection();
+            if (connection == null) {
+                connection = new PeerConnection(this, peer, config);
+                peer.setConnection(connection);
+            }
+            return connection;
+        }
+    }
+    
+    /**
+     * Removes a peer from the peer list and closes the connection with it.
+     * @param peer The peer to be removed
+     */
+    private void removePeer(RemoteDevice peer) {
+        RemoteDevice removed;
+        synchronized (peers) {
+            int index = peers.indexOf(peer);
+            if (index < 0) {
+                return;
+            }
+            removed = peers.remove(index);
+        }
+        membershipChanged();
+        if (removed.getConnection() != null) {
+            removed.getConnection().close();
+        }
+        /* The locks requested are no longer waiting for its reply */
+        for (ResourceState lock : sharedResources.getLocks().values()) {
+            if (lock.getState().equals("WANTED")) {
+                checkGranted(lock);
+            }
+        }
+    }
+    
+    /**
+     * Rebuilds what depends on the peer list, called when it changes.
+     */
+    private void membershipChanged() {
+        if (tree != null) {
+            tree.rebuild();
+        }
+        if (order != null) {
+            order.membershipChanged();
+        }
+    }
+    
+    /**
+     * Contains the logic to be implemented when a message from a peer is 
+     * received. The message is handed to the handler registered for its
+     * header, the messages without a handler are ignored. With an executor,
+     * the messages of a resource are handled in order in the context of the
+     * resource and the hello, goodbye and ping in the one of the peer list,
+     * the rest on the calling thread. The receive logic of sync reply messages
+     * MUST NOT use the send method again, or it will be deadlocked. It can be
+     * called by several threads at once, the handlers take the locks of what
+     * they change. The messages of the protocol might be decoded into a
+     * message that is reused after the call, see FrameCodec.decode, they are
+     * copied when they are kept.
+     * @param m The incoming message from the peer;
+     */
+    public void receiveMessage(Message m) {
+        
+        RemoteDevice peer = m.getPeer();
+        /* Debug */
+        if (config.isTraceMessages() && m.getOpcode() != Opcode.PING) {
+            System.out.println(peer.getId() + "> " + m.getId() + ":" + m.getHeader() 
+                + ":" + m.getMessage());
+        }
+        dispatch(m);
+    }
+    
+    /**
+     * Hands a message to the handler registered for its header, in the
+     * context of the executor if there is one.
+     * @param m The message
+     */
+    private void dispatch(Message m) {
+        final MessageHandler handler = getHandler(m);
+        if (handler == null) {
+            return;
+        }
+        String context = executor == null ? null : getContext(m);
+        if (context == null) {
+            handler.handle(m);
+            return;
+        }
+        /* The message might be reused once this call returns */
+        final Message message = m.copy();
+        executor.execute(context, new Runnable() {
+            @Override
+            public void run() {
+                handler.handle(message);
+            }
+        });
+    }
+    
+    /**
+     * Returns the context a message is handled in by the executor.
+     * @param m The message
+     * @return The id of the resource, MEMBERSHIP for the messages that change
+     * the peer list, null for the messages handled on the calling thread
+     */
+    private String getContext(Message m) {
+        switch (m.getOpcode()) {
+            case NEW_RESOURCE:
+                /* The malformed ones are reported by the handler */
+                return m.hasFields() ? m.getKey() : null;
+            case LOCK_RESOURCE:
+            case LOCK_ACK:
+            case UPDATE_RESOURCE:
+                if (!m.hasFields()) {
+                    return null;
+                }
+                ResourceState lock = getLock(m);
+                /* The ids not known yet wait and are dispatched again */
+                return lock == null ? getKey(m.getResource(), m.getKey()) : lock.getKey();
+            case HELLO:
+            case GOODBYE:
+            case PING:
+                return MEMBERSHIP;
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Returns the handler of a message, by its opcode or by its header if it
+     * has none.
+     * @param m The message
+     * @return The handler, null if there is none
+     */
+    private MessageHandler getHandler(Message m) {
+        Opcode opcode = m.getOpcode();
+        return opcode == Opcode.CUSTOM ? handlers.get(m.getHeader()) 
+            : opcodeHandlers.get(opcode.ordinal());
+    }
+    
+    /**
+     * Returns the key of a reference to a resource, see Message.
+     * @param id The id of the resource, NONE if it is referenced by the key
+     * @param key The key
+     * @return The key, the text of the id if it has one
+     */
+    private static String getKey(int id, String key) {
+        return id == KeyDictionary.NONE ? key 
+            : KeyDictionary.PREFIX + Integer.toString(id, KeyDictionary.RADIX);
+    }
+    
+    /**
+     * Looks up the resource a message references, by its id if the keys are
+     * interned, which is an index in a table, or by its key.
+     * @param m The message, with its fields
+     * @return The lock of the resource, null if it does not exist or its id
+     * is not known yet
+     */
+    private ResourceState getLock(Message m) {
+        if (m.getResource() == KeyDictionary.NONE || dictionary == null) {
+            return sharedResources.getLock(getKey(m.getResource(), m.getKey()));
+        }
+        return sharedResources.getLock(m.getResource());
+    }
+    
+    /**
+     * Looks up the resource a message references, or makes the message wait
+     * to be dispatched again once its id is learned.
+     * @param m The message, with its fields
+     * @return The lock of the resource, null if it does not exist or the
+     * message waits, see isWaiting
+     */
+    private ResourceState getLockOrWait(Message m) {
+        ResourceState lock = getLock(m);
+        if (lock == null && isWaiting(m)) {
+            final Message waiting = m.copy();
+            dictionary.whenKnown(m.getResource(), new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(waiting);
+                }
+            });
+        }
+        return lock;
+    }
+    
+    /**
+     * @return true if the resource of a message was not found because its id
+     * is not known yet
+     */
+    private boolean isWaiting(Message m) {
+        return dictionary != null && m.getResource() != KeyDictionary.NONE;
+    }
+    
+    /**
+     * Returns the reference to a resource for the messages: its id if it has
+     * one and the keys are interned, the key otherwise.
+     * @param key The key of the resource
+     * @return The reference
+     */
+    String reference(String key) {
+        return dictionary == null ? key : dictionary.reference(key);
+    }
+    
+    /**
+     * Runs a task in the context of a resource, after the messages of the
+     * resource received before, or right away if there is no executor.
+     * @param key The id of the resource
+     * @param task The task
+     */
+    private void runOnResource(String key, Runnable task) {
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(key, task);
+        }
+    }
+    
+    /**
+     * Contains the logic to be implemented when a message from a peer is 
+     * received. This method is special for sync replies, since it returns the 
+     * reply rather than calling for the send message again. 
+     * @param m The incoming message from the peer;
+     * @return The reply, null if there is no handler for the message
+     */
+    public Message receiveMessageSync(Message m) {
+        
+        RemoteDevice peer = m.getPeer();
+        /* Debug */
+        if (config.isTraceMessages() && m.getOpcode() != Opcode.PING 
+                && m.getOpcode() != Opcode.GOSSIP) {
+            System.out.println(peer.getId() + "> " + m.getId() + ":" + m.getHeader() 
+                + ":" + m.getMessage());
+        }
+        
+        MessageHandler handler = getHandler(m);
+        return handler == null ? null : handler.handle(m);
+    }
+    
+    /**
+     * Registers the handler of the messages with a header, in place of the
+     * one registered before. The applications can add their own messages,
+     * sent with send or broadcast, and the headers that start with 'sync-'
+     * are replied with what the handler returns. The handlers of the headers
+     * of the protocol are kept by opcode, and their messages are only valid
+     * during the call.
+     * @param header The header of the messages
+     * @param handler The handler, null to remove the one registered
+     * @return The handler registered before, null if there was none
+     */
+    public MessageHandler registerHandler(String header, MessageHandler handler) {
+        Opcode opcode = Opcode.fromHeader(header);
+        if (opcode != Opcode.CUSTOM) {
+            return opcodeHandlers.getAndSet(opcode.ordinal(), handler);
+        }
+        if (handler == null) {
+            return handlers.remove(header);
+        }
+        return handlers.put(header, handler);
+    }
+    
+    /**
+     * Registers the handlers of the messages of the protocol.
+     */
+    private void registerProtocolHandlers() {
+        
+        /* tree, a message forwarded through the tree of the peers */
+        
+        registerHandler("tree", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                /* The message is forwarded before it is handled, a goodbye
+                 * would change the tree */
+                Message carried = tree == null ? null : tree.received(m);
+                if (carried != null) {
+                    receiveMessage(carried);
+                }
+                return null;
+            }
+        });
+        
+        /* causal, a message delivered once the ones it depends on are */
+        
+        registerHandler("causal", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                if (causal != null) {
+                    causal.received(m);
+                }
+                return null;
+            }
+        });
+        
+        /* order_request, a message to be numbered by this device as sequencer */
+        
+        registerHandler("order_request", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                if (order != null) {
+                    order.requested(m);
+                }
+                return null;
+            }
+        });
+        
+        /* ordered, a message numbered by the sequencer */
+        
+        registerHandler("ordered", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                if (order != null) {
+                    order.received(m);
+                }
+                return null;
+            }
+        });
+        
+        /* order_nack, a peer missed messages numbered by this device */
+        
+        registerHandler("order_nack", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                if (order != null) {
+                    order.nack(m);
+                }
+                return null;
+            }
+        });
+        
+        /* hello */
+        
+        registerHandler("hello", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                if (peers.addIfAbsent(m.getPeer())) {
+                    membershipChanged();
+                }
+                /* A new peer has not multicast anything the state counts */
+                if (multicast != null) {
+                    multicast.setBase(m.getPeer(), 0);
+                }
+                return null;
+            }
+        });
+        
+        /* goodbye */
+        
+        registerHandler("goodbye", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                removePeer(m.getPeer());
+                return null;
+            }
+        });
+        
+        /* new_resource */
+        
+        registerHandler("new_resource", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                receiveNewResource(m);
+                return null;
+            }
+        });
+        
+        /* lock_resource */
+        
+        registerHandler("lock_resource", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                receiveLockResource(m);
+                return null;
+            }
+        });
+        
+        /* lock_ack */
+        
+        registerHandler("lock_ack", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                receiveLockAck(m);
+                return null;
+            }
+        });
+        
+        /* nack, a peer missed multicast messages sent by this device */
+        
+        registerHandler("nack", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                receiveNack(m);
+                return null;
+            }
+        });
+        
+        /* repair, a multicast message this device missed sent again */
+        
+        registerHandler("repair", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                receiveRepair(m);
+                return null;
+            }
+        });
+        
+        /* ping, the pings include the list of peers the tracker considers have
+         * disconnected */
+        
+        registerHandler("ping", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                receivePing(m);
+                return null;
+            }
+        });
+        
+        /* reply-askstate and reply-statechunk */
+        
+        MessageHandler state = new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                receiveState(m);
+                return null;
+            }
+        };
+        registerHandler("reply-askstate", state);
+        registerHandler("reply-statechunk", state);
+        
+        /* update_resource */
+        
+        registerHandler("update_resource", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                if (!m.hasFields()) {
+                    System.err.println("Incorrect format for update resource.");
+                } else if (!isWaiting(m)) {
+                    applyUpdate(m.getPeer(), getKey(m.getResource(), m.getKey()), 
+                        m.getValue());
+                } else {
+                    /* By its id, it exists once the id is known */
+                    ResourceState lock = getLockOrWait(m);
+                    if (lock != null) {
+                        applyUpdate(m.getPeer(), lock, m.getValue());
+                    }
+                }
+                return null;
+            }
+        });
+        
+        /* update_batch, several updates sent together */
+        
+        registerHandler("update_batch", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                final RemoteDevice peer = m.getPeer();
+                if (!m.hasFields()) {
+                    System.err.println("Incorrect format for update batch.");
+                    return null;
+                }
+                for (int i = 0; i < m.getSize(); i++) {
+                    final int id = m.getId(i);
+                    final int value = m.getValue(i);
+                    if (dictionary == null || id == KeyDictionary.NONE) {
+                        applyBatchUpdate(peer, getKey(id, m.getKey(i)), value);
+                        continue;
+                    }
+                    ResourceState lock = sharedResources.getLock(id);
+                    if (lock != null) {
+                        applyBatchUpdate(peer, lock, value);
+                        continue;
+                    }
+                    /* An id that is not known yet waits for it */
+                    dictionary.whenKnown(id, new Runnable() {
+                        @Override
+                        public void run() {
+                            applyBatchUpdate(peer, sharedResources.getLock(id), value);
+                        }
+                    });
+                }
+                return null;
+            }
+        });
+        
+        /* sync-gossip, a round of gossip of a peer */
+        
+        registerHandler("sync-gossip", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                return gossip == null ? null : gossip.exchange(m);
+            }
+        });
+        
+        /* sync-askorder, the next ordered message after the state */
+        
+        registerHandler("sync-askorder", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                return order == null ? null : new Message(m.getPeer(), 
+                    "reply-askorder", order.getState());
+            }
+        });
+        
+        /* sync-askclock, the clock of the updates in the state */
+        
+        registerHandler("sync-askclock", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                return causal == null ? null : new Message(m.getPeer(), 
+                    "reply-askclock", causal.getClock());
+            }
+        });
+        
+        /* sync-askmulticast, the multicast messages counted in the state */
+        
+        registerHandler("sync-askmulticast", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                return multicast == null ? null : new Message(m.getPeer(), 
+                    "reply-askmulticast", multicast.getState());
+            }
+        });
+        
+        /* sync-askstate */
+        
+        registerHandler("sync-askstate", new MessageHandler() {
+            @Override
+            public Message handle(Message m) {
+                return replyState(m);
+            }
+        });
+    }
+    
+    /**
+     * Applies an update of an 'update_batch' in the context of its resource.
+     * @param peer The peer that updated the resource
+     * @param key The id of the resource
+     * @param value The new value
+     */
+    private void applyBatchUpdate(final RemoteDevice peer, final String key, 
+            final int value) {
+        runOnResource(key, new Runnable() {
+            @Override
+            public void run() {
+                applyUpdate(peer, key, value);
+            }
+        });
+    }
+    
+    /**
+     * Applies an update of an 'update_batch' to a resource found by its id.
+     * @param peer The peer that updated the resource
+     * @param lock The lock of the resource
+     * @param value The new value
+     */
+    private void applyBatchUpdate(final RemoteDevice peer, final ResourceState lock, 
+            final int value) {
+        runOnResource(lock.getKey(), new Runnable() {
+            @Override
+            public void run() {
+                applyUpdate(peer, lock, value);
+            }
+        });
+    }
+    
+    /**
+     * Adds a resource created by a peer.
+     * @param m The 'new_resource' message
+     */
+    private void receiveNewResource(Message m) {
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for new resource.");
+            return;
+        }
+        sharedResources.setValue(m.getKey(), m.getValue());
+        /* The id given by the device that created it */
+        if (m.getResource() != KeyDictionary.NONE && dictionary != null) {
+            dictionary.learn(m.getResource(), m.getKey());
+        }
+    }
+    
+    /**
+     * Replies to the lock request of a peer, or queues it if this device holds
+     * the lock or requested it first.
+     * @param m The 'lock_resource' message
+     */
+    private void receiveLockResource(Message m) {
+        RemoteDevice peer = m.getPeer();
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for lock resource.");
+            return;
+        }
+        try {
+            long t = m.getNumber();
+            ResourceState lock = getLockOrWait(m);
+            if (lock == null) {
+                if (!isWaiting(m)) {
+                    System.err.println("Resource does not exist: " 
+                        + getKey(m.getResource(), m.getKey()));
+                }
+                return;
+            }
+            synchronized (lock) {
+                /* We get our own timestamp just if we are going to use it */
+                String state = lock.getState();
+                boolean queue = state.equals("HELD");
+                if (!queue && state.equals("WANTED")) {
+                    queue = lock.getRequester(-1).getTimestamp() < t;
+                }
+
+                if (queue) {
+                    lock.getRequestQueue().add(new ResourceRequest(peer, t));
+                } else {
+                    sendLockAck(peer, lock.getKey());
+                }
+            }
+        } catch (SocketTimeoutException ste) {
+            System.err.println("Timeout for the message: " + m.getId() 
+                + "." + ste.getMessage());
+        } catch (UnknownHostException uhe) {
+            System.err.println("UHE for message: " + m.getId() 
+                + "." + uhe.getMessage());
+        } catch (IOException ioe) {
+            System.err.println("IOE for message: " + m.getId() 
+                + "." + ioe.getMessage());
+        }
+    }
+    
+    /**
+     * Counts the reply of a peer to a lock requested by this device.
+     * @param m The 'lock_ack' message
+     */
+    private void receiveLockAck(Message m) {
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for lock ack.");
+            return;
+        }
+        final ResourceState lock = getLockOrWait(m);
+        if (lock == null) {
+            return;
+        }
+        final RemoteDevice peer = m.getPeer();
+        long seq = m.getNumber();
+        /* The version of the resource the peer has, applied before the lock
+         * can be granted */
+        if (m.getSize() > 0 && gossip != null) {
+            gossip.merge(m);
+        }
+        if (seq > 0 && multicast != null) {
+            /* Count the reply once the multicast messages sent by the peer
+             * before replying are delivered */
+            multicast.whenDelivered(m.getPeer(), seq, 
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        /* After the updates just delivered */
+                        runOnResource(lock.getKey(), new Runnable() {
+                            @Override
+                            public void run() {
+                                ackReceived(lock, peer);
+                            }
+                        });
+                    }
+                });
+        } else {
+            /* Update the replies received */       
+            ackReceived(lock, peer);
+        }
+    }
+    
+    /**
+     * Sends again the multicast messages a peer missed.
+     * @param m The 'nack' message
+     */
+    private void receiveNack(Message m) {
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for nack.");
+            return;
+        }
+        if (multicast != null) {
+            multicast.repair(m.getPeer(), m.getNumber(), m.getLast());
+        }
+    }
+    
+    /**
+     * Hands a multicast message sent again to the multicast channel.
+     * @param m The 'repair' message
+     */
+    private void receiveRepair(Message m) {
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for repair.");
+            return;
+        }
+        Message repaired = m.getCarried();
+        if (repaired != null) {
+            repaired.setId(m.getId());
+            repaired.setSenderId(m.getPeer());
+        }
+        if (multicast != null) {
+            multicast.repaired(m.getPeer(), m.getNumber(), repaired);
+        }
+    }
+    
+    /**
+     * Removes the peers the tracker has dismissed.
+     * @param m The 'ping' message
+     */
+    private void receivePing(Message m) {
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for ping.");
+            return;
+        }
+        for (int i = 0; i < m.getSize(); i++) {
+            RemoteDevice dpeer = lookUpPeer(m.getId(i));
+            if (dpeer != null) {
+                removePeer(dpeer);
+                System.err.println("Tracker has dismissed peer " + dpeer.getId());
+            }
+        }
+    }
+    
+    /**
+     * Adds the resources of a chunk of the state sent by a peer.
+     * @param m The 'reply-askstate' or 'reply-statechunk' message
+     */
+    private void receiveState(Message m) {
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for state.");
+            return;
+        }
+        for (int i = 0; i < m.getSize(); i++) {
+            String key = m.getKey(i);
+            int value = m.getValue(i);
+            if (config.isTraceMessages()) {
+                System.out.println("Adding new resource: " + key + "=" + value);
+            }
+            if (!sharedResources.createIfAbsent(key, value)) {
+                System.err.println("Resource " + key + " was already created,"
+                    + " it will not be overwritten.");
+            }
+            /* The id of the resource, if it has one */
+            if (m.getId(i) != KeyDictionary.NONE && dictionary != null) {
+                dictionary.learn(m.getId(i), key);
+            }
+            /* We notify the application in case it is useful */
+            listener.resourceUpdate(key, value);
+        }
+    }
+    
+    /**
+     * Applies the update of a resource made by a peer, and notifies the
+     * listener.
+     * @param peer The peer that updated the resource
+     * @param key The id of the resource
+     * @param value The new value
+     */
+    public void applyUpdate(RemoteDevice peer, String key, int value) {
+        /* By setting the value we create it, with its lock, in case we
+         * don't have created it yet. */
+        sharedResources.setValue(key, value);
+        updated(peer, key, value);
+    }
+    
+    /**
+     * Applies the update of a resource found by its id, see applyUpdate.
+     * @param peer The peer that updated the resource
+     * @param lock The lock of the resource
+     * @param value The new value
+     */
+    private void applyUpdate(RemoteDevice peer, ResourceState lock, int value) {
+        lock.setValue(value);
+        updated(peer, lock.getKey(), value);
+    }
+    
+    /**
+     * Notifies the listener of the update of a resource made by a peer.
+     */
+    private void updated(RemoteDevice peer, String key, int value) {
+        if (config.isTraceMessages()) {
+            System.out.println("Peer " + peer.getId() + " updated resource"
+                + " " + key + "=" + value);
+        }
+        listener.resourceUpdate(key, value);
+    }
+    
+    /**
+     * Replies to the request of a peer for a chunk of the state.
+     * @param m The 'sync-askstate' message
+     * @return The chunk, as 'reply-statechunk' if there are more resources or
+     * 'reply-askstate' if it is the last one
+     */
+    private Message replyState(Message m) {
+        /* The request has the size of the chunk and the last key the peer
+         * received, the state is sent in the order of the keys */
+        int max = config.getStateChunkSize();
+        String after = null;
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for askstate.");
+        } else {
+            if (m.getNumber() > 0) {
+                max = (int) Math.max(1, Math.min(max, m.getNumber()));
+            }
+            after = m.getKey();
         }
-
-        try {
-            tracker.close();
-        } catch (IOException ioe) {
-            System.err.println("IOException while closing tracker "
-                + ioe.getMessage());
+        /* One more is read to know if this is the last chunk */
+        LinkedHashMap<String, Integer> resources = sharedResources.getValuesAfter(
+            after, Math.max(1, max) + 1);
+        Message reply = new Message(0, m.getPeer(), Opcode.REPLY_ASKSTATE);
+        /* The size of the entries as text, 'key|value|id&', the larger form */
+        int bytes = 0;
+        for (Map.Entry<String, Integer> resource : resources.entrySet()) {
+            if (reply.getSize() >= max || bytes >= STATE_CHUNK_BYTES) {
+                /* There are more, only the last chunk keeps the header of a
+                 * complete state, 'reply-askstate' */
+                reply.setHeader(Opcode.STATE_CHUNK.getHeader());
+                break;
+            }
+            int id = dictionary == null ? KeyDictionary.NONE 
+                : dictionary.getId(resource.getKey());
+            reply.addEntry(resource.getKey(), resource.getValue(), id, 0, 0);
+            bytes += utf8Length(resource.getKey()) + 1 
+                + String.valueOf(resource.getValue()).length() + 1
+                + (id == KeyDictionary.NONE ? 0 
+                    : Integer.toString(id, KeyDictionary.RADIX).length() + 1);
         }
-        
+        return reply;
     }
     
     /**
-     * The listen method for the devices. The devices will expect incoming messages
-     * one by one, and will process them as they come. There will be no separate
-     * threads for receiving and processing since there will be a timeout to process
-     * the incoming messages. This method should not be called directly by the application
-     * rather, start a new Thread and run it.
-     * The logic for handling the messages is in the receiveMessage method. This
-     * method should not be edited anymore.
-     * @throws IOException In case an unexpected error happens while reading connections
+     * @return the number of bytes of a text encoded as UTF-8
      */
-    private void listen() throws IOException {
-        
-        while(true) {
-            Socket peerSocket = serverSocket.accept();
-            peerSocket.setSoTimeout(5000);
-            DataInputStream in = new DataInputStream(peerSocket.getInputStream());
-            DataOutputStream out =new DataOutputStream(peerSocket.getOutputStream());
-
-            try {  
-                String ipAddress = peerSocket.getInetAddress().toString();
-                int senderId = in.readInt();
-                int port = in.readInt();
-                RemoteDevice sender = lookUpPeer(senderId);
-                
-                /* If the sender is the tracker */
-                if (senderId == -2) {
-                    sender = new RemoteDevice(-2, 
-                            peerSocket.getInetAddress().getHostAddress(), port);
-                }
-                /* If peer is not found, add it to the list */
-                if (sender == null) {
-                    sender = new RemoteDevice(senderId, 
-                        peerSocket.getInetAddress().getHostAddress(), port);
-                    peers.add(sender);
-                }
-                Message m = new Message(in.readInt(), sender, in.readUTF(), 
-                    in.readUTF());
-                /* If the message is sync then process the reply as soon as possible */
-                if (!m.getHeader().startsWith("sync-")) {
-                    receiveMessage(m);    
-                } else {
-                    Message reply = receiveMessageSync(m);
-                    out.writeInt(id);
-                    out.writeUTF(reply.getHeader());
-                    out.writeUTF(reply.getMessage());
-                }
-            } catch (SocketTimeoutException ste) {
-                System.err.println("Socket timeout from peer: "
-                    + peerSocket.getInetAddress().getHostAddress());
-            } catch (IOException ioe) {
-                System.err.println("IOE exception while receiving message from peer: " 
-                    + peerSocket.getInetAddress().getHostAddress());
-            } finally {
-                peerSocket.close();
+    private static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                /* 4 bytes for the pair */
+                length += 2;
+            } else {
+                length += 3;
             }
         }
+        return length;
     }
     
     /**
-     * The sending method that will execute the instructions necessary for a 
-     * message to reach the destination Socket. It's the opposite of the listen()
-     * method. It will act asynchronously for all messages, except if they are
-     * prefixed with 'sync-' in the header. 
-     * @param m The message to be sent.
-     * @throws SocketTimeoutException If during the communication a message takes
-     * more than 5 seconds to get through.
-     * @throws IOException If an IO error happens during the communication
-     * @throws UnkownHostException This shouldn't happen when using IP addresses.
+     * Opens the server of this device to be used in the P2P communication, the
+     * connections are accepted right away.
+     * @param port The port to be used as listener, 0 if a ephemeral (random) one 
+     * is to be assigned.
+     * @return The port number that was assigned, same as argument if not ephemeral.
+     * @throws IOException if the port could not be opened.
      */
-    public synchronized void send(Message m) throws SocketTimeoutException,
-            IOException, UnknownHostException {
-        
-        RemoteDevice peer = m.getPeer();
-        Message reply = null;
-        
-        Socket peerSocket = new Socket();
-        peerSocket.connect(new InetSocketAddress(peer.getIpAddress(), 
-            peer.getPort()), 5000);
-
-        DataInputStream in = new DataInputStream(peerSocket.getInputStream());
-        DataOutputStream out =new DataOutputStream(peerSocket.getOutputStream());
-
-        out.writeInt(id);
-        out.writeInt(serverSocket.getLocalPort());
-
-        messageId++;
-        out.writeInt(messageId);
-        out.writeUTF(m.getHeader());
-        out.writeUTF(m.getMessage());
+    public int setListener(int port) throws IOException {
         
-        /* If the message is sync, implement the receive instruction */
-        if (m.getHeader().startsWith("sync-")) {
-            int replyID = in.readInt();
-            String replyHeader = in.readUTF();
-            String replyMessage = in.readUTF();
-            receiveMessage(new Message(peer, replyHeader, replyMessage));
-        }
-
-        try {
-            peerSocket.close();
-        } catch (IOException ioe) {
-            System.err.println("IOException while closing peer "
-                + ioe.getMessage());
-        }
+        server = transport.listen(port, new InboundHandler(this));
+        return server.getPort();
     }
     
     /**
-     * Contains the logic to be implemented when a message from a peer is 
-     * received. The receive logic of sync reply messages MUST NOT use the send 
-     * method again, or it will be deadlocked. 
-     * @param m The incoming message from the peer;
+     * Sends a message to all the peers at once. The message is queued to every
+     * peer before any of them is written, so the peers are reached concurrently
+     * by their own writers. The messages that could not be queued are reported
+     * to deliveryFailed like the ones that could not be written.
+     * If multicast is enabled, new resources, updates and goodbyes are sent
+     * with a single datagram to the group instead. If the broadcast tree is
+     * enabled, they and the hellos are sent to the children of this device in
+     * the tree, and the deliveries are the ones to the children. If causal
+     * delivery is enabled, the new resources and updates are sent with the
+     * clock of the device as 'causal' messages. If total order is enabled,
+     * they are sent to the sequencer instead, which broadcasts them numbered.
+     * @param header The header of the message
+     * @param message The content of the message
+     * @return The deliveries of the message, to wait for the outcome per peer
      */
-    public synchronized void receiveMessage(Message m) {
-        
-        RemoteDevice peer = m.getPeer();
-        /* Debug */
-        if (!m.getHeader().equals("ping")) {
-            System.out.println(peer.getId() + "> " + m.getId() + ":" + m.getHeader() 
-                + ":" + m.getMessage());
+    public Broadcast broadcast(String header, String message) {
+        Broadcast broadcast = new Broadcast();
+        if (order != null && TotalOrder.isOrdered(header)) {
+            /* Sent by the sequencer, no peer is reached directly */
+            order.submit(header, message);
+            return broadcast;
         }
-        
-        /* Message handlers for every type of message */
-        
-        /* hello */
-        
-        if (m.getHeader().equals("hello")) {
-            if (!peers.contains(peer))
-                peers.add(peer);
-        
-        /* goodbye */
-        
-        } else if (m.getHeader().equals("goodbye")) {
-            peers.remove(peer);
-        
-        /* new_resource */
-        
-        } else if (m.getHeader().equals("new_resource")) {
-            StringTokenizer st = new StringTokenizer(m.getMessage(), "|");
-            try {
-                String key = st.nextToken();
-                getSharedResources().setValue(key, Integer.parseInt(st.nextToken()));
-                getSharedResources().initLock(key);
-            } catch (NoSuchElementException nsee) {
-                System.err.println("Incorrect format for new resource.");
-            } catch (NumberFormatException nfe) {
-                System.err.println("Incorrect format for new resource.");
-            }
-        
-        /* lock_resource */
-        
-        } else if (m.getHeader().equals("lock_resource")) {
-            StringTokenizer st = new StringTokenizer(m.getMessage(), "|");
-            try {
-                String key = st.nextToken();
-                ResourceState lock = sharedResources.getLock(key);
-                /* Parse the timestamps */
-                Calendar ct = Calendar.getInstance();
-                ct.setTimeInMillis(Long.parseLong(st.nextToken()));
-                long t = ct.getTimeInMillis();
-                Calendar ctj = Calendar.getInstance();    
-                /* We get our own timestamp just if we are going to use it */
-                if (lock.getState().equals("HELD") || lock.getState().equals("WANTED")) {                    
-                    ResourceRequest myRequest = lock.getRequester(-1);
-                    ctj.setTimeInMillis(myRequest.getTimestamp());
-                }
-                long tj = ctj.getTimeInMillis();
-                                
-                if (lock.getState().equals("HELD") 
-                        || (lock.getState().equals("WANTED") && (tj < t))) {
-                    lock.getRequestQueue().add(new ResourceRequest(peer, t));
-                } else {
-                    Message reply = new Message(peer, "lock_ack", key);
-                    send(reply);
-                }
-            } catch (NoSuchElementException nsee) {
-                System.err.println("Incorrect format for lock resource.");
-            } catch (NumberFormatException nfe) {
-                System.err.println("Incorrect format for lock resource.");
-            } catch (SocketTimeoutException ste) {
-                System.err.println("Timeout for the message: " + m.getId() 
-                    + "." + ste.getMessage());
-            } catch (UnknownHostException uhe) {
-                System.err.println("UHE for message: " + m.getId() 
-                    + "." + uhe.getMessage());
-            } catch (IOException ioe) {
-                System.err.println("IOE for message: " + m.getId() 
-                    + "." + ioe.getMessage());
-            }
-        
-        /* lock_ack */
-        
-        } else if (m.getHeader().equals("lock_ack")) {
-            
-            String key = m.getMessage();
-            
-            /* Update the number of replies received */       
-            ResourceState lock = sharedResources.getLock(key);
-            lock.setAcks(lock.getAcks() + 1);
-            /* If we have received acks from all peers */
-            if (lock.getAcks() == peers.size()) {
-                lock.setState("HELD");
-                /* We send the event to the main device so it knows we have
-                 * held the device.
-                 */
-                listener.lockGranted(key);
-            }
-     
-        /* ping, the pings include the list of peers the tracker considers have
-         * disconnected */
-        
-        } else if (m.getHeader().equals("ping")) {
-            String removePong = m.getMessage().substring(4, m.getMessage().length());
-            StringTokenizer st = new StringTokenizer(removePong, "|");
-            while (st.hasMoreTokens()) {
-                RemoteDevice dpeer = lookUpPeer(Integer.parseInt(st.nextToken()));
-                if (dpeer != null) {
-                    peers.remove(dpeer);
-                    System.err.println("Tracker has dismissed peer " + dpeer.getId());
-                }
-            }
-        
-        /* reply-askstate */
-        
-        } else if (m.getHeader().equals("reply-askstate")) {
-            if (!m.getMessage().equals("")) {
-                StringTokenizer st = new StringTokenizer(m.getMessage(), "&");
-                while (st.hasMoreTokens()) {
-                    StringTokenizer st2 = new StringTokenizer(st.nextToken(), "|");
-                    String key = st2.nextToken();
-                    String value = st2.nextToken();
-                    System.out.println("Adding new resource: " + key + "=" + value);
-                    if (sharedResources.getValues().containsKey(key)) {
-                        System.err.println("Resource " + key + " was already created,"
-                            + " it will not be overwritten.");
-                    } else {
-                        sharedResources.setValue(key, Integer.parseInt(value));
-                        sharedResources.initLock(key);
-                    }
-                    /* We notify the application in case it is useful */
-                    listener.resourceUpdate(key, Integer.parseInt(value));
+        ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
+        /* The route is chosen by the header of the message carried */
+        String route = header;
+        if (causal != null && CausalBuffer.isCausal(header)) {
+            message = causal.stamp(header, message);
+            header = "causal";
+        }
+        if (multicast != null && isMulticast(route)) try {
+            if (multicast.send(header, message)) {
+                /* The datagram reaches all peers, the gaps are repaired by
+                 * the MulticastChannel */
+                for (RemoteDevice peer : peersCopy) {
+                    Delivery delivery = new Delivery();
+                    delivery.complete(DeliveryOutcome.DELIVERED);
+                    broadcast.add(peer, delivery);
                 }
+                return broadcast;
             }
-            
-        /* update_resource */
-        
-        } else if (m.getHeader().equals("update_resource")) {
-            StringTokenizer st = new StringTokenizer(m.getMessage(), "|");
+        } catch (IOException ioe) {
+            System.err.println("Could not multicast " + header + ", "
+                + ioe.getMessage());
+        }
+        if (tree != null && isTreeBroadcast(route)) {
+            return tree.broadcast(header, message);
+        }
+        for (RemoteDevice peer : peersCopy) {
+            Message m = new Message(peer, header, message);
+            Delivery delivery = new Delivery();
+            m.setDelivery(delivery);
+            broadcast.add(peer, delivery);
             try {
-                String key = st.nextToken();
-                String value = st.nextToken();
-                
-                /* By setting the value we create it in case we don't have
-                 * created it yet. */
-                sharedResources.setValue(key, Integer.parseInt(value));
-                System.out.println("Peer " + peer.getId() + " updated resource"
-                    + " " + key + "=" + value);
-                /* But we need to check that the lock is initialized. */
-                if (sharedResources.getLock(key) == null) {
-                    sharedResources.initLock(key);
-                }
-            } catch (NoSuchElementException nsee) {
-                System.err.println("Incorrect format for lock resource.");
-            } catch (NumberFormatException nfe) {
-                System.err.println("Incorrect format for lock resource.");
+                send(m);
+            } catch (IOException ioe) {
+                deliveryFailed(m, ioe);
             }
         }
+        return broadcast;
     }
     
     /**
-     * Contains the logic to be implemented when a message from a peer is 
-     * received. This method is special for sync replies, since it returns the 
-     * reply rather than calling for the send message again. 
-     * @param m The incoming message from the peer;
+     * @return true if the messages with this header are sent by multicast
      */
-    public synchronized Message receiveMessageSync(Message m) {
-        
-        RemoteDevice peer = m.getPeer();
-        /* Debug */
-        if (!m.getHeader().equals("ping")) {
-            System.out.println(peer.getId() + "> " + m.getId() + ":" + m.getHeader() 
-                + ":" + m.getMessage());
+    private boolean isMulticast(String header) {
+        return header.equals("new_resource") || header.equals("update_resource")
+            || header.equals("update_batch") || header.equals("goodbye")
+            || header.equals("ordered");
+    }
+    
+    /**
+     * @return true if the messages with this header are sent through the tree
+     */
+    private boolean isTreeBroadcast(String header) {
+        return isMulticast(header) || header.equals("hello");
+    }
+    
+    /**
+     * Replies to a lock request of a peer. If multicast is enabled the reply
+     * carries the last sequence number multicast by this device, so the peer
+     * does not get the lock before receiving the updates made while this
+     * device held it. If gossip is enabled the reply carries the latest version
+     * of the resource known by this device, for the same reason. If the
+     * broadcast tree is enabled the reply follows the path of the updates
+     * through the tree. If causal delivery is enabled the reply carries the
+     * clock of this device and waits in the buffer of the peer for the
+     * updates this device had seen.
+     * @param peer The peer that requested the lock
+     * @param key The id of the resource
+     * @throws IOException If the reply could not be queued
+     */
+    private void sendLockAck(RemoteDevice peer, String key) throws IOException {
+        String message = reference(key);
+        long seq = multicast == null ? 0 : multicast.getSequence();
+        String version = gossip == null ? null : gossip.getVersion(key);
+        if (seq > 0 || version != null) {
+            message += "|" + seq;
         }
-        
-        /* Message handlers for every type of message */
-        
-        /* sync-askstate */
-        
-        if (m.getHeader().equals("sync-askstate")) {
-            /* Update the number of replies received */ 
-            String replyHeader = "reply-askstate";
-            String replyMessage = "";
-            HashMap<String, Integer> resources = new HashMap<String, Integer>(sharedResources.getValues());
-            
-            for (String key : resources.keySet()) {
-                replyMessage += key + "|" + resources.get(key) + "&";
-            }
-            if (!replyMessage.equals("")) {
-                replyMessage = replyMessage.substring(0, replyMessage.length() - 1);
-            }
-            
-            
-            return new Message(peer, replyHeader, replyMessage);     
-        } else {
-            return null;
+        if (version != null) {
+            message += "|" + version;
+        }
+        String header = "lock_ack";
+        if (causal != null) {
+            message = causal.stamp(header, message);
+            header = "causal";
+        }
+        if (tree != null) {
+            tree.send(peer, header, message);
+            return;
         }
+        send(new Message(peer, header, message));
     }
     
     /**
-     * Sets the serverSocket of this device to be used in the P2P communication
-     * @param port The port to be used as listener, 0 if a ephemeral (random) one 
-     * is to be assigned.
-     * @return The port number that was assigned, same as argument if not ephemeral.
-     * @throws IOException if the port could not be opened.
+     * Waits for the outcome of a broadcast up to the timeout in the 
+     * configuration, and prints the peers that were not reached.
+     * @param broadcast The broadcast
+     * @param action What the broadcast was for, to print it
      */
-    public int setListener(int port) throws IOException {
-        
-        serverSocket = new ServerSocket(port);
-        return serverSocket.getLocalPort();
+    private void awaitBroadcast(Broadcast broadcast, String action) {
+        try {
+            Map<RemoteDevice, DeliveryOutcome> outcomes = 
+                broadcast.await(config.getBroadcastTimeout());
+            for (Map.Entry<RemoteDevice, DeliveryOutcome> entry : outcomes.entrySet()) {
+                if (entry.getValue() == DeliveryOutcome.TIMED_OUT) {
+                    System.err.println("Timeout when " + action + " to: " 
+                        + entry.getKey().getId());
+                }
+            }
+        } catch (InterruptedException ie) {
+            System.err.println("Interrupted when " + action);
+        }
     }
     
     /**
@@ -426,71 +1498,55 @@ public class Device implements Runnable {
      */
     public void sayHello() {
         
-        String header = "hello";
-        String message = "";
-        ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
-        for (RemoteDevice peer : peersCopy) try {
-            send(new Message(peer, header, message));
-        } catch (SocketTimeoutException ste) {
-            System.err.println("Timeout when saying hello to: " + peer.getId() 
-                + "." + ste.getMessage());
-        } catch (UnknownHostException uhe) {
-            System.err.println("UHE when saying hello to: " + peer.getId() 
-                + "." + uhe.getMessage());
-        } catch (IOException ioe) {
-            System.err.println("IOE when saying hello to: " + peer.getId() 
-                + "." + ioe.getMessage());
-        }
+        awaitBroadcast(broadcast("hello", ""), "saying hello");
     }
     
     /**
      * Send a message notifying all peers you are exiting the network.
      * The messages has the header 'goodbye'. If an error happens while saying 
-     * goodbye it will just print it.
+     * goodbye it will just print it. Since messages are sent asynchronously it
+     * waits until they are written, up to the broadcast timeout.
      */
     public void sayGoodbye() throws SocketTimeoutException, UnknownHostException, 
             IOException {
      
-        String header = "goodbye";
-        String message = "";
-        ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
-        for (RemoteDevice peer : peersCopy) try {
-            send(new Message(peer, header, message));
-        } catch (SocketTimeoutException ste) {
-            System.err.println("Timeout when saying goodbye to: " + peer.getId() 
-                + "." + ste.getMessage());
-        } catch (UnknownHostException uhe) {
-            System.err.println("UHE when saying goodbye to: " + peer.getId() 
-                + "." + uhe.getMessage());
-        } catch (IOException ioe) {
-            System.err.println("IOE when saying goodbye to: " + peer.getId() 
-                + "." + ioe.getMessage());
+        if (batcher != null) {
+            batcher.close();
+        }
+        if (gossip != null) {
+            gossip.close();
+        }
+        awaitBroadcast(broadcast("goodbye", ""), "saying goodbye");
+        if (multicast != null) {
+            multicast.close();
         }
     }
     
     /**
      * Adds a new shared resource, and sends the key and value to the
-     * rest of the peers. The message has the header 'new_resource'.
+     * rest of the peers. The message has the header 'new_resource'. If gossip
+     * is enabled the resource is spread by the rounds of gossip instead. If
+     * the keys are interned the message has the id given to the resource too.
      * @param key The id for the resource
      * @param value The value associated with it
+     * @throws IllegalArgumentException If the keys are interned and the key
+     * starts with the prefix of the ids
      */
     public void addNewResource(String key, int value) {
-        getSharedResources().setValue(key, value);
-        getSharedResources().initLock(key);
-        String header = "new_resource";
-        String message = key + "|" + value;
-        ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
-        for (RemoteDevice peer : peersCopy) try {
-            send(new Message(peer, header, message));
-        } catch (SocketTimeoutException ste) {
-            System.err.println("Timeout notifying new resource to: " + peer.getId() 
-                + "." + ste.getMessage());
-        } catch (UnknownHostException uhe) {
-            System.err.println("UHE notifying new resource to: " + peer.getId() 
-                + "." + uhe.getMessage());
-        } catch (IOException ioe) {
-            System.err.println("IOE notifying new resource to: " + peer.getId() 
-                + "." + ioe.getMessage());
+        if (dictionary != null && key.length() > 0 
+                && key.charAt(0) == KeyDictionary.PREFIX) {
+            throw new IllegalArgumentException("The key can not start with '" 
+                + KeyDictionary.PREFIX + "'.");
+        }
+        sharedResources.setValue(key, value);
+        if (gossip != null) {
+            gossip.publish(key, value);
+        } else if (dictionary != null) {
+            int id = dictionary.assign(key, getId());
+            broadcast("new_resource", key + "|" + value + (id == KeyDictionary.NONE 
+                ? "" : "|" + Integer.toString(id, KeyDictionary.RADIX)));
+        } else {
+            broadcast("new_resource", key + "|" + value);
         }
     }
     
@@ -515,32 +1571,29 @@ public class Device implements Runnable {
         ResourceState lock = getSharedResources().getLock(key);
         if (lock == null) {
             throw new NullPointerException("Resource does not exist: " + key);
-        } else if (lock.getState().equals("WANTED") || lock.getState().equals("HELD")) {
-            throw new NullPointerException("The resource has been requested already.");
         }
         Calendar timestamp = Calendar.getInstance();
-        lock.setState("WANTED");
-        /* We add ourselves to the list just to keep track of timestamp */
-        RemoteDevice thisDevice = new RemoteDevice(-1);
-        lock.getRequestQueue().add(new ResourceRequest(thisDevice, timestamp.getTimeInMillis()));
+        synchronized (lock) {
+            if (lock.getState().equals("WANTED") || lock.getState().equals("HELD")) {
+                throw new NullPointerException("The resource has been requested already.");
+            }
+            lock.setState("WANTED");
+            lock.clearAcks();
+            /* We add ourselves to the list just to keep track of timestamp */
+            RemoteDevice thisDevice = new RemoteDevice(-1);
+            lock.getRequestQueue().add(new ResourceRequest(thisDevice, timestamp.getTimeInMillis()));
+        }
         
-        String header = "lock_resource";
-        String message = key + "|" + timestamp.getTimeInMillis();
-        ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
+        /* The peers that leave are not waited for, see checkGranted */
+        Broadcast broadcast = broadcast("lock_resource", 
+            reference(key) + "|" + timestamp.getTimeInMillis());
         
-        /* If peers copy is emtpy grant the lock right away */
-        if (peersCopy.isEmpty()) {
-            lock.setState("HELD");
-            listener.lockGranted(key);
-        } else for (RemoteDevice peer : peersCopy) {
-            try {
-                send(new Message(peer, header, message));
-            } catch (IOException ioe) {
-                System.err.println("Could not reach peer: " + peer.getId() + ", "
-                        + ioe.getMessage());
-                /* The algorithm will ignore the peer for the voting */
-                lock.setAcks(lock.getAcks() + 1);
+        /* If there are no peers grant the lock right away */
+        if (broadcast.size() == 0) {
+            synchronized (lock) {
+                lock.setState("HELD");
             }
+            listener.lockGranted(key);
         }
     }
     
@@ -563,25 +1616,34 @@ public class Device implements Runnable {
         ResourceState lock = getSharedResources().getLock(key);
         if (lock == null) {
             throw new NullPointerException("Resource does not exist: " + key);
-        } else if (!lock.getState().equals("HELD")) {
-            throw new NullPointerException("The resource is not being held.");
         }
-        
-        lock.setState("RELEASED");
-        lock.setAcks(0);
-        /* We remove ourselves from the queue and send pending replies */
-        ArrayList<ResourceRequest> locks = lock.getRequestQueue();
-        locks.remove(0);
-        while (!locks.isEmpty()) {
-            ResourceRequest req = locks.remove(0);
-            Message reply = new Message(req.getRequester(), "lock_ack", key);
-            send(reply);
+        synchronized (lock) {
+            if (!lock.getState().equals("HELD")) {
+                throw new NullPointerException("The resource is not being held.");
+            }
+
+            /* The peers must receive the updates before they can get the lock */
+            if (batcher != null) {
+                batcher.flush();
+            }
+            lock.setState("RELEASED");
+            lock.clearAcks();
+            /* We remove ourselves from the queue and send pending replies */
+            ArrayList<ResourceRequest> locks = lock.getRequestQueue();
+            locks.remove(0);
+            while (!locks.isEmpty()) {
+                ResourceRequest req = locks.remove(0);
+                sendLockAck(req.getRequester(), key);
+            }
         }
     }
     
     /**
      * Updates the value of a resource, and sends the corresponding messages to the
-     * rest of the peers. 
+     * rest of the peers. If batching is enabled in the configuration the update
+     * is sent with the rest of the updates of the batch window, and only the 
+     * last value of the resource in the window is sent. If gossip is enabled
+     * the update is spread by the rounds of gossip instead.
      * The message has the header 'update_resource'.
      * @param key The id of the resource
      * @throws NullPointerException If the resource does not exist, or it is not
@@ -592,22 +1654,44 @@ public class Device implements Runnable {
         ResourceState lock = getSharedResources().getLock(key);
         if (lock == null) {
             throw new NullPointerException("Resource does not exist: " + key);
-        } else if (!lock.getState().equals("HELD")) {
-            throw new NullPointerException("The resource is not being held.");
         }
-        
-        getSharedResources().setValue(key, value);
-        
-        ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
-        for (RemoteDevice peer : peersCopy) {
-            Message m = new Message(peer, "update_resource", key + "|" + value);
-            try {
-                send(m);
-            } catch (IOException ioe) {
-                System.err.println("The resource update could not be sent to "
-                    + "the peer " + peer.getId());
+        synchronized (lock) {
+            if (!lock.getState().equals("HELD")) {
+                throw new NullPointerException("The resource is not being held.");
+            }
+            getSharedResources().setValue(key, value);
+            if (gossip != null) {
+                /* The version follows the order of the writes */
+                gossip.publish(key, value);
+                return;
             }
         }
+        if (batcher != null) {
+            batcher.add(key, value);
+        } else {
+            broadcast("update_resource", reference(key) + "|" + value);
+        }
+    }
+    
+    /**
+     * Writes the value of a resource without holding its lock. Only with total
+     * order enabled: the write is sent to the sequencer and applied by all
+     * the devices, this one included, in the order of the sequencer, so the
+     * devices that write the same resource at once end with the same value.
+     * The message has the header 'update_resource'.
+     * @param key The id of the resource
+     * @param value The new value
+     * @throws NullPointerException If the resource does not exist
+     * @throws IllegalStateException If total order is not enabled
+     */
+    public void writeResource(String key, int value) throws NullPointerException {
+        if (order == null) {
+            throw new IllegalStateException("Total order is not enabled.");
+        }
+        if (getSharedResources().getLock(key) == null) {
+            throw new NullPointerException("Resource does not exist: " + key);
+        }
+        order.submit("update_resource", reference(key) + "|" + value);
     }
     
     /**
@@ -620,14 +1704,62 @@ public class Device implements Runnable {
     public void askForState() throws SocketTimeoutException, IOException {
         
         /* Ask the game's state to the peers synchronously until one of them 
-         * replies. */
+         * replies. The state comes in chunks, every chunk is asked for after
+         * the previous one is applied, so only one is in memory at a time.
+         * If a peer fails the next one continues after the last key received */
         String header = "sync-askstate";
-        String message = "";
+        String after = null;
         ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
         for (RemoteDevice peer : peersCopy) {
             try {
-                send(new Message(peer, header, message));
-                /* As soon as we receive a succesful reply, break */
+                /* The clock and the next ordered message first, the state has
+                 * at least the updates they count */
+                if (causal != null) {
+                    Message clock = awaitReply(request(new Message(peer, 
+                        "sync-askclock", "")));
+                    if (clock.getHeader().equals("reply-askclock")) {
+                        try {
+                            causal.receivedState(VectorClock.parse(clock.getMessage()));
+                        } catch (NumberFormatException nfe) {
+                            System.err.println("Incorrect format for askclock.");
+                        }
+                    }
+                }
+                if (order != null) {
+                    Message next = awaitReply(request(new Message(peer, 
+                        "sync-askorder", "")));
+                    if (next.getHeader().equals("reply-askorder")) {
+                        order.receivedState(next.getMessage());
+                    }
+                }
+                Message delivered = null;
+                if (multicast != null) {
+                    delivered = awaitReply(request(new Message(peer, 
+                        "sync-askmulticast", "")));
+                }
+                while (true) {
+                    String message = config.getStateChunkSize()
+                        + (after == null ? "" : "|" + after);
+                    Message reply = awaitReply(request(new Message(peer, header, 
+                        message)));
+                    receiveMessage(reply);
+                    if (reply.getOpcode() != Opcode.STATE_CHUNK || !reply.hasFields()
+                            || reply.getSize() == 0) {
+                        break;
+                    }
+                    after = reply.getKey(reply.getSize() - 1);
+                }
+                /* The multicast messages after the ones in the state are
+                 * delivered once it is applied */
+                if (delivered != null 
+                        && delivered.getHeader().equals("reply-askmulticast")) {
+                    try {
+                        multicast.receivedState(delivered.getMessage(), peers);
+                    } catch (NumberFormatException nfe) {
+                        System.err.println("Incorrect format for askmulticast.");
+                    }
+                }
+                /* As soon as we receive the whole state, break */
                  break;
             } catch (SocketTimeoutException ste) {
                 System.err.println("Peer " + peer.getId() + " is not responding.");
@@ -648,10 +1780,84 @@ public class Device implements Runnable {
     /**
      * @return the peers
      */
-    public ArrayList<RemoteDevice> getPeers() {
+    public List<RemoteDevice> getPeers() {
         return peers;
     }
     
+    /**
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * @return the port in which the device listens for P2P messages
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+    
+    /**
+     * Returns the time to wait for a peer, to connect or for a reply, from its
+     * round trip time and bounded by the timeouts of the configuration.
+     * @param peer The peer
+     * @return The timeout in milliseconds
+     */
+    public long getTimeout(RemoteDevice peer) {
+        return peer.getRtt().getTimeout(config.getMinTimeout(),
+            config.getRequestTimeout());
+    }
+    
+    /**
+     * @return the gossip of the device, null if disabled
+     */
+    public Gossip getGossip() {
+        return gossip;
+    }
+    
+    /**
+     * @return the causal buffer of the device, null if disabled
+     */
+    public CausalBuffer getCausalBuffer() {
+        return causal;
+    }
+    
+    /**
+     * @return the total order of the device, null if disabled
+     */
+    public TotalOrder getTotalOrder() {
+        return order;
+    }
+    
+    /**
+     * @return the executor of the messages of the resources, null if disabled
+     */
+    public ResourceExecutor getResourceExecutor() {
+        return executor;
+    }
+    
+    /**
+     * @return the dictionary of the ids of the resources, null if disabled
+     */
+    public KeyDictionary getKeyDictionary() {
+        return dictionary;
+    }
+    
+    /**
+     * @return the dispatcher of the events of the listener, null if disabled
+     */
+    public ListenerDispatcher getListenerDispatcher() {
+        return dispatcher;
+    }
+    
+    /**
+     * @return the transport that moves the frames of the device
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+    
     /**
      * @param id the id to set
      */
@@ -665,8 +1871,8 @@ public class Device implements Runnable {
      * @return The peer object, null if not found.
      */
     public RemoteDevice lookUpPeer(int id) {
-        ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
-        for (RemoteDevice peer : peersCopy) {
+        /* The iterator of the list does not see later changes */
+        for (RemoteDevice peer : peers) {
             if (peer.getId() == id)
                 return peer;
         }
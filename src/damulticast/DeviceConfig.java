@@ -0,0 +1,546 @@
+
+package damulticast;
+
+import java.util.EnumMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Contains the settings of a device that can be tuned by the application. The
+ * default values are the ones used by the command line demo.
+ * @author cesar
+ */
+public class DeviceConfig {
+    
+    /** The number of messages that can wait to be sent to a single peer, in
+     * every Lane */
+    private int queueCapacity;
+    /** What to do when the queue of a peer is full */
+    private OverflowPolicy overflowPolicy;
+    /** The number of times a message is written again after a failure */
+    private int maxRetries;
+    /** The time to wait before writing a message again, in milliseconds */
+    private long retryDelay;
+    /** The time to wait for a broadcast to reach all peers, in milliseconds */
+    private long broadcastTimeout;
+    /** The longest time to wait for a peer, to connect or for the reply of a
+     * 'sync-' request, in milliseconds. Used until its round trip time is known */
+    private long requestTimeout;
+    /** The shortest time to wait for a peer, in milliseconds */
+    private long minTimeout;
+    /** The time updates wait to be batched, in milliseconds, 0 to not batch */
+    private long batchWindow;
+    /** The number of updated resources that makes a batch be sent right away */
+    private int batchSize;
+    /** The multicast group for new resources, updates and goodbyes, null to
+     * send them by unicast */
+    private String multicastGroup;
+    /** The port of the multicast group */
+    private int multicastPort;
+    /** How the connections are serviced */
+    private ThreadMode threadMode;
+    /** The transport for the frames, null for the default of the threadMode */
+    private Transport transport;
+    /** If the peers in the same host are reached through shared memory */
+    private boolean sharedMemory;
+    /** The times the reader of a shared memory connection checks for the next
+     * frame before yielding, see SharedMemoryTransport */
+    private int sharedMemorySpins;
+    /** The messages written in a row from every Lane */
+    private EnumMap<Lane, Integer> laneWeights;
+    /** The most resources asked for in every chunk of the state */
+    private int stateChunkSize;
+    /** The peers contacted in every round of gossip, 0 to send the new
+     * resources and updates to every peer instead */
+    private int gossipFanout;
+    /** The time between rounds of gossip, in milliseconds */
+    private long gossipPeriod;
+    /** The peers that must already know an update before it stops being
+     * gossiped */
+    private int gossipStopCount;
+    /** The children of every device in the tree the broadcasts are sent
+     * through, 0 to send them to every peer */
+    private int treeArity;
+    /** If the updates are delivered in causal order */
+    private boolean causalDelivery;
+    /** The time an update can wait for the ones it depends on, in
+     * milliseconds */
+    private long causalTimeout;
+    /** If the new resources and updates are delivered in the same order by
+     * all the devices */
+    private boolean totalOrder;
+    /** The time a gap in the ordered messages waits before it is asked for,
+     * in milliseconds */
+    private long orderGapTimeout;
+    /** The threads that handle the messages of different resources in
+     * parallel, 0 to handle the messages on the thread that receives them */
+    private int resourceThreads;
+    /** Calls the listener of the application, null to call it on the threads
+     * of the protocol */
+    private Executor listenerExecutor;
+    /** The events that can wait for the listener executor */
+    private int listenerQueueCapacity;
+    /** If the resources are referenced by compact ids instead of their keys
+     * in the messages */
+    private boolean internKeys;
+    /** If the messages received and the updates applied are printed, which
+     * makes the text of every message */
+    private boolean traceMessages;
+    
+    public DeviceConfig() {
+        this.queueCapacity = 1024;
+        this.overflowPolicy = OverflowPolicy.DROP_NEWEST;
+        this.maxRetries = 2;
+        this.retryDelay = 500;
+        this.broadcastTimeout = 5000;
+        this.requestTimeout = 5000;
+        this.minTimeout = 200;
+        this.batchWindow = 10;
+        this.batchSize = 64;
+        this.multicastGroup = null;
+        this.multicastPort = 4446;
+        this.threadMode = ThreadMode.SELECTOR;
+        this.transport = null;
+        this.sharedMemory = false;
+        this.sharedMemorySpins = SharedMemoryTransport.DEFAULT_SPINS;
+        this.stateChunkSize = 256;
+        this.gossipFanout = 0;
+        this.gossipPeriod = 200;
+        this.gossipStopCount = 3;
+        this.treeArity = 0;
+        this.causalDelivery = false;
+        this.causalTimeout = 5000;
+        this.totalOrder = false;
+        this.orderGapTimeout = 500;
+        this.resourceThreads = 0;
+        this.listenerExecutor = null;
+        this.listenerQueueCapacity = 1024;
+        this.internKeys = false;
+        this.traceMessages = false;
+        this.laneWeights = new EnumMap<Lane, Integer>(Lane.class);
+        for (Lane lane : Lane.values()) {
+            laneWeights.put(lane, lane.getDefaultWeight());
+        }
+    }
+
+    /**
+     * @return the queueCapacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity the queueCapacity to set
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return the overflowPolicy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy the overflowPolicy to set
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the maxRetries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries the maxRetries to set
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the retryDelay
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * @param retryDelay the retryDelay to set
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * @return the broadcastTimeout
+     */
+    public long getBroadcastTimeout() {
+        return broadcastTimeout;
+    }
+
+    /**
+     * @param broadcastTimeout the broadcastTimeout to set
+     */
+    public void setBroadcastTimeout(long broadcastTimeout) {
+        this.broadcastTimeout = broadcastTimeout;
+    }
+
+    /**
+     * @return the requestTimeout
+     */
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * @param requestTimeout the requestTimeout to set
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * @return the minTimeout
+     */
+    public long getMinTimeout() {
+        return minTimeout;
+    }
+
+    /**
+     * @param minTimeout the minTimeout to set
+     */
+    public void setMinTimeout(long minTimeout) {
+        this.minTimeout = minTimeout;
+    }
+
+    /**
+     * @return the batchWindow
+     */
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * @param batchWindow the batchWindow to set
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * @return the batchSize
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the batchSize to set
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the multicastGroup
+     */
+    public String getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /**
+     * @param multicastGroup the multicastGroup to set
+     */
+    public void setMulticastGroup(String multicastGroup) {
+        this.multicastGroup = multicastGroup;
+    }
+
+    /**
+     * @return the multicastPort
+     */
+    public int getMulticastPort() {
+        return multicastPort;
+    }
+
+    /**
+     * @param multicastPort the multicastPort to set
+     */
+    public void setMulticastPort(int multicastPort) {
+        this.multicastPort = multicastPort;
+    }
+
+    /**
+     * @return the threadMode
+     */
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * @param threadMode the threadMode to set
+     */
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * @return the transport
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param transport the transport to set
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return the sharedMemory
+     */
+    public boolean isSharedMemory() {
+        return sharedMemory;
+    }
+
+    /**
+     * @param sharedMemory the sharedMemory to set
+     */
+    public void setSharedMemory(boolean sharedMemory) {
+        this.sharedMemory = sharedMemory;
+    }
+
+    /**
+     * @return the sharedMemorySpins
+     */
+    public int getSharedMemorySpins() {
+        return sharedMemorySpins;
+    }
+
+    /**
+     * @param sharedMemorySpins the sharedMemorySpins to set
+     */
+    public void setSharedMemorySpins(int sharedMemorySpins) {
+        this.sharedMemorySpins = sharedMemorySpins;
+    }
+
+    /**
+     * @param lane The lane
+     * @return the weight of the lane
+     */
+    public int getLaneWeight(Lane lane) {
+        return laneWeights.get(lane);
+    }
+
+    /**
+     * @param lane The lane
+     * @param weight the weight of the lane to set
+     */
+    public void setLaneWeight(Lane lane, int weight) {
+        laneWeights.put(lane, weight);
+    }
+
+    /**
+     * @return the stateChunkSize
+     */
+    public int getStateChunkSize() {
+        return stateChunkSize;
+    }
+
+    /**
+     * @param stateChunkSize the stateChunkSize to set
+     */
+    public void setStateChunkSize(int stateChunkSize) {
+        this.stateChunkSize = stateChunkSize;
+    }
+
+    /**
+     * @return the gossipFanout
+     */
+    public int getGossipFanout() {
+        return gossipFanout;
+    }
+
+    /**
+     * @param gossipFanout the gossipFanout to set
+     */
+    public void setGossipFanout(int gossipFanout) {
+        this.gossipFanout = gossipFanout;
+    }
+
+    /**
+     * @return the gossipPeriod
+     */
+    public long getGossipPeriod() {
+        return gossipPeriod;
+    }
+
+    /**
+     * @param gossipPeriod the gossipPeriod to set
+     */
+    public void setGossipPeriod(long gossipPeriod) {
+        this.gossipPeriod = gossipPeriod;
+    }
+
+    /**
+     * @return the gossipStopCount
+     */
+    public int getGossipStopCount() {
+        return gossipStopCount;
+    }
+
+    /**
+     * @param gossipStopCount the gossipStopCount to set
+     */
+    public void setGossipStopCount(int gossipStopCount) {
+        this.gossipStopCount = gossipStopCount;
+    }
+
+    /**
+     * @return the treeArity
+     */
+    public int getTreeArity() {
+        return treeArity;
+    }
+
+    /**
+     * @param treeArity the treeArity to set
+     */
+    public void setTreeArity(int treeArity) {
+        this.treeArity = treeArity;
+    }
+
+    /**
+     * @return the causalDelivery
+     */
+    public boolean isCausalDelivery() {
+        return causalDelivery;
+    }
+
+    /**
+     * @param causalDelivery the causalDelivery to set
+     */
+    public void setCausalDelivery(boolean causalDelivery) {
+        this.causalDelivery = causalDelivery;
+    }
+
+    /**
+     * @return the causalTimeout
+     */
+    public long getCausalTimeout() {
+        return causalTimeout;
+    }
+
+    /**
+     * @param causalTimeout the causalTimeout to set
+     */
+    public void setCausalTimeout(long causalTimeout) {
+        this.causalTimeout = causalTimeout;
+    }
+
+    /**
+     * @return the totalOrder
+     */
+    public boolean isTotalOrder() {
+        return totalOrder;
+    }
+
+    /**
+     * @param totalOrder the totalOrder to set
+     */
+    public void setTotalOrder(boolean totalOrder) {
+        this.totalOrder = totalOrder;
+    }
+
+    /**
+     * @return the orderGapTimeout
+     */
+    public long getOrderGapTimeout() {
+        return orderGapTimeout;
+    }
+
+    /**
+     * @param orderGapTimeout the orderGapTimeout to set
+     */
+    public void setOrderGapTimeout(long orderGapTimeout) {
+        this.orderGapTimeout = orderGapTimeout;
+    }
+
+    /**
+     * @return the resourceThreads
+     */
+    public int getResourceThreads() {
+        return resourceThreads;
+    }
+
+    /**
+     * @param resourceThreads the resourceThreads to set
+     */
+    public void setResourceThreads(int resourceThreads) {
+        this.resourceThreads = resourceThreads;
+    }
+
+    /**
+     * @return the listenerExecutor
+     */
+    public Executor getListenerExecutor() {
+        return listenerExecutor;
+    }
+
+    /**
+     * @param listenerExecutor the listenerExecutor to set
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * @return the listenerQueueCapacity
+     */
+    public int getListenerQueueCapacity() {
+        return listenerQueueCapacity;
+    }
+
+    /**
+     * @param listenerQueueCapacity the listenerQueueCapacity to set
+     */
+    public void setListenerQueueCapacity(int listenerQueueCapacity) {
+        this.listenerQueueCapacity = listenerQueueCapacity;
+    }
+
+    /**
+     * @return the internKeys
+     */
+    public boolean isInternKeys() {
+        return internKeys;
+    }
+
+    /**
+     * @param internKeys the internKeys to set
+     */
+    public void setInternKeys(boolean internKeys) {
+        this.internKeys = internKeys;
+    }
+
+    /**
+     * @return the traceMessages
+     */
+    public boolean isTraceMessages() {
+        return traceMessages;
+    }
+
+    /**
+     * @param traceMessages the traceMessages to set
+     */
+    public void setTraceMessages(boolean traceMessages) {
+        this.traceMessages = traceMessages;
+    }
+}
@@ -5,9 +5,11 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Implements the command line demo for devices in the P2P network.
@@ -28,13 +30,60 @@ public class Device_Main implements RicartListener {
     public void mailImpl(String args[]) {
         
         if (args.length < 1) {
-            System.err.println("Usage: device.sh <ip-address>\n"
-                + "ip-address: The tracker's ip address");
+            System.err.println("Usage: device.sh <ip-address> [multicast-group] "
+                + "[selector|platform|virtual] [shm] [gossip] [tree] [causal] [order] [parallel] [async] [intern]\n"
+                + "ip-address: The tracker's ip address\n"
+                + "multicast-group: The group to send updates by multicast\n"
+                + "selector|platform|virtual: The threads for the connections\n"
+                + "shm: Reach the devices in this host through shared memory\n"
+                + "gossip: Spread the updates by gossip to 3 peers at a time\n"
+                + "tree: Send the updates through a tree of 2 children per device\n"
+                + "causal: Deliver the updates in causal order\n"
+                + "order: Deliver the updates in the same order everywhere\n"
+                + "parallel: Handle the messages of different resources in parallel\n"
+                + "async: Call this listener on a thread of its own\n"
+                + "intern: Reference the resources by compact ids in the messages");
             System.exit(1);
         }
         
         String serverIP = args[0];
-        Device device = new Device(this);
+        final DeviceConfig config = new DeviceConfig();
+        config.setTraceMessages(true);
+        boolean async = false;
+        for (int i = 1; i < args.length; i++) {
+            ThreadMode mode = ThreadMode.fromName(args[i]);
+            if (mode != null) {
+                config.setThreadMode(mode);
+            } else if (args[i].equals("shm")) {
+                config.setSharedMemory(true);
+            } else if (args[i].equals("gossip")) {
+                config.setGossipFanout(3);
+            } else if (args[i].equals("tree")) {
+                config.setTreeArity(2);
+            } else if (args[i].equals("causal")) {
+                config.setCausalDelivery(true);
+            } else if (args[i].equals("order")) {
+                config.setTotalOrder(true);
+            } else if (args[i].equals("parallel")) {
+                config.setResourceThreads(Runtime.getRuntime().availableProcessors());
+            } else if (args[i].equals("async")) {
+                async = true;
+            } else if (args[i].equals("intern")) {
+                config.setInternKeys(true);
+            } else {
+                config.setMulticastGroup(args[i]);
+            }
+        }
+        if (async) {
+            config.setListenerExecutor(Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return Threads.newThread(config.getThreadMode(), r, "listener");
+                    }
+                }));
+        }
+        Device device = new Device(this, config);
         
         /* Establish the connection with tracker */
         try {
@@ -85,6 +134,36 @@ public class Device_Main implements RicartListener {
                             + peer.getIpAddress() + ":" + peer.getPort());
                     }
                 
+                /* rtt, prints the round trip time and timeout of the peers */
+                
+                } else if (command.equals("rtt")) {
+                    for (RemoteDevice peer : device.getPeers()) {
+                        RttEstimator rtt = peer.getRtt();
+                        System.out.println(peer.getId() + " -> srtt " 
+                            + rtt.getSmoothedRtt() + "us, rttvar " 
+                            + rtt.getRttVariance() + "us, timeout " 
+                            + device.getTimeout(peer) + "ms, samples " 
+                            + rtt.getSamples());
+                    }
+                    
+                /* gossip, prints the counters of the gossip */
+                
+                } else if (command.equals("gossip")) {
+                    if (device.getGossip() == null) {
+                        System.out.println("Gossip disabled");
+                    } else {
+                        System.out.println(device.getGossip());
+                    }
+                
+                /* listener, prints the events of the listener dispatched */
+                
+                } else if (command.equals("listener")) {
+                    if (device.getListenerDispatcher() == null) {
+                        System.out.println("Async listener disabled");
+                    } else {
+                        System.out.println(device.getListenerDispatcher());
+                    }
+                    
                 /* send, sends a customized message to the peers */
                 
                 } else if (command.startsWith("send")) {
@@ -126,30 +205,28 @@ public class Device_Main implements RicartListener {
                         System.err.println("usage: new <resource_name>|<value>");
                     } catch (NumberFormatException nfe) {
                         System.err.println("value must be numerical");
+                    } catch (IllegalArgumentException iae) {
+                        System.err.println(iae.getMessage());
                     }
                 
                 /* resources, prints a list of the shared resources and their 
                  * state IN THIS DEVICE */
                 
                 } else if (command.startsWith("resources")) {
-                    HashMap<String, Integer> values = device.getSharedResources().getValues();
+                    Map<String, Integer> values = device.getSharedResources().getValues();
                     if (values.isEmpty()) {
                         System.out.println("Resources list is empty.");
                     } else for (String key : values.keySet()) {
-                        String entry = key + ":" + values.get(key);
-                        HashMap<String, ResourceState> locks = device.getSharedResources().getLocks();
-                        try {
-                            entry += ":" + locks.get(key).getState();
-                        } catch (NullPointerException npe) {
-                            entry += ":LOCK_NOT_INITIALIZED";
+                        /* The value and the state read at once */
+                        ResourceSnapshot entry = device.getSharedResources().getSnapshot(key);
+                        if (entry != null) {
+                            System.out.println(entry);
                         }
-                        System.out.println(entry);
                     }
                             
                 /* lock, initiates the lock procedure for a shared resource */
                 
                 } else if (command.startsWith("lock")) {
-                    HashMap<String, Integer> values = device.getSharedResources().getValues();
                     StringTokenizer st = new StringTokenizer(command, " ");
                     st.nextToken();
                     try {
@@ -171,7 +248,6 @@ public class Device_Main implements RicartListener {
                  * the request queue */
                 
                 } else if (command.startsWith("release")) {
-                    HashMap<String, Integer> values = device.getSharedResources().getValues();
                     StringTokenizer st = new StringTokenizer(command, " ");
                     st.nextToken();
                     try {
@@ -195,7 +271,6 @@ public class Device_Main implements RicartListener {
                 /* update, updates the value of a shared resource */
                 
                 } else if (command.startsWith("update")) {
-                    HashMap<String, Integer> values = device.getSharedResources().getValues();
                     StringTokenizer st = new StringTokenizer(command, " ");
                     st.nextToken();
                     try {
@@ -219,6 +294,26 @@ public class Device_Main implements RicartListener {
                         System.err.println("The resource is not held!");
                     }
                     
+                /* write, writes a shared resource without its lock, in total
+                 * order mode */
+                
+                } else if (command.startsWith("write")) {
+                    StringTokenizer st = new StringTokenizer(command, " ");
+                    st.nextToken();
+                    try {
+                        String key = st.nextToken();
+                        int value = Integer.parseInt(st.nextToken());
+                        device.writeResource(key, value);
+                    } catch (NoSuchElementException nsee) {
+                        System.err.println("usage: write <resource_name> <resource_value>");
+                    } catch (NumberFormatException nfe) {
+                        System.err.println("value must be numerical");
+                    } catch (NullPointerException npe) {
+                        System.err.println(npe.getMessage());
+                    } catch (IllegalStateException ise) {
+                        System.err.println(ise.getMessage());
+                    }
+                    
                 /* exit, exits the P2P interaction */
                 
                 } else if (command.equals("exit")) {
@@ -227,7 +322,7 @@ public class Device_Main implements RicartListener {
                     break;
                 } else {
                     System.out.println("Not a valid command:\npeerlist\nexit\n"
-                        + "new\nresources\nlock\nrelease\nupdate");
+                        + "new\nresources\nlock\nrelease\nupdate\nwrite\nrtt\ngossip\nlistener");
                 }
             } catch (IOException ioe) {
                 System.out.println("IOException while reading line: " 
@@ -0,0 +1,1140 @@
+
+package damulticast;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the frames of the wire protocol. Every frame is:
+ * <pre>
+ * varint length | byte version | byte opcode | varint message id | body
+ * </pre>
+ * The length counts the bytes after the length itself, and can not be bigger
+ * than MAX_FRAME. The body depends on the opcode: keys and headers are strings
+ * (varint length and UTF-8 bytes), values and ids are zigzag varints and the
+ * timestamps are varints. A connection starts with an IDENTIFY frame with the
+ * id and listening port of the device that opened it.
+ * The bodies are written from the fields of the messages and read into them,
+ * see Message, so the handlers use the fields without parsing text. The text
+ * of a message is only parsed, or made, when the message was built from text
+ * or its text is asked for. Messages with a header or content that does not
+ * fit an opcode are sent as CUSTOM frames, with the header and the text.
+ * A codec reuses its buffers, so it must be used by a single thread and the
+ * buffer returned by encode is only valid until the next call.
+ * @author cesar
+ */
+public class FrameCodec {
+
+    /** The version of the protocol written in every frame */
+    public static final int VERSION = 3;
+    /** The biggest frame accepted, not counting the length prefix */
+    public static final int MAX_FRAME = 1 << 20;
+    /** The biggest size of a varint int */
+    private static final int MAX_PREFIX = 5;
+    /** The keys kept to decode them again without a new String, a power of 2 */
+    private static final int KEY_CACHE = 64;
+
+    /** The buffer where frames are encoded */
+    private ByteBuffer out;
+    /** The buffer where frames read from streams are kept */
+    private ByteBuffer in;
+    /** The keys decoded last, by the hash of their bytes, see getKey */
+    private String[] keys;
+
+    public FrameCodec() {
+        this.out = ByteBuffer.allocate(256);
+        this.in = ByteBuffer.allocate(256);
+        keys = new String[KEY_CACHE];
+    }
+
+    /**
+     * Encodes the frame with which a device identifies itself when it opens a
+     * connection.
+     * @param id The id of the device
+     * @param port The port in which the device listens
+     * @return The frame, valid until the next call to the codec
+     * @throws ProtocolException Never, the frame is always small
+     */
+    public ByteBuffer encodeIdentification(int id, int port) throws ProtocolException {
+        out.clear();
+        out.position(MAX_PREFIX);
+        out.put((byte) VERSION);
+        out.put((byte) Opcode.IDENTIFY.getCode());
+        putVarint(out, 0);
+        putVarint(out, zigzag(id));
+        putVarint(out, port);
+        return finish(MAX_PREFIX);
+    }
+
+    /**
+     * Encodes a message.
+     * @param m The message
+     * @return The frame, valid until the next call to the codec
+     * @throws ProtocolException If the frame is bigger than MAX_FRAME
+     */
+    public ByteBuffer encode(Message m) throws ProtocolException {
+        while (true) {
+            try {
+                out.clear();
+                out.position(MAX_PREFIX);
+                out.put((byte) VERSION);
+                int opcodePosition = out.position();
+                out.put((byte) 0);
+                putVarint(out, m.getId());
+                Opcode opcode = m.getOpcode();
+                if (opcode == Opcode.CUSTOM || !m.hasFields() || !encodeBody(opcode, m)) {
+                    /* The content does not fit the opcode, send it as it is */
+                    opcode = Opcode.CUSTOM;
+                    out.position(opcodePosition + 1);
+                    putVarint(out, m.getId());
+                    putString(out, m.getHeader());
+                    putString(out, m.getMessage());
+                }
+                out.put(opcodePosition, (byte) opcode.getCode());
+                return finish(MAX_PREFIX);
+            } catch (BufferOverflowException boe) {
+                if (out.capacity() >= MAX_FRAME + MAX_PREFIX) {
+                    throw new ProtocolException("Frame bigger than " + MAX_FRAME
+                        + " bytes: " + m.getHeader());
+                }
+                out = ByteBuffer.allocate(Math.min(out.capacity() * 2,
+                    MAX_FRAME + MAX_PREFIX));
+            }
+        }
+    }
+
+    /**
+     * Writes a frame to a stream.
+     * @param frame A frame returned by the codec
+     * @param stream The stream
+     * @throws IOException If the stream could not be written
+     */
+    public static void write(ByteBuffer frame, OutputStream stream) throws IOException {
+        stream.write(frame.array(), frame.arrayOffset() + frame.position(),
+            frame.remaining());
+    }
+
+    /**
+     * Tries to decode an IDENTIFY frame from a buffer. If the frame is not
+     * complete the buffer is left as it was.
+     * @param buffer The buffer, ready to be read
+     * @return The id and port of the device, null if the frame is not complete
+     * @throws ProtocolException If the frame is not an IDENTIFY frame
+     */
+    public int[] decodeIdentification(ByteBuffer buffer) throws ProtocolException {
+        int end = frameEnd(buffer);
+        if (end < 0) {
+            return null;
+        }
+        try {
+            if (readHeader(buffer) != Opcode.IDENTIFY) {
+                throw new ProtocolException("Expected identification frame");
+            }
+            getVarint(buffer);
+            int[] identification = new int[] {unzigzag(getVarint(buffer)),
+                (int) getVarint(buffer)};
+            buffer.position(end);
+            return identification;
+        } catch (BufferUnderflowException bue) {
+            throw new ProtocolException("Truncated identification frame");
+        }
+    }
+
+    /**
+     * Tries to decode a message from a buffer. If the frame is not complete the
+     * buffer is left as it was. The peer of the message is not set.
+     * @param buffer The buffer, ready to be read
+     * @return The message, null if the frame is not complete
+     * @throws ProtocolException If the frame is malformed
+     */
+    public Message decode(ByteBuffer buffer) throws ProtocolException {
+        return decode(buffer, null);
+    }
+
+    /**
+     * Tries to decode a message from a buffer into a message that is reused,
+     * so the frames of the protocol are decoded without creating objects but
+     * the keys that were not decoded lately. The CUSTOM frames, which the
+     * handlers of the applications might keep, are always decoded into a new
+     * message.
+     * @param buffer The buffer, ready to be read
+     * @param into The message reused, null to decode into a new one
+     * @return The message, into unless the frame is CUSTOM, null if the frame
+     * is not complete
+     * @throws ProtocolException If the frame is malformed
+     */
+    public Message decode(ByteBuffer buffer, Message into) throws ProtocolException {
+        int end = frameEnd(buffer);
+        if (end < 0) {
+            return null;
+        }
+        Message m = decodeFrame(buffer, end, into);
+        buffer.position(end);
+        return m;
+    }
+
+    /**
+     * Reads a complete message from a stream.
+     * @param stream The stream
+     * @return The message, the peer is not set
+     * @throws IOException If the stream could not be read or the frame is
+     * malformed
+     */
+    public Message read(DataInputStream stream) throws IOException {
+        return decode(readRaw(stream));
+    }
+
+    /**
+     * Reads the bytes of a complete frame from a stream, without decoding it.
+     * @param stream The stream
+     * @return The frame with its length prefix, valid until the next call to
+     * the codec
+     * @throws IOException If the stream could not be read or the length of the
+     * frame is malformed
+     */
+    public ByteBuffer readRaw(DataInputStream stream) throws IOException {
+        in.clear();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= 35) {
+                throw new ProtocolException("Malformed frame length");
+            }
+            int b = stream.readUnsignedByte();
+            in.put((byte) b);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > MAX_FRAME) {
+            throw new ProtocolException("Frame bigger than " + MAX_FRAME + " bytes");
+        }
+        if (in.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(in.position() + length);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        stream.readFully(in.array(), in.position(), length);
+        in.position(in.position() + length);
+        in.flip();
+        return in;
+    }
+
+    /**
+     * Returns where the frame at the position of the buffer ends.
+     * @return The end of the frame, -1 if it is not complete
+     */
+    static int frameEnd(ByteBuffer buffer) throws ProtocolException {
+        int position = buffer.position();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position >= buffer.limit()) {
+                return -1;
+            }
+            if (shift >= 35) {
+                throw new ProtocolException("Malformed frame length");
+            }
+            int b = buffer.get(position++);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > MAX_FRAME) {
+            throw new ProtocolException("Frame bigger than " + MAX_FRAME + " bytes");
+        }
+        if (buffer.limit() - position < length) {
+            return -1;
+        }
+        return position + length;
+    }
+
+    /**
+     * Returns the opcode of a complete frame without consuming it.
+     * @param frame The frame with its length prefix
+     * @return The opcode, null if the frame is malformed
+     */
+    static Opcode opcodeOf(ByteBuffer frame) {
+        int position = frame.position();
+        while (position < frame.limit() && (frame.get(position) & 0x80) != 0) {
+            position++;
+        }
+        if (position + 2 >= frame.limit() || frame.get(position + 1) != VERSION) {
+            return null;
+        }
+        return Opcode.fromCode(frame.get(position + 2));
+    }
+
+    /**
+     * Decodes the frame at the position of the buffer, which is complete.
+     */
+    private Message decodeFrame(ByteBuffer buffer, int end, Message into) 
+            throws ProtocolException {
+        int limit = buffer.limit();
+        buffer.limit(end);
+        try {
+            return decodeBody(buffer, readHeader(buffer), into);
+        } catch (BufferUnderflowException bue) {
+            throw new ProtocolException("Truncated frame");
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * Skips the length prefix and reads the version and the opcode.
+     */
+    private Opcode readHeader(ByteBuffer buffer) throws ProtocolException {
+        while ((buffer.get() & 0x80) != 0) {
+            /* The length was already read by frameEnd */
+        }
+        return readVersionAndOpcode(buffer);
+    }
+
+    /**
+     * Reads the version and the opcode.
+     */
+    private Opcode readVersionAndOpcode(ByteBuffer buffer) throws ProtocolException {
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        Opcode opcode = Opcode.fromCode(buffer.get());
+        if (opcode == null) {
+            throw new ProtocolException("Unknown opcode");
+        }
+        return opcode;
+    }
+
+    /**
+     * Decodes the message id and the body of a frame into the fields of a
+     * message, see Message.
+     */
+    private Message decodeBody(ByteBuffer buffer, Opcode opcode, Message into) 
+            throws ProtocolException {
+        int id = (int) getVarint(buffer);
+        if (opcode == Opcode.CUSTOM) {
+            return new Message(id, null, getString(buffer), getString(buffer));
+        }
+        Message m = into;
+        if (m == null) {
+            m = new Message(id, null, opcode);
+        } else {
+            m.reset(id, opcode);
+        }
+        switch (opcode) {
+            case HELLO:
+            case GOODBYE:
+                break;
+            case ASKSTATE: {
+                m.setNumber(getVarint(buffer));
+                String cursor = getString(buffer);
+                m.setKey(cursor.isEmpty() ? null : cursor);
+                break;
+            }
+            case NEW_RESOURCE:
+                m.setKey(getKey(buffer));
+                m.setValue(unzigzag(getVarint(buffer)));
+                m.setResource((int) getVarint(buffer) - 1);
+                break;
+            case UPDATE_RESOURCE:
+                getReference(buffer, m);
+                m.setValue(unzigzag(getVarint(buffer)));
+                break;
+            case LOCK_RESOURCE:
+                getReference(buffer, m);
+                m.setNumber(getVarint(buffer));
+                break;
+            case LOCK_ACK:
+                getReference(buffer, m);
+                m.setNumber(getVarint(buffer));
+                if (getVarint(buffer) > 0) {
+                    getRumor(buffer, m);
+                }
+                break;
+            case NACK:
+                m.setNumber(getVarint(buffer));
+                m.setLast(getVarint(buffer));
+                break;
+            case REPAIR: {
+                m.setNumber(getVarint(buffer));
+                String header = getString(buffer);
+                String message = getString(buffer);
+                if (!header.isEmpty()) {
+                    m.setCarried(new Message(id, null, header, message));
+                }
+                break;
+            }
+            case PING: {
+                long count = getVarint(buffer);
+                for (long i = 0; i < count; i++) {
+                    m.addEntry(null, 0, unzigzag(getVarint(buffer)), 0, 0);
+                }
+                break;
+            }
+            case UPDATE_BATCH: {
+                long count = getVarint(buffer);
+                for (long i = 0; i < count; i++) {
+                    /* The reference, the key if it is 0 */
+                    int resource = (int) getVarint(buffer) - 1;
+                    String key = resource == KeyDictionary.NONE ? getKey(buffer) : null;
+                    m.addEntry(key, unzigzag(getVarint(buffer)), resource, 0, 0);
+                }
+                break;
+            }
+            case REPLY_ASKSTATE:
+            case STATE_CHUNK: {
+                long count = getVarint(buffer);
+                for (long i = 0; i < count; i++) {
+                    String key = getKey(buffer);
+                    int value = unzigzag(getVarint(buffer));
+                    m.addEntry(key, value, (int) getVarint(buffer) - 1, 0, 0);
+                }
+                break;
+            }
+            case GOSSIP:
+            case REPLY_GOSSIP: {
+                long count = getVarint(buffer);
+                for (long i = 0; i < count; i++) {
+                    getRumor(buffer, m);
+                }
+                break;
+            }
+            default:
+                throw new ProtocolException("Unexpected opcode " + opcode);
+        }
+        return m;
+    }
+
+    /**
+     * Reads the reference to a resource: the id plus 1, or 0 and the key.
+     */
+    private void getReference(ByteBuffer buffer, Message m) throws ProtocolException {
+        int id = (int) getVarint(buffer) - 1;
+        if (id == KeyDictionary.NONE) {
+            m.setKey(getKey(buffer));
+        } else {
+            m.setResource(id);
+        }
+    }
+
+    /**
+     * Writes the reference to a resource, see getReference.
+     */
+    private static void putReference(ByteBuffer buffer, int id, String key) {
+        putVarint(buffer, id + 1L);
+        if (id == KeyDictionary.NONE) {
+            putString(buffer, key);
+        }
+    }
+
+    /**
+     * Reads a rumor of gossip as an entry of a message.
+     */
+    private void getRumor(ByteBuffer buffer, Message m) throws ProtocolException {
+        String key = getKey(buffer);
+        int value = unzigzag(getVarint(buffer));
+        long counter = getVarint(buffer);
+        int origin = unzigzag(getVarint(buffer));
+        m.addEntry(key, value, origin, counter, getVarint(buffer));
+    }
+
+    /**
+     * Writes the body of an opcode from the fields of a message.
+     * @return false if a field can not be written in the body of the opcode,
+     * a negative sequence number for instance
+     */
+    private boolean encodeBody(Opcode opcode, Message m) {
+        switch (opcode) {
+            case HELLO:
+            case GOODBYE:
+                return true;
+            case ASKSTATE:
+                /* The size of the chunk and the last key received */
+                if (m.getNumber() < 0) {
+                    return false;
+                }
+                putVarint(out, m.getNumber());
+                putString(out, m.getKey() == null ? "" : m.getKey());
+                return true;
+            case NEW_RESOURCE:
+                putString(out, m.getKey());
+                putVarint(out, zigzag(m.getValue()));
+                putVarint(out, m.getResource() + 1L);
+                return true;
+            case UPDATE_RESOURCE:
+                putReference(out, m.getResource(), m.getKey());
+                putVarint(out, zigzag(m.getValue()));
+                return true;
+            case LOCK_RESOURCE:
+                if (m.getNumber() < 0) {
+                    return false;
+                }
+                putReference(out, m.getResource(), m.getKey());
+                putVarint(out, m.getNumber());
+                return true;
+            case LOCK_ACK:
+                /* The multicast sequence number and the gossip version */
+                if (m.getNumber() < 0 || !rumorsFit(m)) {
+                    return false;
+                }
+                putReference(out, m.getResource(), m.getKey());
+                putVarint(out, m.getNumber());
+                putVarint(out, m.getSize());
+                for (int i = 0; i < m.getSize(); i++) {
+                    putRumor(out, m, i);
+                }
+                return true;
+            case NACK:
+                if (m.getNumber() < 0 || m.getLast() < 0) {
+                    return false;
+                }
+                putVarint(out, m.getNumber());
+                putVarint(out, m.getLast());
+                return true;
+            case REPAIR:
+                if (m.getNumber() < 0) {
+                    return false;
+                }
+                putVarint(out, m.getNumber());
+                if (m.getCarried() == null) {
+                    putString(out, "");
+                    putString(out, "");
+                } else {
+                    putString(out, m.getCarried().getHeader());
+                    putString(out, m.getCarried().getMessage());
+                }
+                return true;
+            case PING:
+                putVarint(out, m.getSize());
+                for (int i = 0; i < m.getSize(); i++) {
+                    putVarint(out, zigzag(m.getId(i)));
+                }
+                return true;
+            case UPDATE_BATCH:
+                putVarint(out, m.getSize());
+                for (int i = 0; i < m.getSize(); i++) {
+                    putReference(out, m.getId(i), m.getKey(i));
+                    putVarint(out, zigzag(m.getValue(i)));
+                }
+                return true;
+            case REPLY_ASKSTATE:
+            case STATE_CHUNK:
+                putVarint(out, m.getSize());
+                for (int i = 0; i < m.getSize(); i++) {
+                    putString(out, m.getKey(i));
+                    putVarint(out, zigzag(m.getValue(i)));
+                    putVarint(out, m.getId(i) + 1L);
+                }
+                return true;
+            case GOSSIP:
+            case REPLY_GOSSIP:
+                if (!rumorsFit(m)) {
+                    return false;
+                }
+                putVarint(out, m.getSize());
+                for (int i = 0; i < m.getSize(); i++) {
+                    putRumor(out, m, i);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return false if a counter or a time of the rumors is negative
+     */
+    private static boolean rumorsFit(Message m) {
+        for (int i = 0; i < m.getSize(); i++) {
+            if (m.getCounter(i) < 0 || m.getTime(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes an entry of a message as a rumor of gossip.
+     */
+    private static void putRumor(ByteBuffer buffer, Message m, int entry) {
+        putString(buffer, m.getKey(entry));
+        putVarint(buffer, zigzag(m.getValue(entry)));
+        putVarint(buffer, m.getCounter(entry));
+        putVarint(buffer, zigzag(m.getId(entry)));
+        putVarint(buffer, m.getTime(entry));
+    }
+
+    /**
+     * Sets the fields of a message from its text, see Message. The numbers are
+     * read in place, without cutting the text.
+     * @param m The message, built from text
+     * @return false if the text does not have the format of the opcode
+     */
+    static boolean parse(Message m) {
+        String message = m.getMessage();
+        int length = message.length();
+        try {
+            switch (m.getOpcode()) {
+                case CUSTOM:
+                    return true;
+                case HELLO:
+                case GOODBYE:
+                    return message.isEmpty();
+                case ASKSTATE: {
+                    if (message.isEmpty()) {
+                        return true;
+                    }
+                    int separator = indexOf(message, '|', 0);
+                    m.setNumber(parseLong(message, 0, separator, 10));
+                    if (separator < length) {
+                        m.setKey(message.substring(separator + 1));
+                    }
+                    return m.getNumber() > 0;
+                }
+                case NEW_RESOURCE: {
+                    int first = message.indexOf('|');
+                    if (first < 0) {
+                        return false;
+                    }
+                    int second = indexOf(message, '|', first + 1);
+                    m.setKey(message.substring(0, first));
+                    m.setValue(parseInt(message, first + 1, second, 10));
+                    /* The id given by the device that created it */
+                    if (second < length) {
+                        m.setResource(parseInt(message, second + 1, length,
+                            KeyDictionary.RADIX));
+                    }
+                    return true;
+                }
+                case UPDATE_RESOURCE:
+                case LOCK_RESOURCE: {
+                    int first = message.indexOf('|');
+                    if (first < 0) {
+                        return false;
+                    }
+                    int second = indexOf(message, '|', first + 1);
+                    parseReference(message, 0, first, m);
+                    if (m.getOpcode() == Opcode.UPDATE_RESOURCE) {
+                        m.setValue(parseInt(message, first + 1, second, 10));
+                    } else {
+                        m.setNumber(parseLong(message, first + 1, second, 10));
+                    }
+                    return true;
+                }
+                case LOCK_ACK: {
+                    /* The key can be followed by a multicast sequence number
+                     * and the gossip version of the resource */
+                    int first = indexOf(message, '|', 0);
+                    parseReference(message, 0, first, m);
+                    if (first < length) {
+                        int second = indexOf(message, '|', first + 1);
+                        m.setNumber(parseLong(message, first + 1, second, 10));
+                        if (second < length) {
+                            return parseRumor(message, second + 1, length, m);
+                        }
+                    }
+                    return true;
+                }
+                case NACK: {
+                    int separator = message.indexOf('|');
+                    if (separator < 0) {
+                        return false;
+                    }
+                    m.setNumber(parseLong(message, 0, separator, 10));
+                    m.setLast(parseLong(message, separator + 1, length, 10));
+                    return true;
+                }
+                case REPAIR: {
+                    int first = message.indexOf('|');
+                    int second = first < 0 ? -1 : message.indexOf('|', first + 1);
+                    if (second < 0) {
+                        return false;
+                    }
+                    m.setNumber(parseLong(message, 0, first, 10));
+                    if (second > first + 1) {
+                        m.setCarried(new Message(m.getId(), m.getPeer(),
+                            message.substring(first + 1, second),
+                            message.substring(second + 1)));
+                    }
+                    return true;
+                }
+                case PING: {
+                    if (!message.startsWith("pong")) {
+                        return false;
+                    }
+                    for (int start = 4; start < length; ) {
+                        int end = indexOf(message, '|', start);
+                        if (end > start) {
+                            m.addEntry(null, 0, parseInt(message, start, end, 10), 0, 0);
+                        }
+                        start = end + 1;
+                    }
+                    return true;
+                }
+                case UPDATE_BATCH: {
+                    /* 'reference|value&...' */
+                    for (int start = 0; start < length; ) {
+                        int end = indexOf(message, '&', start);
+                        int separator = message.indexOf('|', start);
+                        if (separator < 0 || separator >= end) {
+                            return false;
+                        }
+                        int id = parseId(message, start, separator);
+                        m.addEntry(id == KeyDictionary.NONE 
+                            ? message.substring(start, separator) : null,
+                            parseInt(message, separator + 1, end, 10), id, 0, 0);
+                        start = end + 1;
+                    }
+                    return true;
+                }
+                case REPLY_ASKSTATE:
+                case STATE_CHUNK: {
+                    /* 'key|value&...', the state with the id of the resources
+                     * that have one, 'key|value|id&...' */
+                    for (int start = 0; start < length; ) {
+                        int end = indexOf(message, '&', start);
+                        int first = message.indexOf('|', start);
+                        if (first < 0 || first >= end) {
+                            return false;
+                        }
+                        int second = indexOf(message, '|', first + 1);
+                        int id = KeyDictionary.NONE;
+                        if (second < end) {
+                            id = parseInt(message, second + 1, end, KeyDictionary.RADIX);
+                        } else {
+                            second = end;
+                        }
+                        m.addEntry(message.substring(start, first),
+                            parseInt(message, first + 1, second, 10), id, 0, 0);
+                        start = end + 1;
+                    }
+                    return true;
+                }
+                case GOSSIP:
+                case REPLY_GOSSIP: {
+                    for (int start = 0; start < length; ) {
+                        int end = indexOf(message, '&', start);
+                        if (!parseRumor(message, start, end, m)) {
+                            return false;
+                        }
+                        start = end + 1;
+                    }
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the reference to a resource at a part of a text into a message.
+     */
+    private static void parseReference(String text, int start, int end, Message m) {
+        int id = parseId(text, start, end);
+        if (id == KeyDictionary.NONE) {
+            m.setKey(text.substring(start, end));
+        } else {
+            m.setResource(id);
+        }
+    }
+
+    /**
+     * Reads the id of a reference, '#' and the id in base 36. Only the ids
+     * written as Integer.toString writes them are read, so a key that starts
+     * with '#' is not taken for an id unless it is written the same.
+     * @return The id, NONE if the reference is a key
+     */
+    private static int parseId(String text, int start, int end) {
+        int length = end - start;
+        if (length < 2 || text.charAt(start) != KeyDictionary.PREFIX
+                || (length > 2 && text.charAt(start + 1) == '0')) {
+            return KeyDictionary.NONE;
+        }
+        for (int i = start + 1; i < end; i++) {
+            char c = text.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z')) {
+                return KeyDictionary.NONE;
+            }
+        }
+        try {
+            return parseInt(text, start + 1, end, KeyDictionary.RADIX);
+        } catch (NumberFormatException nfe) {
+            return KeyDictionary.NONE;
+        }
+    }
+
+    /**
+     * Writes the reference to a resource, see parseId.
+     */
+    private static void formatReference(StringBuilder text, int id, String key) {
+        if (id == KeyDictionary.NONE) {
+            text.append(key);
+        } else {
+            text.append(KeyDictionary.PREFIX).append(Integer.toString(id, KeyDictionary.RADIX));
+        }
+    }
+
+    /**
+     * Reads a rumor of gossip, 'key|value|counter|origin|time', as an entry.
+     * @return false if it does not have five fields
+     */
+    private static boolean parseRumor(String text, int start, int end, Message m) 
+            throws NumberFormatException {
+        int[] separators = new int[4];
+        int from = start;
+        for (int i = 0; i < separators.length; i++) {
+            separators[i] = text.indexOf('|', from);
+            if (separators[i] < 0 || separators[i] >= end) {
+                return false;
+            }
+            from = separators[i] + 1;
+        }
+        if (text.indexOf('|', from) >= 0 && text.indexOf('|', from) < end) {
+            return false;
+        }
+        m.addEntry(text.substring(start, separators[0]),
+            parseInt(text, separators[0] + 1, separators[1], 10),
+            parseInt(text, separators[2] + 1, separators[3], 10),
+            parseLong(text, separators[1] + 1, separators[2], 10),
+            parseLong(text, separators[3] + 1, end, 10));
+        return true;
+    }
+
+    /**
+     * Writes the text of a message from its fields, the opposite of parse.
+     * @param m The message, decoded from a frame
+     * @return The text
+     */
+    static String format(Message m) {
+        StringBuilder text = new StringBuilder();
+        switch (m.getOpcode()) {
+            case ASKSTATE:
+                if (m.getNumber() > 0) {
+                    text.append(m.getNumber());
+                    if (m.getKey() != null) {
+                        text.append('|').append(m.getKey());
+                    }
+                }
+                break;
+            case NEW_RESOURCE:
+                text.append(m.getKey()).append('|').append(m.getValue());
+                if (m.getResource() != KeyDictionary.NONE) {
+                    text.append('|').append(Integer.toString(m.getResource(),
+                        KeyDictionary.RADIX));
+                }
+                break;
+            case UPDATE_RESOURCE:
+                formatReference(text, m.getResource(), m.getKey());
+                text.append('|').append(m.getValue());
+                break;
+            case LOCK_RESOURCE:
+                formatReference(text, m.getResource(), m.getKey());
+                text.append('|').append(m.getNumber());
+                break;
+            case LOCK_ACK:
+                formatReference(text, m.getResource(), m.getKey());
+                if (m.getNumber() > 0 || m.getSize() > 0) {
+                    text.append('|').append(m.getNumber());
+                }
+                if (m.getSize() > 0) {
+                    text.append('|');
+                    formatRumor(text, m, 0);
+                }
+                break;
+            case NACK:
+                text.append(m.getNumber()).append('|').append(m.getLast());
+                break;
+            case REPAIR:
+                text.append(m.getNumber()).append('|');
+                if (m.getCarried() == null) {
+                    text.append('|');
+                } else {
+                    text.append(m.getCarried().getHeader()).append('|')
+                        .append(m.getCarried().getMessage());
+                }
+                break;
+            case PING:
+                text.append("pong");
+                for (int i = 0; i < m.getSize(); i++) {
+                    if (i > 0) {
+                        text.append('|');
+                    }
+                    text.append(m.getId(i));
+                }
+                break;
+            case UPDATE_BATCH:
+                for (int i = 0; i < m.getSize(); i++) {
+                    if (i > 0) {
+                        text.append('&');
+                    }
+                    formatReference(text, m.getId(i), m.getKey(i));
+                    text.append('|').append(m.getValue(i));
+                }
+                break;
+            case REPLY_ASKSTATE:
+            case STATE_CHUNK:
+                for (int i = 0; i < m.getSize(); i++) {
+                    if (i > 0) {
+                        text.append('&');
+                    }
+                    text.append(m.getKey(i)).append('|').append(m.getValue(i));
+                    if (m.getId(i) != KeyDictionary.NONE) {
+                        text.append('|').append(Integer.toString(m.getId(i),
+                            KeyDictionary.RADIX));
+                    }
+                }
+                break;
+            case GOSSIP:
+            case REPLY_GOSSIP:
+                for (int i = 0; i < m.getSize(); i++) {
+                    if (i > 0) {
+                        text.append('&');
+                    }
+                    formatRumor(text, m, i);
+                }
+                break;
+            default:
+                break;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes an entry of a message as a rumor, 'key|value|counter|origin|time'.
+     */
+    private static void formatRumor(StringBuilder text, Message m, int entry) {
+        text.append(m.getKey(entry)).append('|').append(m.getValue(entry)).append('|')
+            .append(m.getCounter(entry)).append('|').append(m.getId(entry)).append('|')
+            .append(m.getTime(entry));
+    }
+
+    /**
+     * @return the index of a character from an index, the length of the text
+     * if it is not found
+     */
+    private static int indexOf(String text, char c, int from) {
+        int index = text.indexOf(c, from);
+        return index < 0 ? text.length() : index;
+    }
+
+    /**
+     * Parses a number from a part of a text, without creating any object as
+     * Long.parseLong would with a substring.
+     * @param text The text
+     * @param start The index of the first digit, or of the sign
+     * @param end The index after the last digit
+     * @param radix The radix of the number
+     * @return The number
+     * @throws NumberFormatException If the part is empty, not a number or out
+     * of the range of a long
+     */
+    static long parseLong(String text, int start, int end, int radix) 
+            throws NumberFormatException {
+        if (start >= end) {
+            throw new NumberFormatException("Empty number");
+        }
+        boolean negative = text.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= end) {
+            throw new NumberFormatException("Sign without digits");
+        }
+        /* Accumulated as a negative number, which has the larger range */
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(text.charAt(i), radix);
+            if (digit < 0) {
+                throw new NumberFormatException("Not a digit: " + text.charAt(i));
+            }
+            if (result < (Long.MIN_VALUE + digit) / radix) {
+                throw new NumberFormatException("Out of range");
+            }
+            result = result * radix - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new NumberFormatException("Out of range");
+            }
+            result = -result;
+        }
+        return result;
+    }
+
+    /**
+     * Parses an int from a part of a text, see parseLong.
+     * @throws NumberFormatException If the part is not an int
+     */
+    static int parseInt(String text, int start, int end, int radix) 
+            throws NumberFormatException {
+        long result = parseLong(text, start, end, radix);
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Out of range");
+        }
+        return (int) result;
+    }
+
+    /**
+     * Writes the length prefix in front of the frame and flips the buffer.
+     * @param start Where the frame starts, after the space for the prefix
+     */
+    private ByteBuffer finish(int start) throws ProtocolException {
+        int length = out.position() - start;
+        if (length > MAX_FRAME) {
+            throw new ProtocolException("Frame bigger than " + MAX_FRAME + " bytes");
+        }
+        int prefix = varintSize(length);
+        int end = out.position();
+        out.position(start - prefix);
+        putVarint(out, length);
+        out.position(start - prefix);
+        out.limit(end);
+        return out;
+    }
+
+    /**
+     * Writes an unsigned varint.
+     */
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     */
+    static long getVarint(ByteBuffer buffer) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    /**
+     * @return the number of bytes of an unsigned varint
+     */
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Maps a signed int to an unsigned one so small negatives stay small.
+     */
+    static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * The opposite of zigzag.
+     */
+    static int unzigzag(long value) {
+        int v = (int) value;
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Writes a string as a varint length and its UTF-8 bytes.
+     */
+    static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = utf8(s);
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a string written by putString.
+     */
+    static String getString(ByteBuffer buffer) throws ProtocolException {
+        long length = getVarint(buffer);
+        if (length > buffer.remaining()) {
+            throw new ProtocolException("Truncated string");
+        }
+        try {
+            if (!buffer.hasArray()) {
+                /* Frames received in place from a mapped file */
+                byte[] bytes = new byte[(int) length];
+                buffer.get(bytes);
+                return new String(bytes, "UTF-8");
+            }
+            String s = new String(buffer.array(), buffer.arrayOffset()
+                + buffer.position(), (int) length, "UTF-8");
+            buffer.position(buffer.position() + (int) length);
+            return s;
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    /**
+     * Reads the key of a resource. The keys are kept by the hash of their
+     * bytes, a key that is the one kept is returned without decoding it
+     * again. Only the ASCII keys are kept, their bytes are their chars.
+     */
+    private String getKey(ByteBuffer buffer) throws ProtocolException {
+        int position = buffer.position();
+        long length = getVarint(buffer);
+        if (length > buffer.remaining()) {
+            throw new ProtocolException("Truncated string");
+        }
+        int start = buffer.position();
+        int end = start + (int) length;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < 0) {
+                buffer.position(position);
+                return getString(buffer);
+            }
+            hash = 31 * hash + b;
+        }
+        int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE - 1);
+        String key = keys[slot];
+        if (key != null && key.length() == length) {
+            int i = 0;
+            while (i < length && key.charAt(i) == buffer.get(start + i)) {
+                i++;
+            }
+            if (i == length) {
+                buffer.position(end);
+                return key;
+            }
+        }
+        buffer.position(position);
+        key = getString(buffer);
+        keys[slot] = key;
+        return key;
+    }
+
+    /**
+     * @return the UTF-8 bytes of a string
+     */
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+}
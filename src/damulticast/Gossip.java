@@ -0,0 +1,418 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the new resources and the updates made by the device by push-pull
+ * gossip, instead of sending them to every peer. Every period the device
+ * exchanges its hot rumors with fanout peers picked at random: the 'sync-gossip'
+ * request carries the rumors of the device and the reply the rumors of the
+ * peer, so the updates travel both ways. The cost of a round is the same
+ * whatever the number of peers, and an update reaches all of them in a number
+ * of rounds that grows with the logarithm of the peers.
+ * Every value has a version, a counter increased by the device that writes it
+ * and the id of that device to break the ties. A rumor stops being spread once
+ * stopCount peers already knew it (feedback and counter termination), and the
+ * peers that missed it still get it in the replies of the peers that kept it.
+ * The versions of all the resources are kept, so the lock_ack carries the
+ * latest version of the resource and the device that gets the lock never
+ * writes over a value it has not seen.
+ * @author cesar
+ */
+public class Gossip implements Runnable {
+
+    /** The most rumors in a single message */
+    public static final int MAX_RUMORS = 256;
+
+    /** The device that gossips */
+    private Device device;
+    /** The peers contacted every round */
+    private int fanout;
+    /** The time between rounds, in milliseconds */
+    private long period;
+    /** The peers that must already know a rumor before it is dropped */
+    private int stopCount;
+    /** The latest version of every resource */
+    private HashMap<String, Rumor> known;
+    /** The rumors still spread, the oldest first */
+    private LinkedHashMap<String, Rumor> hot;
+    /** Picks the peers of every round */
+    private Random random;
+    /** The thread that runs the rounds */
+    private ScheduledExecutorService timer;
+    /** The rounds run */
+    private long rounds;
+    /** The 'sync-gossip' requests sent */
+    private long requests;
+    /** The rumors sent in requests and replies */
+    private long rumorsSent;
+    /** The rumors received that were new to the device */
+    private long rumorsReceived;
+    /** The sum of the time from writing to receiving the new rumors */
+    private long delaySum;
+    /** The longest time from writing to receiving a new rumor */
+    private long maxDelay;
+
+    public Gossip(Device device, int fanout, long period, int stopCount) {
+        this.device = device;
+        this.fanout = fanout;
+        this.period = period;
+        this.stopCount = stopCount;
+        this.known = new HashMap<String, Rumor>();
+        this.hot = new LinkedHashMap<String, Rumor>();
+        this.random = new Random();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gossip");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Starts the rounds.
+     */
+    public void start() {
+        timer.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the rounds, the rumors still hot are not spread anymore.
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Starts a rumor for a value written by the device. The value must be set
+     * in the shared resources already.
+     * @param key The id of the resource
+     * @param value The new value
+     */
+    public synchronized void publish(String key, int value) {
+        Rumor mine = known.get(key);
+        long counter = mine == null ? 1 : mine.counter + 1;
+        spread(new Rumor(key, value, counter, device.getId(),
+            System.currentTimeMillis()));
+    }
+
+    /**
+     * Runs a round: exchanges the hot rumors with fanout peers.
+     */
+    @Override
+    public void run() {
+        List<RemoteDevice> peers = pickPeers();
+        if (peers.isEmpty()) {
+            return;
+        }
+        List<Rumor> rumors;
+        synchronized (this) {
+            rounds++;
+            rumors = take(hot.values());
+        }
+        /* The requests go out together, then the replies are merged */
+        ArrayList<ReplyFuture> replies = new ArrayList<ReplyFuture>();
+        for (RemoteDevice peer : peers) {
+            try {
+                replies.add(device.request(toMessage(peer, Opcode.GOSSIP, rumors)));
+                synchronized (this) {
+                    requests++;
+                }
+            } catch (IOException ioe) {
+                System.err.println("IOE when gossiping to " + peer.getId() + ", "
+                    + ioe.getMessage());
+            }
+        }
+        for (ReplyFuture future : replies) {
+            try {
+                Message reply = device.awaitReply(future);
+                if (reply.getOpcode() == Opcode.REPLY_GOSSIP) {
+                    merge(reply);
+                }
+            } catch (IOException ioe) {
+                System.err.println("Peer " + future.getPeer().getId()
+                    + " did not reply to gossip, " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Answers the 'sync-gossip' request of a peer. The reply has the rumors of
+     * this device, and the version this device has of every rumor pushed that
+     * was not new to it, so the peer learns the newer ones and counts the rest
+     * as known.
+     * @param m The request
+     * @return The reply
+     */
+    public Message exchange(Message m) {
+        List<Rumor> pushed = parse(m);
+        ArrayList<Rumor> reply = new ArrayList<Rumor>();
+        synchronized (this) {
+            HashSet<String> replied = new HashSet<String>();
+            for (Rumor rumor : pushed) {
+                Rumor mine = known.get(rumor.key);
+                if (mine == null || rumor.isNewerThan(mine)) {
+                    accept(rumor);
+                } else {
+                    if (!mine.isNewerThan(rumor)) {
+                        feedback(mine);
+                    }
+                    reply.add(mine);
+                    replied.add(mine.key);
+                }
+            }
+            for (Rumor rumor : hot.values()) {
+                if (reply.size() >= MAX_RUMORS) {
+                    break;
+                }
+                if (!replied.contains(rumor.key)) {
+                    reply.add(rumor);
+                }
+            }
+            return toMessage(m.getPeer(), Opcode.REPLY_GOSSIP, take(reply));
+        }
+    }
+
+    /**
+     * Applies the rumors of a peer that are newer than the versions of this
+     * device, and counts the ones it already had.
+     * @param m The message with the rumors as entries, a 'reply-gossip' or
+     * the version in a 'lock_ack'
+     */
+    public synchronized void merge(Message m) {
+        for (Rumor rumor : parse(m)) {
+            Rumor mine = known.get(rumor.key);
+            if (mine == null || rumor.isNewerThan(mine)) {
+                accept(rumor);
+            } else if (!mine.isNewerThan(rumor)) {
+                feedback(mine);
+            }
+        }
+    }
+
+    /**
+     * Returns the latest version of a resource known by this device.
+     * @param key The id of the resource
+     * @return The rumor as 'key|value|counter|origin|time', null if the device
+     * has no version of the resource
+     */
+    public synchronized String getVersion(String key) {
+        Rumor mine = known.get(key);
+        return mine == null ? null : mine.toString();
+    }
+
+    /**
+     * Applies a rumor new to this device and starts spreading it.
+     */
+    private void accept(Rumor rumor) {
+        spread(rumor);
+        rumorsReceived++;
+        long delay = Math.max(0, System.currentTimeMillis() - rumor.time);
+        delaySum += delay;
+        maxDelay = Math.max(maxDelay, delay);
+        device.applyUpdate(new RemoteDevice(rumor.origin), rumor.key, rumor.value);
+    }
+
+    /**
+     * Keeps a rumor as the latest version of its resource and makes it hot.
+     */
+    private void spread(Rumor rumor) {
+        known.put(rumor.key, rumor);
+        /* Remove it first so the rumor moves to the end */
+        hot.remove(rumor.key);
+        hot.put(rumor.key, rumor);
+    }
+
+    /**
+     * Counts a peer that already knew a rumor of this device, the rumor is
+     * dropped when stopCount peers knew it.
+     */
+    private void feedback(Rumor mine) {
+        if (hot.get(mine.key) != mine) {
+            return;
+        }
+        mine.feedback++;
+        if (mine.feedback >= stopCount) {
+            hot.remove(mine.key);
+        }
+    }
+
+    /**
+     * Picks fanout different peers at random, or all of them if there are not
+     * more than fanout.
+     */
+    private List<RemoteDevice> pickPeers() {
+        List<RemoteDevice> peers = device.getPeers();
+        ArrayList<RemoteDevice> picked = new ArrayList<RemoteDevice>();
+        int size = peers.size();
+        if (size <= fanout) {
+            picked.addAll(peers);
+            return picked;
+        }
+        HashSet<Integer> indexes = new HashSet<Integer>();
+        while (indexes.size() < fanout) {
+            indexes.add(random.nextInt(size));
+        }
+        try {
+            for (Integer index : indexes) {
+                picked.add(peers.get(index));
+            }
+        } catch (IndexOutOfBoundsException ioobe) {
+            /* A peer left meanwhile, the round goes on with the rest */
+        }
+        return picked;
+    }
+
+    /**
+     * Takes up to MAX_RUMORS rumors to be sent and counts them as sent.
+     */
+    private List<Rumor> take(Collection<Rumor> rumors) {
+        ArrayList<Rumor> taken = new ArrayList<Rumor>();
+        for (Rumor rumor : rumors) {
+            if (taken.size() >= MAX_RUMORS) {
+                break;
+            }
+            taken.add(rumor);
+        }
+        rumorsSent += taken.size();
+        return taken;
+    }
+
+    /**
+     * Writes rumors as the entries of a message.
+     */
+    private static Message toMessage(RemoteDevice peer, Opcode opcode, List<Rumor> rumors) {
+        Message m = new Message(0, peer, opcode);
+        for (Rumor rumor : rumors) {
+            m.addEntry(rumor.key, rumor.value, rumor.origin, rumor.counter, rumor.time);
+        }
+        return m;
+    }
+
+    /**
+     * Reads the rumors of the entries of a message.
+     */
+    private List<Rumor> parse(Message m) {
+        ArrayList<Rumor> rumors = new ArrayList<Rumor>();
+        if (!m.hasFields()) {
+            System.err.println("Incorrect format for gossip.");
+            return rumors;
+        }
+        for (int i = 0; i < m.getSize(); i++) {
+            rumors.add(new Rumor(m.getKey(i), m.getValue(i), m.getCounter(i),
+                m.getId(i), m.getTime(i)));
+        }
+        return rumors;
+    }
+
+    /**
+     * @return the rounds
+     */
+    public synchronized long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return the requests
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the rumorsSent
+     */
+    public synchronized long getRumorsSent() {
+        return rumorsSent;
+    }
+
+    /**
+     * @return the rumorsReceived
+     */
+    public synchronized long getRumorsReceived() {
+        return rumorsReceived;
+    }
+
+    /**
+     * @return the mean time from writing to receiving the new rumors, in
+     * milliseconds, as measured by the clocks of the devices
+     */
+    public synchronized long getMeanDelay() {
+        return rumorsReceived == 0 ? 0 : delaySum / rumorsReceived;
+    }
+
+    /**
+     * @return the maxDelay, in milliseconds
+     */
+    public synchronized long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * @return the number of rumors still spread
+     */
+    public synchronized int getHotCount() {
+        return hot.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "rounds=" + rounds + " requests=" + requests + " sent=" + rumorsSent
+            + " received=" + rumorsReceived + " hot=" + hot.size() + " delay="
+            + getMeanDelay() + "ms max=" + maxDelay + "ms";
+    }
+
+    /**
+     * A version of the value of a resource.
+     */
+    private static class Rumor {
+
+        /** The id of the resource */
+        private String key;
+        /** The value */
+        private int value;
+        /** Increased by every write of the resource */
+        private long counter;
+        /** The device that wrote the value */
+        private int origin;
+        /** When the value was written, by the clock of the origin */
+        private long time;
+        /** The peers that already knew the rumor */
+        private int feedback;
+
+        private Rumor(String key, int value, long counter, int origin, long time) {
+            this.key = key;
+            this.value = value;
+            this.counter = counter;
+            this.origin = origin;
+            this.time = time;
+        }
+
+        /**
+         * @return true if this version was written after the other one
+         */
+        private boolean isNewerThan(Rumor other) {
+            return counter > other.counter
+                || (counter == other.counter && origin > other.origin);
+        }
+
+        @Override
+        public String toString() {
+            return key + "|" + value + "|" + counter + "|" + origin + "|" + time;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the frames of the connections accepted by a device, whatever the
+ * Transport. The peer that opens a connection identifies itself once with the
+ * first frame, after that every frame is a message that is handed to the
+ * device. The replies to 'sync-' messages are sent back on the same connection
+ * with the id of the request, except the ones of the BULK lane, the chunks of
+ * the state: they are queued to the peer like the rest of the messages, so a
+ * transfer of the state is weighted against the locks instead of being
+ * written ahead of them. The peer receives them in its own InboundHandler and
+ * completes the request with them.
+ * @author cesar
+ */
+public class InboundHandler implements TransportListener {
+
+    /** The device that receives the messages */
+    private Device device;
+
+    public InboundHandler(Device device) {
+        this.device = device;
+    }
+
+    @Override
+    public void received(TransportConnection connection, ByteBuffer frame) {
+        Inbound inbound = (Inbound) connection.getAttachment();
+        try {
+            if (inbound == null) {
+                /* The sender is looked up once per connection */
+                FrameCodec codec = new FrameCodec();
+                int[] identification = codec.decodeIdentification(frame);
+                inbound = new Inbound(codec, device.lookUpSender(identification[0],
+                    connection.getRemoteAddress(), identification[1]));
+                connection.setAttachment(inbound);
+                return;
+            }
+            /* The frames of a connection are received one at a time, they
+             * are decoded into the same message */
+            Message m = inbound.codec.decode(frame, inbound.holder);
+            m.setSenderId(inbound.sender);
+            if (m.getHeader().startsWith("reply-")) {
+                /* A reply queued by the peer, kept after the call */
+                device.replyReceived(m.copy());
+                return;
+            }
+            /* If the message is sync then process the reply as soon as possible */
+            if (!m.getHeader().startsWith("sync-")) {
+                device.receiveMessage(m);
+                return;
+            }
+            Message reply = device.receiveMessageSync(m);
+            if (reply == null) {
+                reply = new Message(m.getPeer(), "reply-unknown", "");
+            }
+            reply.setId(m.getId());
+            if (Lane.of(reply.getHeader()) == Lane.BULK) {
+                reply.setSenderId(inbound.sender);
+                device.sendReply(reply);
+                return;
+            }
+            connection.send(inbound.codec.encode(reply));
+        } catch (IOException ioe) {
+            System.err.println("IOE exception while receiving message from peer: "
+                + connection.getRemoteAddress() + ", " + ioe.getMessage());
+            connection.close();
+        }
+    }
+
+    @Override
+    public void closed(TransportConnection connection, IOException cause) {
+        /* The peer opens a new connection when it sends again */
+    }
+
+    /**
+     * The state of a connection once the peer has identified itself.
+     */
+    private static class Inbound {
+
+        /** Decodes the frames and encodes the replies of the connection */
+        private FrameCodec codec;
+        /** The peer that opened the connection */
+        private RemoteDevice sender;
+        /** The message the frames of the protocol are decoded into */
+        private Message holder;
+
+        private Inbound(FrameCodec codec, RemoteDevice sender) {
+            this.codec = codec;
+            this.sender = sender;
+            this.holder = new Message(0, sender, Opcode.HELLO);
+        }
+    }
+}
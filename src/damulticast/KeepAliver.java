@@ -31,11 +31,43 @@ public class KeepAliver implements Runnable {
             }
             
             ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
-            for (RemoteDevice peer : peersCopy) try {
-                t.ping(peer);
-            } catch (IOException ioe) {
-                System.err.println("Error while pinging peer " + peer.getId());
+            if (t.getMode() == ThreadMode.SELECTOR) {
+                for (RemoteDevice peer : peersCopy) {
+                    ping(peer);
+                }
+                continue;
             }
+            
+            /* Ping all the peers at once, so one that does not respond does
+             * not delay the rest, and wait for all of them before sleeping */
+            ArrayList<Thread> pings = new ArrayList<Thread>();
+            for (final RemoteDevice peer : peersCopy) {
+                pings.add(Threads.start(t.getMode(), new Runnable() {
+                    @Override
+                    public void run() {
+                        ping(peer);
+                    }
+                }, "ping-" + peer.getId()));
+            }
+            try {
+                for (Thread ping : pings) {
+                    ping.join();
+                }
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Pings a peer through the tracker.
+     * @param peer The peer
+     */
+    private void ping(RemoteDevice peer) {
+        try {
+            t.ping(peer);
+        } catch (IOException ioe) {
+            System.err.println("Error while pinging peer " + peer.getId());
         }
     }
     
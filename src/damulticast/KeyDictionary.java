@@ -0,0 +1,176 @@
+
+package damulticast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Gives the resources compact ids that are the same in every device, so the
+ * messages of a resource carry the id instead of the key. The id is assigned
+ * by the device that creates the resource: its own id in the high bits and the
+ * count of resources it has created in the low ones, so two devices never
+ * assign the same id and no agreement is needed. The peers learn the id with
+ * the new_resource, or with the state when they join. A resource created by
+ * two devices at once has two ids, both lead to the key.
+ * The ids are kept by the SharedResources, in a table indexed by the id, and
+ * the first id of a resource in its ResourceState, so the dictionary has no
+ * maps of its own. The frames carry the id as a varint, the text of the
+ * messages references a resource as '#' and the id in base 36. The key is
+ * sent instead when the sender does not know its id. The messages that
+ * reference an id that is not known yet, because they overtook the
+ * new_resource, wait until it is learned.
+ * @author cesar
+ */
+public class KeyDictionary {
+
+    /** The id of a resource without id */
+    public static final int NONE = -1;
+    /** The first character of a reference by id */
+    public static final char PREFIX = '#';
+    /** The radix of the ids in the references */
+    public static final int RADIX = Character.MAX_RADIX;
+    /** The bits of the count of resources of a device */
+    static final int SEQUENCE_BITS = 16;
+    /** The messages that can wait for an id, the rest are dropped */
+    private static final int MAX_WAITING = 1024;
+
+    /** The resources, which keep their ids */
+    private SharedResources resources;
+    /** The ids known, guarded by this */
+    private int count;
+    /** The tasks waiting for an id, guarded by this */
+    private HashMap<Integer, List<Runnable>> waiting;
+    /** The tasks waiting for all the ids */
+    private int waitingCount;
+    /** The resources created by this device */
+    private int sequence;
+
+    public KeyDictionary(SharedResources resources) {
+        this.resources = resources;
+        this.waiting = new HashMap<Integer, List<Runnable>>();
+    }
+
+    /**
+     * Assigns an id to a resource created by this device.
+     * @param key The id of the resource
+     * @param device The id of this device
+     * @return The id, NONE if the device has created all the resources it
+     * can give an id to
+     */
+    public int assign(String key, int device) {
+        int id;
+        synchronized (this) {
+            if (device < 0 || device >= 1 << (31 - SEQUENCE_BITS)
+                    || sequence >= 1 << SEQUENCE_BITS) {
+                return NONE;
+            }
+            id = device << SEQUENCE_BITS | sequence++;
+        }
+        learn(id, key);
+        return id;
+    }
+
+    /**
+     * Adds the id of a resource, and runs the tasks that waited for it.
+     * @param id The id
+     * @param key The key of the resource, which must exist
+     */
+    public void learn(int id, String key) {
+        ResourceState lock = resources.getLock(key);
+        if (id < 0 || lock == null) {
+            return;
+        }
+        List<Runnable> tasks;
+        synchronized (this) {
+            /* The first resource given is kept, ids are never reused */
+            if (resources.index(id, lock)) {
+                count++;
+                if (lock.getId() == NONE) {
+                    lock.setId(id);
+                }
+            }
+            tasks = waiting.remove(id);
+            if (tasks != null) {
+                waitingCount -= tasks.size();
+            }
+        }
+        if (tasks != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Runs a task once the key of an id is known, right away if it is.
+     * @param id The id
+     * @param task The task
+     */
+    public void whenKnown(int id, Runnable task) {
+        synchronized (this) {
+            if (resources.getLock(id) == null) {
+                if (waitingCount >= MAX_WAITING) {
+                    System.err.println("Too many messages for unknown resources, "
+                        + "dropping one for #" + Integer.toString(id, RADIX));
+                    return;
+                }
+                List<Runnable> tasks = waiting.get(id);
+                if (tasks == null) {
+                    tasks = new ArrayList<Runnable>();
+                    waiting.put(id, tasks);
+                }
+                tasks.add(task);
+                waitingCount++;
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * @return the id of a key, NONE if it has none
+     */
+    public int getId(String key) {
+        ResourceState lock = resources.getLock(key);
+        return lock == null ? NONE : lock.getId();
+    }
+
+    /**
+     * @return the key of an id, the same instance for all the messages so its
+     * hash is computed once, null if the id is not known
+     */
+    public String getKey(int id) {
+        ResourceState lock = resources.getLock(id);
+        return lock == null ? null : lock.getKey();
+    }
+
+    /**
+     * Returns the reference to a resource for the messages.
+     * @param key The key of the resource
+     * @return '#' and the id, or the key if it has no id
+     */
+    public String reference(String key) {
+        int id = getId(key);
+        return id == NONE ? key : PREFIX + Integer.toString(id, RADIX);
+    }
+
+    /**
+     * @return the number of ids known
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of messages waiting for an id
+     */
+    public synchronized int getWaitingCount() {
+        return waitingCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ids=" + size() + " waiting=" + getWaitingCount();
+    }
+}
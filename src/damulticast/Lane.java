@@ -0,0 +1,69 @@
+
+package damulticast;
+
+import java.util.HashMap;
+
+/**
+ * The classes of traffic to a peer. Every lane has its own outbound queue, so
+ * the small messages of the locks and the membership are not stuck behind a
+ * burst of updates or a transfer of the state.
+ * @author cesar
+ */
+public enum Lane {
+
+    /** The locks and the membership, the latency of the locks depends on them */
+    CONTROL(8),
+    /** The resources, their updates and the replies to the locks, which must
+     * not overtake the updates sent before them */
+    DATA(4),
+    /** The transfers of the state and the multicast repairs */
+    BULK(1);
+
+    /** The lanes by the header of their messages, DATA for the rest */
+    private static final HashMap<String, Lane> BY_HEADER;
+
+    static {
+        BY_HEADER = new HashMap<String, Lane>();
+        BY_HEADER.put("lock_resource", CONTROL);
+        BY_HEADER.put("hello", CONTROL);
+        BY_HEADER.put("goodbye", CONTROL);
+        BY_HEADER.put("ping", CONTROL);
+        BY_HEADER.put("nack", CONTROL);
+        BY_HEADER.put("order_nack", CONTROL);
+        /* lock_ack is DATA: a peer that releases a lock replies after sending
+         * its updates of the resource, if the reply overtook them the
+         * requester would hold the lock over a stale value. The tree messages
+         * carry both, they are DATA too */
+        /* The chunks of the state are queued to the peer that asked for
+         * them, see InboundHandler, the rest of the replies to the 'sync-'
+         * requests are small and written on the connection of the request */
+        BY_HEADER.put("sync-askstate", BULK);
+        BY_HEADER.put("reply-askstate", BULK);
+        BY_HEADER.put("reply-statechunk", BULK);
+        BY_HEADER.put("repair", BULK);
+    }
+
+    /** The messages written in a row when the other lanes are waiting */
+    private final int defaultWeight;
+
+    private Lane(int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * Returns the lane of a message.
+     * @param header The header of the message
+     * @return The lane
+     */
+    public static Lane of(String header) {
+        Lane lane = BY_HEADER.get(header);
+        return lane == null ? DATA : lane;
+    }
+
+    /**
+     * @return the defaultWeight
+     */
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+}
@@ -0,0 +1,247 @@
+
+package damulticast;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Calls the RicartListener of the device on an Executor instead of the threads
+ * of the protocol, so a slow application does not delay the messages. The
+ * events are queued and the listener is called by one task at a time, in the
+ * order of the events. Only the latest value of a resource matters, so a
+ * resourceUpdate replaces the one of the same resource that is still queued,
+ * and moves to the end of the queue. When there are capacity events queued
+ * the new resourceUpdate are dropped; lockGranted is always queued, the
+ * application would wait for it forever otherwise. The task hands its thread
+ * back to the executor after BATCH events. The listener is never called on
+ * the threads of the protocol: if the executor rejects the task the events
+ * stay queued, the updates coalesced and dropped as usual, and are handed to
+ * it again with the next event.
+ * @author cesar
+ */
+public class ListenerDispatcher implements RicartListener, Runnable {
+
+    /** The events handled in a row before the task goes back to the executor */
+    private static final int BATCH = 32;
+
+    /** The listener of the application */
+    private RicartListener listener;
+    /** Runs the calls to the listener */
+    private Executor executor;
+    /** The events that can be queued */
+    private int capacity;
+    /** The events not handled yet, the replaced ones included */
+    private ArrayDeque<Event> events;
+    /** The resourceUpdate queued, by resource */
+    private HashMap<String, Event> updates;
+    /** The events queued that were not replaced */
+    private int size;
+    /** If a task is handling the events */
+    private boolean running;
+    /** If the executor rejected the task, reported once until it takes it */
+    private boolean rejected;
+    /** The events handled */
+    private long dispatched;
+    /** The resourceUpdate replaced by a newer one */
+    private long coalesced;
+    /** The resourceUpdate dropped because the queue was full */
+    private long dropped;
+    /** The total time the events waited, in milliseconds */
+    private long lagSum;
+    /** The longest time an event waited, in milliseconds */
+    private long maxLag;
+
+    public ListenerDispatcher(RicartListener listener, Executor executor,
+            int capacity) {
+        this.listener = listener;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.events = new ArrayDeque<Event>();
+        this.updates = new HashMap<String, Event>();
+    }
+
+    @Override
+    public void resourceUpdate(String resource, int value) {
+        synchronized (this) {
+            Event old = updates.get(resource);
+            if (old != null) {
+                old.replaced = true;
+                size--;
+                coalesced++;
+            } else if (size >= capacity) {
+                dropped++;
+                return;
+            }
+            Event event = new Event(resource, value, false);
+            updates.put(resource, event);
+            if (!add(event)) {
+                return;
+            }
+        }
+        start();
+    }
+
+    @Override
+    public void lockGranted(String resource) {
+        synchronized (this) {
+            if (!add(new Event(resource, 0, true))) {
+                return;
+            }
+        }
+        start();
+    }
+
+    /**
+     * Queues an event, called holding the lock.
+     * @return true if the task must be started
+     */
+    private boolean add(Event event) {
+        events.add(event);
+        size++;
+        if (running) {
+            return false;
+        }
+        running = true;
+        return true;
+    }
+
+    /**
+     * Hands the task to the executor. If the executor does not take it the
+     * events wait for the next one.
+     */
+    private void start() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException ree) {
+            synchronized (this) {
+                running = false;
+                if (rejected) {
+                    return;
+                }
+                rejected = true;
+            }
+            System.err.println("The listener executor rejected the events, "
+                + "they are kept queued.");
+            return;
+        }
+        synchronized (this) {
+            rejected = false;
+        }
+    }
+
+    /**
+     * Calls the listener with the events queued.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < BATCH; ) {
+            Event event;
+            synchronized (this) {
+                event = events.poll();
+                if (event == null) {
+                    running = false;
+                    return;
+                }
+                if (event.replaced) {
+                    continue;
+                }
+                if (!event.granted && updates.get(event.resource) == event) {
+                    updates.remove(event.resource);
+                }
+                size--;
+                dispatched++;
+                long lag = System.currentTimeMillis() - event.time;
+                lagSum += lag;
+                maxLag = Math.max(maxLag, lag);
+            }
+            try {
+                if (event.granted) {
+                    listener.lockGranted(event.resource);
+                } else {
+                    listener.resourceUpdate(event.resource, event.value);
+                }
+            } catch (RuntimeException re) {
+                System.err.println("Error in the listener for " + event.resource
+                    + ", " + re.getMessage());
+            }
+            i++;
+        }
+        /* Let the other tasks of the executor run */
+        start();
+    }
+
+    /**
+     * @return the number of events queued
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the dispatched
+     */
+    public synchronized long getDispatched() {
+        return dispatched;
+    }
+
+    /**
+     * @return the coalesced
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return the dropped
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the mean time the events waited to be handled, in milliseconds
+     */
+    public synchronized long getMeanLag() {
+        return dispatched == 0 ? 0 : lagSum / dispatched;
+    }
+
+    /**
+     * @return the maxLag, in milliseconds
+     */
+    public synchronized long getMaxLag() {
+        return maxLag;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "dispatched=" + dispatched + " coalesced=" + coalesced + " dropped="
+            + dropped + " queued=" + size + " lag=" + getMeanLag() + "ms max="
+            + maxLag + "ms";
+    }
+
+    /**
+     * A call to the listener waiting to be made.
+     */
+    private class Event {
+
+        /** The id of the resource */
+        private String resource;
+        /** The new value, for a resourceUpdate */
+        private int value;
+        /** If it is a lockGranted */
+        private boolean granted;
+        /** When it was queued */
+        private long time;
+        /** If a newer resourceUpdate of the resource replaced it */
+        private boolean replaced;
+
+        private Event(String resource, int value, boolean granted) {
+            this.resource = resource;
+            this.value = value;
+            this.granted = granted;
+            this.time = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Transport that moves the frames in memory, to run the tracker and many
+ * devices in the same JVM, for example in load tests. A LoopbackTransport is a
+ * network on its own: the tracker and the devices must share the same object.
+ * The connections are found by port only, the host is ignored, and every
+ * connection appears to come from 127.0.0.1.
+ * Every side of a connection has a queue and a thread that hands the frames to
+ * its listener, so the frames are received asynchronously as with a socket.
+ * @author cesar
+ */
+public class LoopbackTransport implements Transport {
+
+    /** The address every connection appears to come from */
+    public static final String ADDRESS = "127.0.0.1";
+    /** The first port assigned when an ephemeral one is asked for */
+    public static final int FIRST_EPHEMERAL_PORT = 49152;
+    /** Put in the queue of a connection to stop its thread */
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    /** The kind of threads for the connections */
+    private ThreadMode mode;
+    /** The servers listening, by port */
+    private ConcurrentHashMap<Integer, LoopbackServer> servers;
+    /** The connections that are open */
+    private Set<LoopbackConnection> connections;
+    /** The next ephemeral port */
+    private AtomicInteger nextPort;
+
+    public LoopbackTransport() {
+        this(ThreadMode.PLATFORM);
+    }
+
+    public LoopbackTransport(ThreadMode mode) {
+        this.mode = mode;
+        this.servers = new ConcurrentHashMap<Integer, LoopbackServer>();
+        this.connections = Collections.newSetFromMap(
+            new ConcurrentHashMap<LoopbackConnection, Boolean>());
+        this.nextPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+    }
+
+    @Override
+    public TransportServer listen(int port, TransportListener listener)
+            throws IOException {
+        if (port == 0) {
+            while (true) {
+                LoopbackServer server = new LoopbackServer(nextPort.getAndIncrement(),
+                    listener);
+                if (servers.putIfAbsent(server.getPort(), server) == null) {
+                    return server;
+                }
+            }
+        }
+        LoopbackServer server = new LoopbackServer(port, listener);
+        if (servers.putIfAbsent(port, server) != null) {
+            throw new BindException("Port already in use: " + port);
+        }
+        return server;
+    }
+
+    @Override
+    public TransportConnection connect(String host, int port, int timeout,
+            TransportListener listener) throws IOException {
+        LoopbackServer server = servers.get(port);
+        if (server == null) {
+            throw new ConnectException("Connection refused: " + host + ":" + port);
+        }
+        LoopbackConnection local = new LoopbackConnection(listener);
+        LoopbackConnection remote = new LoopbackConnection(server.listener);
+        local.other = remote;
+        remote.other = local;
+        remote.start("loopback-" + port);
+        local.start("loopback-" + port + "-reply");
+        return local;
+    }
+
+    @Override
+    public void close() {
+        for (LoopbackServer server : new ArrayList<LoopbackServer>(servers.values())) {
+            server.close();
+        }
+        for (LoopbackConnection connection : new ArrayList<LoopbackConnection>(connections)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * A port in which connections are accepted.
+     */
+    private class LoopbackServer implements TransportServer {
+
+        /** The port */
+        private int port;
+        /** Receives the frames of the connections accepted */
+        private TransportListener listener;
+
+        private LoopbackServer(int port, TransportListener listener) {
+            this.port = port;
+            this.listener = listener;
+        }
+
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public void close() {
+            servers.remove(port, this);
+        }
+    }
+
+    /**
+     * One side of a connection.
+     */
+    private class LoopbackConnection implements TransportConnection, Runnable {
+
+        /** The other side */
+        private LoopbackConnection other;
+        /** Receives the frames sent by the other side, null to discard them */
+        private TransportListener listener;
+        /** The frames waiting to be received */
+        private LinkedBlockingQueue<ByteBuffer> inbox;
+        /** If the connection was closed by either side */
+        private volatile boolean closed;
+        /** The object attached by the listener */
+        private volatile Object attachment;
+
+        private LoopbackConnection(TransportListener listener) {
+            this.listener = listener;
+            this.inbox = new LinkedBlockingQueue<ByteBuffer>();
+        }
+
+        /**
+         * Starts the thread that receives the frames, if there is a listener.
+         */
+        private void start(String name) {
+            connections.add(this);
+            if (listener != null) {
+                Threads.start(mode, this, name);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    ByteBuffer frame = inbox.take();
+                    if (frame == CLOSE) {
+                        break;
+                    }
+                    listener.received(this, frame);
+                }
+            } catch (InterruptedException ie) {
+                /* Stop receiving */
+            }
+            listener.closed(this, null);
+        }
+
+        @Override
+        public void send(ByteBuffer frame) throws IOException {
+            if (closed) {
+                throw new IOException("Connection with " + ADDRESS + " is closed");
+            }
+            if (other.listener == null) {
+                return;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame);
+            copy.flip();
+            other.inbox.add(copy);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return ADDRESS;
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            connections.remove(this);
+            /* The frames already queued are received before the close */
+            inbox.add(CLOSE);
+            other.close();
+        }
+    }
+}
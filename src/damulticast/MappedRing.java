@@ -0,0 +1,183 @@
+
+package damulticast;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * A queue of frames for a single producer and a single consumer, kept in a
+ * region of a file mapped in memory by two processes. The region starts with
+ * the position of the consumer (head), the position of the producer (tail) and
+ * a flag set when either side closes, each in its own cache line, followed by
+ * the data. Every frame is written in place as a length and its bytes, aligned
+ * to 4 bytes; a frame that does not fit before the end of the data is written
+ * at the start, after a padding mark. The positions only grow, the index in the
+ * data is the position modulo the capacity.
+ * The consumer reads the frames in place: peek returns a view of the next
+ * frame in the mapping, which is not overwritten until advance is called.
+ * @author cesar
+ */
+public class MappedRing {
+
+    /** The offset of the position of the consumer */
+    private static final int HEAD = 0;
+    /** The offset of the position of the producer */
+    private static final int TAIL = 64;
+    /** The offset of the flag set when the ring is closed */
+    private static final int CLOSED = 128;
+    /** The size of the positions and the flag, where the data starts */
+    public static final int HEADER = 192;
+    /** Written instead of a length when the rest of the data is skipped */
+    private static final int PADDING = -1;
+
+    /** The region of the mapping */
+    private ByteBuffer region;
+    /** Used to copy the frames in and to hand them out */
+    private ByteBuffer view;
+    /** The size of the data, a power of 2 */
+    private int capacity;
+    /** The tail for the producer, the head for the consumer */
+    private long position;
+    /** The size of the frame returned by peek, including the length */
+    private int peeked;
+    /** Only used by fence */
+    private volatile int barrier;
+
+    /**
+     * Creates one side of a ring. The region must be zeroed the first time it
+     * is used.
+     * @param region The region, of size(capacity) bytes
+     * @param capacity The size of the data, a power of 2
+     * @param producer If this side writes the frames, the other side reads them
+     */
+    public MappedRing(ByteBuffer region, int capacity, boolean producer) {
+        this.region = region;
+        this.view = region.duplicate();
+        this.capacity = capacity;
+        this.position = region.getLong(producer ? TAIL : HEAD);
+    }
+
+    /**
+     * Returns the size of the region of a ring.
+     * @param capacity The size of the data
+     * @return The size of the data and the header
+     */
+    public static int size(int capacity) {
+        return HEADER + capacity;
+    }
+
+    /**
+     * Writes a frame if there is room for it. Only called by the producer.
+     * @param frame The frame, its position is not changed
+     * @return true if the frame was written, false if the ring is full
+     * @throws ProtocolException If the frame would not fit in the empty ring
+     */
+    public boolean offer(ByteBuffer frame) throws ProtocolException {
+        int length = frame.remaining();
+        int record = align(4 + length);
+        if (record > capacity) {
+            throw new ProtocolException("Frame bigger than the ring: " + length);
+        }
+        long tail = position;
+        int index = (int) (tail & (capacity - 1));
+        int padding = capacity - index < record ? capacity - index : 0;
+        long head = region.getLong(HEAD);
+        /* The data is not written until the consumer has released it */
+        fence();
+        if (tail + padding + record - head > capacity) {
+            return false;
+        }
+        if (padding > 0) {
+            region.putInt(HEADER + index, PADDING);
+            tail += padding;
+            index = 0;
+        }
+        region.putInt(HEADER + index, length);
+        view.limit(HEADER + index + 4 + length);
+        view.position(HEADER + index + 4);
+        int start = frame.position();
+        view.put(frame);
+        frame.position(start);
+        position = tail + record;
+        /* The frame is complete before the consumer can see it */
+        fence();
+        region.putLong(TAIL, position);
+        return true;
+    }
+
+    /**
+     * Returns the next frame without releasing it. Only called by the consumer.
+     * @return A view of the frame in the mapping, valid until advance is
+     * called, or null if the ring is empty
+     */
+    public ByteBuffer peek() {
+        while (true) {
+            long tail = region.getLong(TAIL);
+            /* The frame is not read before the producer has published it */
+            fence();
+            if (position == tail) {
+                return null;
+            }
+            int index = (int) (position & (capacity - 1));
+            int length = region.getInt(HEADER + index);
+            if (length == PADDING) {
+                position += capacity - index;
+                continue;
+            }
+            peeked = align(4 + length);
+            view.limit(HEADER + index + 4 + length);
+            view.position(HEADER + index + 4);
+            return view;
+        }
+    }
+
+    /**
+     * Releases the frame returned by peek, so the producer can reuse its room.
+     * Only called by the consumer.
+     */
+    public void advance() {
+        position += peeked;
+        peeked = 0;
+        /* The frame has been read before the producer can overwrite it */
+        fence();
+        region.putLong(HEAD, position);
+    }
+
+    /**
+     * Marks the ring as closed for both sides. The frames already written can
+     * still be read.
+     */
+    public void close() {
+        fence();
+        region.putInt(CLOSED, 1);
+    }
+
+    /**
+     * @return true if either side has closed the ring
+     */
+    public boolean isClosed() {
+        boolean closed = region.getInt(CLOSED) != 0;
+        fence();
+        return closed;
+    }
+
+    /**
+     * Keeps the accesses to the mapping before it from being reordered with
+     * the ones after it. Java 7 has no explicit fences: the volatile write
+     * keeps the accesses before it in place and the volatile read does the
+     * same with the accesses after it.
+     */
+    private void fence() {
+        barrier = 1;
+        if (barrier != 1) {
+            throw new IllegalStateException("Barrier changed");
+        }
+    }
+
+    /**
+     * @return the size rounded up to a multiple of 4
+     */
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+}
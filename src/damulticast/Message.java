@@ -1,10 +1,37 @@
 
 package damulticast;
 
+import java.util.Arrays;
+
 /**
  * Encapsulates messages exchanged between the P2P peers. Each message has an id
  * associated with the peer (each peer has its own counter). The header is used
  * for a receiver to know how to process the message.
+ * The content of the messages of the protocol has two forms: the text, which is
+ * what the messages are built with and what is carried inside other messages,
+ * and the fields of the body of its Opcode, which is what the FrameCodec reads
+ * from the frames and what the handlers use. Each form is made from the other
+ * one the first time it is asked for, see FrameCodec.parse and format.
+ * The fields are shared by the opcodes:
+ * <pre>
+ * new_resource     key, value, resource (its id, NONE if it has none)
+ * update_resource  resource or key (the reference), value
+ * lock_resource    resource or key (the reference), number (the timestamp)
+ * lock_ack         resource or key (the reference), number (the multicast
+ *                  sequence number), entry 0 (the gossip version, if any)
+ * nack             number (the first sequence number), last
+ * repair           number (the sequence number), carried
+ * ping             entries (the ids of the dismissed peers)
+ * sync-askstate    number (the most resources, 0 for all), key (the last one
+ *                  received, null for none)
+ * reply-askstate, reply-statechunk
+ *                  entries (key, value, id)
+ * update_batch     entries (id or key as the reference, value)
+ * sync-gossip, reply-gossip
+ *                  entries (key, value, id as origin, counter, time)
+ * </pre>
+ * A reference is the id of the resource, see KeyDictionary, or its key when
+ * the id is NONE.
  * @author cesar
  */
 public class Message {
@@ -17,6 +44,38 @@ public class Message {
     private String header;
     /** Contains the content of the message */
     private String message;
+    /** Tracks the delivery of the message when it is sent, can be null */
+    private Delivery delivery;
+    /** The opcode of the header, null until it is asked for */
+    private Opcode opcode;
+    /** If the fields are set, or the text did not fit the opcode */
+    private boolean parsed;
+    /** If the text did not fit the opcode */
+    private boolean malformed;
+    /** The key or the reference of the resource of the message */
+    private String key;
+    /** The id of the resource of the message */
+    private int resource;
+    /** The value of a resource */
+    private int value;
+    /** The timestamp or the sequence number of the message */
+    private long number;
+    /** The last sequence number of a nack */
+    private long last;
+    /** The message carried by a repair, null if it was too old */
+    private Message carried;
+    /** The entries of the message, see addEntry */
+    private int size;
+    /** The keys of the entries */
+    private String[] keys;
+    /** The values of the entries */
+    private int[] values;
+    /** The ids of the entries */
+    private int[] ids;
+    /** The counters of the entries */
+    private long[] counters;
+    /** The times of the entries */
+    private long[] times;
 
     public Message(RemoteDevice peer, String header, String message) {
         this.peer = peer;
@@ -30,6 +89,73 @@ public class Message {
         this.header = header;
         this.message = message;
     }
+    
+    /**
+     * Creates a message of an opcode to be filled with the fields of its body,
+     * the text is made from them if it is asked for.
+     * @param id The id of the message
+     * @param peer The peer of the message
+     * @param opcode The opcode, not CUSTOM
+     */
+    public Message(int id, RemoteDevice peer, Opcode opcode) {
+        this.id = id;
+        this.peer = peer;
+        this.header = opcode.getHeader();
+        this.opcode = opcode;
+        this.parsed = true;
+        this.resource = KeyDictionary.NONE;
+    }
+
+    /**
+     * Clears the message to decode another one into it, see FrameCodec.decode.
+     * The arrays of the entries are kept for the next ones.
+     * @param id The id of the message
+     * @param opcode The opcode, not CUSTOM
+     */
+    void reset(int id, Opcode opcode) {
+        this.id = id;
+        this.header = opcode.getHeader();
+        this.message = null;
+        this.delivery = null;
+        this.opcode = opcode;
+        this.parsed = true;
+        this.malformed = false;
+        this.key = null;
+        this.resource = KeyDictionary.NONE;
+        this.value = 0;
+        this.number = 0;
+        this.last = 0;
+        this.carried = null;
+        this.size = 0;
+    }
+
+    /**
+     * Copies the message, for the ones decoded into a message that is reused
+     * and that have to be kept after the call they were received in.
+     * @return The copy
+     */
+    public Message copy() {
+        Message copy = new Message(id, peer, header, message);
+        copy.delivery = delivery;
+        copy.opcode = opcode;
+        copy.parsed = parsed;
+        copy.malformed = malformed;
+        copy.key = key;
+        copy.resource = resource;
+        copy.value = value;
+        copy.number = number;
+        copy.last = last;
+        copy.carried = carried;
+        copy.size = size;
+        if (size > 0) {
+            copy.keys = Arrays.copyOf(keys, size);
+            copy.values = Arrays.copyOf(values, size);
+            copy.ids = Arrays.copyOf(ids, size);
+            copy.counters = Arrays.copyOf(counters, size);
+            copy.times = Arrays.copyOf(times, size);
+        }
+        return copy;
+    }
 
     /**
      * @return the id
@@ -67,24 +193,225 @@ public class Message {
     }
 
     /**
-     * @param header the header to set
+     * @param header the header to set, the fields are kept
      */
     public void setHeader(String header) {
         this.header = header;
+        this.opcode = null;
     }
 
     /**
-     * @return the message
+     * @return the message, made from the fields if the message was decoded
      */
     public String getMessage() {
+        if (message == null && parsed && !malformed) {
+            message = FrameCodec.format(this);
+        }
         return message;
     }
 
     /**
-     * @param message the message to set
+     * @param message the message to set, the fields are parsed from it again
      */
     public void setMessage(String message) {
         this.message = message;
+        this.parsed = false;
+        this.malformed = false;
+    }
+
+    /**
+     * @return the opcode of the header, CUSTOM if it has none
+     */
+    public Opcode getOpcode() {
+        if (opcode == null) {
+            opcode = Opcode.fromHeader(header);
+        }
+        return opcode;
+    }
+
+    /**
+     * Makes sure the fields are set, parsing the text the first time.
+     * @return false if the text does not have the format of the opcode
+     */
+    public boolean hasFields() {
+        if (!parsed) {
+            parsed = true;
+            size = 0;
+            resource = KeyDictionary.NONE;
+            malformed = !FrameCodec.parse(this);
+        }
+        return !malformed;
+    }
+
+    /**
+     * @return the key, or the reference to the resource
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @param key the key to set
+     */
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the resource, KeyDictionary.NONE if it has no id
+     */
+    public int getResource() {
+        return resource;
+    }
+
+    /**
+     * @param resource the resource to set
+     */
+    public void setResource(int resource) {
+        this.resource = resource;
+    }
+
+    /**
+     * @return the value
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @param value the value to set
+     */
+    public void setValue(int value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the number, the timestamp or the sequence number
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    /**
+     * @param number the number to set
+     */
+    public void setNumber(long number) {
+        this.number = number;
+    }
+
+    /**
+     * @return the last sequence number of a nack
+     */
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * @param last the last to set
+     */
+    public void setLast(long last) {
+        this.last = last;
+    }
+
+    /**
+     * @return the message carried by a repair, null if it was too old
+     */
+    public Message getCarried() {
+        return carried;
+    }
+
+    /**
+     * @param carried the carried to set
+     */
+    public void setCarried(Message carried) {
+        this.carried = carried;
+    }
+
+    /**
+     * Adds an entry of a state, a batch, a round of gossip or a ping. The
+     * fields that do not apply to the opcode are 0 or null.
+     * @param key The key or the reference of a resource
+     * @param value The value of the resource
+     * @param id The id of the resource, of the origin of a rumor or of a peer
+     * @param counter The counter of a rumor
+     * @param time The time of a rumor
+     */
+    public void addEntry(String key, int value, int id, long counter, long time) {
+        if (keys == null) {
+            keys = new String[4];
+            values = new int[4];
+            ids = new int[4];
+            counters = new long[4];
+            times = new long[4];
+        } else if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+            counters = Arrays.copyOf(counters, size * 2);
+            times = Arrays.copyOf(times, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        ids[size] = id;
+        counters[size] = counter;
+        times[size] = time;
+        size++;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the key of an entry
+     */
+    public String getKey(int entry) {
+        return keys[entry];
+    }
+
+    /**
+     * @return the value of an entry
+     */
+    public int getValue(int entry) {
+        return values[entry];
+    }
+
+    /**
+     * @return the id of an entry
+     */
+    public int getId(int entry) {
+        return ids[entry];
+    }
+
+    /**
+     * @return the counter of an entry
+     */
+    public long getCounter(int entry) {
+        return counters[entry];
+    }
+
+    /**
+     * @return the time of an entry
+     */
+    public long getTime(int entry) {
+        return times[entry];
+    }
+
+    /**
+     * @return the delivery
+     */
+    public Delivery getDelivery() {
+        return delivery;
+    }
+
+    /**
+     * @param delivery the delivery to set
+     */
+    public void setDelivery(Delivery delivery) {
+        this.delivery = delivery;
     }
 
     /**
@@ -122,7 +449,7 @@ public class Message {
     @Override
     public String toString() {
         return "Message{" + "id=" + id + ", peer=" + peer.getId()+ ", header=" 
-            + header + ", message=" + message + '}';
+            + header + ", message=" + getMessage() + '}';
     }
     
 }
@@ -0,0 +1,20 @@
+
+package damulticast;
+
+/**
+ * Handles the messages of the peers with a header. The handlers are registered
+ * in the device by header, see Device.registerHandler, the ones of the
+ * protocol when the device is created. A handler can be called by several
+ * threads at once.
+ * @author cesar
+ */
+public interface MessageHandler {
+
+    /**
+     * Handles a message of a peer.
+     * @param m The message
+     * @return The reply to a 'sync-' message, null for the rest of the messages
+     * or if there is no reply
+     */
+    public Message handle(Message m);
+}
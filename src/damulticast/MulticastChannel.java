@@ -0,0 +1,476 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sends the messages that go to every peer (new resources, updates and
+ * goodbyes) with a single UDP datagram to a multicast group, instead of one
+ * message per peer. Every datagram is:
+ * <pre>
+ * zigzag varint sender id | varint sequence number | frame of the message
+ * </pre>
+ * The sequence numbers are per sender, so a receiver knows when it missed a
+ * datagram. In that case it holds back the following ones and asks the sender
+ * for the missing ones with a 'nack' message over the unicast connection. The
+ * sender keeps the last HISTORY messages and sends them back as 'repair'
+ * messages, also over unicast. If a message is too old to be repaired the
+ * receiver skips it.
+ * The lock_ack messages carry the last sequence number of the sender, so the
+ * peer that gets the lock first delivers all the multicast updates of the
+ * previous holder (see whenDelivered).
+ * Nothing is delivered from a sender until its base is known, the last
+ * sequence number already counted in the state of this device: 0 for a peer
+ * that says hello, since it joins with no messages sent, and the sequence
+ * numbers delivered by the peer that sent the state to a device that joins
+ * (see getState). Until then the datagrams are held, and once it is known
+ * everything after the base that is missing is asked for.
+ * The group is joined with a DatagramChannel on the first interface that
+ * supports multicast, with the loopback enabled, so several devices on the
+ * same host receive the datagrams of each other.
+ * @author cesar
+ */
+public class MulticastChannel implements Runnable {
+
+    /** The number of messages kept by the sender to repair gaps */
+    public static final int HISTORY = 1024;
+    /** The biggest datagram that can be sent */
+    public static final int MAX_DATAGRAM = 65507;
+
+    /** The device that sends and receives the messages */
+    private Device device;
+    /** The multicast group */
+    private InetAddress group;
+    /** The port of the multicast group */
+    private int port;
+    /** The channel joined to the group */
+    private DatagramChannel channel;
+    /** The membership of the channel in the group */
+    private MembershipKey membership;
+    /** Encodes the messages sent */
+    private FrameCodec codec;
+    /** The last sequence number sent by this device */
+    private long sequence;
+    /** The last messages sent, indexed by sequence number modulo HISTORY */
+    private Message[] history;
+    /** The sequence numbers of the messages in the history */
+    private long[] historySequences;
+    /** The state of the datagrams received from every sender, by id */
+    private HashMap<Integer, SenderState> senders;
+
+    public MulticastChannel(Device device, String group, int port) throws IOException {
+        this.device = device;
+        this.group = InetAddress.getByName(group);
+        this.port = port;
+        this.codec = new FrameCodec();
+        this.history = new Message[HISTORY];
+        this.historySequences = new long[HISTORY];
+        this.senders = new HashMap<Integer, SenderState>();
+        NetworkInterface networkInterface = findInterface();
+        this.channel = DatagramChannel.open(this.group instanceof Inet6Address
+            ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.channel.bind(new InetSocketAddress(port));
+        this.channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+        /* So devices on the same host get the datagrams of each other */
+        this.channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        this.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        this.membership = this.channel.join(this.group, networkInterface);
+    }
+
+    /**
+     * Finds the interface to join the group on, the first one that is up and
+     * supports multicast, the loopback one only if there is no other.
+     * @return The interface
+     * @throws IOException If no interface supports multicast
+     */
+    private static NetworkInterface findInterface() throws IOException {
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface candidate = interfaces.nextElement();
+            if (!candidate.isUp() || !candidate.supportsMulticast()) {
+                continue;
+            }
+            if (!candidate.isLoopback()) {
+                return candidate;
+            }
+            loopback = candidate;
+        }
+        if (loopback == null) {
+            throw new SocketException("No network interface supports multicast");
+        }
+        return loopback;
+    }
+
+    /**
+     * The receiving thread. Reads the datagrams of the group and delivers them
+     * in order per sender.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        FrameCodec receiveCodec = new FrameCodec();
+        while (channel.isOpen()) {
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+                buffer.flip();
+                int senderId = FrameCodec.unzigzag(FrameCodec.getVarint(buffer));
+                long seq = FrameCodec.getVarint(buffer);
+                if (senderId == device.getId()) {
+                    continue;
+                }
+                Message m = receiveCodec.decode(buffer);
+                if (m == null) {
+                    throw new ProtocolException("Truncated datagram");
+                }
+                RemoteDevice sender = device.lookUpPeer(senderId);
+                if (sender == null) {
+                    /* Without the peer there is no way to repair gaps */
+                    continue;
+                }
+                m.setSenderId(sender);
+                received(sender, seq, m);
+            } catch (IOException ioe) {
+                if (channel.isOpen()) {
+                    System.err.println("IOE while receiving multicast: "
+                        + ioe.getMessage());
+                }
+            } catch (RuntimeException re) {
+                System.err.println("Malformed multicast datagram: " + re);
+            }
+        }
+    }
+
+    /**
+     * Sends a message to the group.
+     * @param header The header of the message
+     * @param message The content of the message
+     * @return false if the message is too big for a datagram and must be sent
+     * by unicast
+     * @throws IOException If the datagram could not be sent
+     */
+    public synchronized boolean send(String header, String message) throws IOException {
+        Message m = new Message((int) (sequence + 1), null, header, message);
+        ByteBuffer frame = codec.encode(m);
+        if (frame.remaining() + 15 > MAX_DATAGRAM) {
+            return false;
+        }
+        sequence++;
+        ByteBuffer datagram = ByteBuffer.allocate(frame.remaining() + 15);
+        FrameCodec.putVarint(datagram, FrameCodec.zigzag(device.getId()));
+        FrameCodec.putVarint(datagram, sequence);
+        datagram.put(frame);
+        int slot = (int) (sequence % HISTORY);
+        history[slot] = m;
+        historySequences[slot] = sequence;
+        datagram.flip();
+        channel.send(datagram, new InetSocketAddress(group, port));
+        return true;
+    }
+
+    /**
+     * @return the sequence number of the last message sent
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Handles a 'nack' from a peer, sending back the messages it missed.
+     * @param peer The peer that missed the messages
+     * @param from The first sequence number missed
+     * @param to The last sequence number missed
+     */
+    public void repair(RemoteDevice peer, long from, long to) {
+        ArrayList<Message> repairs = new ArrayList<Message>();
+        synchronized (this) {
+            for (long seq = from; seq <= to; seq++) {
+                int slot = (int) (seq % HISTORY);
+                Message repair = new Message(0, peer, Opcode.REPAIR);
+                repair.setNumber(seq);
+                /* Too old if it is not kept, the peer will skip it */
+                if (historySequences[slot] == seq) {
+                    repair.setCarried(history[slot]);
+                }
+                repairs.add(repair);
+            }
+        }
+        for (Message repair : repairs) {
+            try {
+                device.send(repair);
+            } catch (IOException ioe) {
+                System.err.println("Could not repair multicast for peer "
+                    + peer.getId() + ", " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles a 'repair' from a peer, as if the datagram had been received.
+     * @param peer The peer that sent the multicast message
+     * @param seq The sequence number of the message
+     * @param repaired The message, null if it can not be repaired
+     */
+    public void repaired(RemoteDevice peer, long seq, Message repaired) {
+        received(peer, seq, repaired);
+    }
+
+    /**
+     * Runs a task once all the multicast messages of a peer up to a sequence
+     * number have been delivered. If some are missing they are asked for, if
+     * the base of the peer is not known yet they are asked for once it is.
+     * @param peer The peer
+     * @param seq The sequence number
+     * @param task The task
+     */
+    public void whenDelivered(RemoteDevice peer, long seq, Runnable task) {
+        boolean ready;
+        /* Nothing is asked for until the base is known */
+        long missingFrom = seq + 1;
+        synchronized (this) {
+            SenderState state = getSenderState(peer);
+            ready = state.based && state.next > seq;
+            if (!ready) {
+                ArrayList<Runnable> tasks = state.waiting.get(seq);
+                if (tasks == null) {
+                    tasks = new ArrayList<Runnable>();
+                    state.waiting.put(seq, tasks);
+                }
+                tasks.add(task);
+                if (state.based) {
+                    missingFrom = Math.max(state.next, state.requested + 1);
+                    state.requested = Math.max(state.requested, seq);
+                }
+            }
+        }
+        if (ready) {
+            task.run();
+        } else if (missingFrom <= seq) {
+            nack(peer, missingFrom, seq);
+        }
+    }
+
+    /**
+     * Sets the last sequence number of a peer counted in the state of this
+     * device, unless it is already known. The messages held after it are
+     * delivered and the ones missing asked for.
+     * @param peer The peer
+     * @param base The last sequence number counted, 0 if none
+     */
+    public void setBase(RemoteDevice peer, long base) {
+        ArrayList<Message> deliver = new ArrayList<Message>();
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        long gapFrom = -1;
+        long gapTo = -1;
+        synchronized (this) {
+            SenderState state = getSenderState(peer);
+            if (state.based) {
+                return;
+            }
+            state.based = true;
+            state.next = base + 1;
+            state.requested = base;
+            state.held.headMap(state.next).clear();
+            long received = state.held.isEmpty() ? base : state.held.lastKey();
+            /* Everything up to the last message held or waited for */
+            long last = received - 1;
+            if (!state.waiting.isEmpty()) {
+                last = Math.max(last, state.waiting.lastKey());
+            }
+            deliverHeld(peer, state, deliver, tasks);
+            if (last >= state.next) {
+                gapFrom = state.next;
+                gapTo = last;
+            }
+            state.requested = Math.max(last, received);
+        }
+        deliver(deliver, tasks);
+        if (gapFrom >= 0) {
+            nack(peer, gapFrom, gapTo);
+        }
+    }
+
+    /**
+     * Sets the base of every peer from the reply to 'sync-askmulticast' of
+     * the peer that sent the state, 0 for the peers it has not received from.
+     * @param state The sequence numbers delivered, 'id:seq,id:seq'
+     * @param peers The peers
+     * @throws NumberFormatException If the state is not well formed
+     */
+    public void receivedState(String state, List<RemoteDevice> peers) 
+            throws NumberFormatException {
+        VectorClock delivered = VectorClock.parse(state);
+        for (RemoteDevice peer : peers) {
+            setBase(peer, delivered.get(peer.getId()));
+        }
+    }
+
+    /**
+     * @return the reply to 'sync-askmulticast', the last sequence number
+     * delivered of every sender with a known base and the last one sent by
+     * this device, as 'id:seq,id:seq'
+     */
+    public synchronized String getState() {
+        StringBuilder state = new StringBuilder();
+        state.append(device.getId()).append(':').append(sequence);
+        for (Map.Entry<Integer, SenderState> entry : senders.entrySet()) {
+            if (entry.getValue().based) {
+                state.append(',').append(entry.getKey()).append(':')
+                    .append(entry.getValue().next - 1);
+            }
+        }
+        return state.toString();
+    }
+
+    /**
+     * Delivers a message received from the group or repaired, in sequence
+     * order. The messages after a gap are held back until the gap is repaired,
+     * and all of them until the base of the sender is known.
+     */
+    private void received(RemoteDevice sender, long seq, Message m) {
+        ArrayList<Message> deliver = new ArrayList<Message>();
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        long gapFrom = -1;
+        synchronized (this) {
+            SenderState state = getSenderState(sender);
+            if ((state.based && seq < state.next) || state.held.containsKey(seq)) {
+                /* Duplicated */
+                return;
+            }
+            state.held.put(seq, m);
+            if (!state.based) {
+                /* Held until the base is known */
+                return;
+            }
+            if (seq > state.next && seq - 1 > state.requested) {
+                /* Ask only for what was not asked already */
+                gapFrom = Math.max(state.next, state.requested + 1);
+            }
+            /* A message held is not asked for by the next gap */
+            state.requested = Math.max(state.requested, seq);
+            deliverHeld(sender, state, deliver, tasks);
+        }
+        deliver(deliver, tasks);
+        if (gapFrom >= 0) {
+            nack(sender, gapFrom, seq - 1);
+        }
+    }
+
+    /**
+     * Takes the held messages that follow the last one delivered, and the
+     * tasks waiting for them. Called holding the lock of the channel.
+     */
+    private void deliverHeld(RemoteDevice sender, SenderState state,
+            ArrayList<Message> deliver, ArrayList<Runnable> tasks) {
+        while (state.held.containsKey(state.next)) {
+            Message next = state.held.remove(state.next);
+            if (next != null) {
+                deliver.add(next);
+            } else {
+                System.err.println("Multicast message " + state.next
+                    + " from peer " + sender.getId() + " was lost");
+            }
+            state.next++;
+        }
+        Map<Long, ArrayList<Runnable>> ready = state.waiting.headMap(state.next);
+        for (ArrayList<Runnable> waiting : ready.values()) {
+            tasks.addAll(waiting);
+        }
+        ready.clear();
+    }
+
+    /**
+     * Delivers the messages taken by deliverHeld and runs the tasks, out of
+     * the lock of the channel.
+     */
+    private void deliver(ArrayList<Message> deliver, ArrayList<Runnable> tasks) {
+        for (Message next : deliver) {
+            device.receiveMessage(next);
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return the state of the datagrams of a sender, created with no base
+     * the first time. Called holding the lock of the channel.
+     */
+    private SenderState getSenderState(RemoteDevice sender) {
+        SenderState state = senders.get(sender.getId());
+        if (state == null) {
+            state = new SenderState();
+            senders.put(sender.getId(), state);
+        }
+        return state;
+    }
+
+    /**
+     * Asks a peer for the multicast messages that were missed.
+     */
+    private void nack(RemoteDevice peer, long from, long to) {
+        try {
+            Message nack = new Message(0, peer, Opcode.NACK);
+            nack.setNumber(from);
+            nack.setLast(to);
+            device.send(nack);
+        } catch (IOException ioe) {
+            System.err.println("Could not ask peer " + peer.getId()
+                + " for multicast repair, " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Leaves the group and closes the channel.
+     */
+    public void close() {
+        membership.drop();
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            System.err.println("IOException while leaving multicast group "
+                + ioe.getMessage());
+        }
+    }
+
+    /**
+     * The datagrams received from a sender.
+     */
+    private static class SenderState {
+
+        /** If the base is known, nothing is delivered before */
+        private boolean based;
+        /** The next sequence number to be delivered */
+        private long next;
+        /** The last sequence number asked for with a nack or received */
+        private long requested;
+        /** The messages received after a gap, null if lost for good */
+        private TreeMap<Long, Message> held;
+        /** The tasks waiting for a sequence number to be delivered */
+        private TreeMap<Long, ArrayList<Runnable>> waiting;
+
+        private SenderState() {
+            this.held = new TreeMap<Long, Message>();
+            this.waiting = new TreeMap<Long, ArrayList<Runnable>>();
+        }
+    }
+}
@@ -0,0 +1,627 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Transport over TCP with non blocking channels. All the servers and
+ * connections are serviced by a single Selector thread, so a peer that is slow
+ * or stalls in the middle of a frame does not stop the frames of the rest from
+ * being read. The complete frames of every connection are handed in order to
+ * a pool of dispatching threads that call the listeners, one connection at a
+ * time per thread, so the listeners never block the event loop and a
+ * listener that blocks, waiting for a reply for instance, only stops its own
+ * connection. The frames are not copied: the buffer they were read into is
+ * handed to the dispatcher, and the connection goes on reading into a buffer
+ * the dispatcher is done with. Frames sent are queued and written by the event loop, up to
+ * MAX_PENDING bytes per connection: past that send waits for the event loop to
+ * write them, so a peer that does not read slows down the writer of its own
+ * connection instead of filling the memory.
+ * @author cesar
+ */
+public class NioTransport implements Transport {
+
+    /** The size of the buffer of a connection when it is opened */
+    public static final int INITIAL_BUFFER = 8192;
+    /** The biggest frame that can be received, including the length prefix */
+    public static final int MAX_FRAME = FrameCodec.MAX_FRAME + 5;
+    /** The most bytes queued in a connection before send waits */
+    public static final int MAX_PENDING = 1 << 20;
+    /** The most time send waits for the queued bytes to be written, in ms */
+    public static final long SEND_TIMEOUT = 30000;
+
+    /** The selector for all the channels, null until the loop is started */
+    private Selector selector;
+    /** The thread of the event loop */
+    private Thread loop;
+    /** The threads that call the listeners */
+    private ExecutorService dispatcher;
+    /** The changes to the registrations, made by the event loop */
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    /** If the transport was closed */
+    private volatile boolean closed;
+
+    public NioTransport() {
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        final AtomicInteger count = new AtomicInteger();
+        this.dispatcher = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "nio-dispatcher-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public TransportServer listen(int port, TransportListener listener)
+            throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        final NioServer server = new NioServer(channel, listener);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(selector, SelectionKey.OP_ACCEPT, server);
+                } catch (ClosedChannelException cce) {
+                    /* Closed before being registered */
+                }
+            }
+        });
+        return server;
+    }
+
+    @Override
+    public TransportConnection connect(String host, int port, int timeout,
+            TransportListener listener) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            /* The connection is established blocking, then registered */
+            channel.socket().connect(new InetSocketAddress(host, port), timeout);
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+        NioConnection connection = new NioConnection(channel, listener);
+        connection.register();
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                /* Set by the event loop so it stops after this task */
+                closed = true;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioConnection) {
+                        ((NioConnection) key.attachment()).closeNow(null);
+                    } else {
+                        ((NioServer) key.attachment()).close();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a task in the event loop, starting it if needed.
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        try {
+            start();
+        } catch (IOException ioe) {
+            System.err.println("Could not open selector: " + ioe.getMessage());
+            return;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Opens the selector and starts the event loop the first time.
+     */
+    private synchronized void start() throws IOException {
+        if (loop != null) {
+            return;
+        }
+        selector = Selector.open();
+        loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    eventLoop();
+                } catch (IOException ioe) {
+                    System.err.println("General IOException: " + ioe);
+                }
+            }
+        }, "nio-loop");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * The event loop. Accepts new connections, reads the channels that have
+     * data and writes the queued frames.
+     */
+    private void eventLoop() throws IOException {
+        try {
+            while (!closed || !tasks.isEmpty()) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            ((NioServer) key.attachment()).accept();
+                        } catch (IOException ioe) {
+                            System.err.println("IOE while accepting connection: "
+                                + ioe.getMessage());
+                        }
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException ioe) {
+                        System.err.println("IOE exception while receiving message from peer: "
+                            + connection.getRemoteAddress());
+                        connection.closeNow(ioe);
+                    }
+                }
+            }
+        } finally {
+            dispatcher.shutdown();
+            selector.close();
+        }
+    }
+
+    /**
+     * Accepts the connections of a port.
+     */
+    private class NioServer implements TransportServer {
+
+        /** The channel in which the connections are accepted */
+        private ServerSocketChannel channel;
+        /** Receives the frames of the connections accepted */
+        private TransportListener listener;
+
+        private NioServer(ServerSocketChannel channel, TransportListener listener) {
+            this.channel = channel;
+            this.listener = listener;
+        }
+
+        /**
+         * Accepts all the pending connections and registers them for reading.
+         */
+        private void accept() throws IOException {
+            SocketChannel accepted;
+            while ((accepted = channel.accept()) != null) {
+                accepted.configureBlocking(false);
+                accepted.socket().setTcpNoDelay(true);
+                NioConnection connection = new NioConnection(accepted, listener);
+                connection.key = accepted.register(selector, SelectionKey.OP_READ,
+                    connection);
+            }
+        }
+
+        @Override
+        public int getPort() {
+            return channel.socket().getLocalPort();
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                System.err.println("IOException while closing listener "
+                    + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keeps the state of a connection. The bytes read are accumulated in a
+     * buffer until a complete frame is available, and the frames sent are
+     * queued until the channel is ready for writing.
+     */
+    private class NioConnection implements TransportConnection, Runnable {
+
+        /** The channel of the connection */
+        private SocketChannel channel;
+        /** The key of the channel, only used by the event loop */
+        private SelectionKey key;
+        /** The ip address at the other side */
+        private String remoteAddress;
+        /** Receives the frames read, null to discard them */
+        private TransportListener listener;
+        /** The bytes read that have not been dispatched yet */
+        private ByteBuffer in;
+        /** The frames waiting to be written */
+        private LinkedList<ByteBuffer> out;
+        /** The bytes of the frames waiting to be written, guarded by out */
+        private int pending;
+        /** If the connection must be closed once the frames are written */
+        private volatile boolean closing;
+        /** If the connection is closed */
+        private volatile boolean closed;
+        /** The object attached by the listener */
+        private volatile Object attachment;
+        /** The calls to the listener not made yet, guarded by itself */
+        private ArrayDeque<Runnable> callbacks;
+        /** If the connection is in the dispatcher, guarded by callbacks */
+        private boolean dispatching;
+        /** The batches already dispatched, to be reused, guarded by callbacks */
+        private ArrayDeque<FrameBatch> batches;
+
+        private NioConnection(SocketChannel channel, TransportListener listener) {
+            this.channel = channel;
+            this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+            this.listener = listener;
+            this.in = ByteBuffer.allocate(INITIAL_BUFFER);
+            this.out = new LinkedList<ByteBuffer>();
+            this.callbacks = new ArrayDeque<Runnable>();
+            this.batches = new ArrayDeque<FrameBatch>();
+        }
+
+        /**
+         * Registers the channel of a connection opened by this side.
+         */
+        private void register() {
+            final NioConnection connection = this;
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        key = channel.register(selector, interest(), connection);
+                    } catch (ClosedChannelException cce) {
+                        closeNow(cce);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Reads the available bytes and dispatches all the complete frames.
+         */
+        private void read() throws IOException {
+            if (!in.hasRemaining()) {
+                grow();
+            }
+            int read = channel.read(in);
+            in.flip();
+            int start = in.position();
+            int end;
+            while ((end = FrameCodec.frameEnd(in)) >= 0) {
+                in.position(end);
+            }
+            if (in.position() > start && listener != null) {
+                dispatch(start);
+            } else {
+                in.compact();
+            }
+            if (read < 0) {
+                /* The other side closed the connection */
+                closeNow(null);
+            }
+        }
+
+        /**
+         * Hands the complete frames read to the listener in a dispatching
+         * thread. The buffer is handed with them, and the bytes of the frame
+         * that is not complete are moved to the buffer of a batch already
+         * dispatched, so the frames are not copied.
+         * @param start Where the frames start, they end at the position
+         */
+        private void dispatch(int start) {
+            FrameBatch batch;
+            synchronized (callbacks) {
+                batch = batches.poll();
+            }
+            if (batch == null) {
+                batch = new FrameBatch();
+            }
+            ByteBuffer next = batch.buffer;
+            int end = in.position();
+            if (next == null || next.capacity() < in.limit() - end) {
+                next = ByteBuffer.allocate(Math.max(INITIAL_BUFFER, in.limit() - end));
+            }
+            next.clear();
+            next.put(in);
+            in.limit(end);
+            in.position(start);
+            batch.buffer = in;
+            in = next;
+            dispatch(batch);
+        }
+
+        /**
+         * Puts a batch back to be reused once its frames were dispatched. The
+         * buffers that grew for a big frame are not kept.
+         */
+        private void recycle(FrameBatch batch) {
+            if (batch.buffer.capacity() > INITIAL_BUFFER) {
+                batch.buffer = null;
+            }
+            synchronized (callbacks) {
+                batches.add(batch);
+            }
+        }
+
+        /**
+         * The frames of a read, handed to the listener as views of the buffer
+         * they were read into.
+         */
+        private class FrameBatch implements Runnable {
+
+            /** The frames, from the position to the limit */
+            private ByteBuffer buffer;
+
+            @Override
+            public void run() {
+                int limit = buffer.limit();
+                int position = buffer.position();
+                try {
+                    while (position < limit) {
+                        buffer.limit(limit);
+                        buffer.position(position);
+                        int end = FrameCodec.frameEnd(buffer);
+                        buffer.limit(end);
+                        listener.received(NioConnection.this, buffer);
+                        position = end;
+                    }
+                } catch (ProtocolException pe) {
+                    /* Never thrown, the frames were checked when read */
+                    throw new IllegalStateException(pe);
+                } finally {
+                    recycle(this);
+                }
+            }
+        }
+
+        /**
+         * Calls the listener after the calls made before, the connection is
+         * handed to the dispatcher if it is not there yet.
+         */
+        private void dispatch(Runnable callback) {
+            synchronized (callbacks) {
+                callbacks.add(callback);
+                if (dispatching) {
+                    return;
+                }
+                dispatching = true;
+            }
+            try {
+                dispatcher.execute(this);
+            } catch (RejectedExecutionException ree) {
+                /* The transport was closed */
+                synchronized (callbacks) {
+                    callbacks.clear();
+                    dispatching = false;
+                }
+            }
+        }
+
+        /**
+         * Makes the calls to the listener in order, until there are none.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                Runnable callback;
+                synchronized (callbacks) {
+                    callback = callbacks.poll();
+                    if (callback == null) {
+                        dispatching = false;
+                        return;
+                    }
+                }
+                try {
+                    callback.run();
+                } catch (RuntimeException re) {
+                    System.err.println("Error while dispatching a frame from "
+                        + remoteAddress + ", " + re);
+                }
+            }
+        }
+
+        /**
+         * Writes as many of the queued frames as the channel accepts.
+         */
+        private void write() throws IOException {
+            synchronized (out) {
+                while (!out.isEmpty()) {
+                    ByteBuffer buffer = out.getFirst();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    out.removeFirst();
+                    pending -= buffer.capacity();
+                    out.notifyAll();
+                }
+            }
+            if (closing) {
+                closeNow(null);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * @return the operations the event loop must wait for
+         */
+        private int interest() {
+            synchronized (out) {
+                return out.isEmpty() && !closing ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            }
+        }
+
+        /**
+         * Asks the event loop to write the queued frames.
+         */
+        private void requestWrite() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(interest());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Queues a frame for the event loop, waiting up to SEND_TIMEOUT while
+         * the frames already queued take more than MAX_PENDING bytes.
+         */
+        @Override
+        public void send(ByteBuffer frame) throws IOException {
+            if (closed || closing) {
+                throw new IOException("Connection with " + remoteAddress
+                    + " is closed");
+            }
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame);
+            copy.flip();
+            synchronized (out) {
+                /* A frame bigger than the bound is queued alone */
+                long deadline = System.currentTimeMillis() + SEND_TIMEOUT;
+                while (pending > 0 && pending + copy.capacity() > MAX_PENDING 
+                        && !closed) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Connection with " 
+                            + remoteAddress + " is not being written");
+                    }
+                    try {
+                        out.wait(wait);
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException("Interrupted while "
+                            + "waiting to write to " + remoteAddress);
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection with " + remoteAddress
+                        + " is closed");
+                }
+                out.add(copy);
+                pending += copy.capacity();
+            }
+            requestWrite();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && !closing;
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            requestWrite();
+        }
+
+        /**
+         * Closes the channel right away and notifies the listener.
+         * @param cause The error that closed it, null if closed normally
+         */
+        private void closeNow(final IOException cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            synchronized (out) {
+                /* The senders waiting for room give up */
+                out.notifyAll();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                System.err.println("IOException while closing peer "
+                    + ioe.getMessage());
+            }
+            if (listener != null) {
+                final NioConnection connection = this;
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.closed(connection, cause);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Doubles the size of the buffer up to the maximum size of a frame.
+         */
+        private void grow() throws IOException {
+            if (in.capacity() >= MAX_FRAME) {
+                throw new IOException("Frame too big from peer");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_FRAME));
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+
+package damulticast;
+
+import java.util.HashMap;
+
+/**
+ * The types of frames of the wire protocol. Every opcode is written as a single
+ * byte and corresponds to the header of the messages of that type. Messages
+ * with a header that has no opcode are sent as CUSTOM frames, which carry the
+ * header as a string.
+ * @author cesar
+ */
+public enum Opcode {
+    
+    CUSTOM(0, null),
+    IDENTIFY(1, null),
+    HELLO(2, "hello"),
+    GOODBYE(3, "goodbye"),
+    NEW_RESOURCE(4, "new_resource"),
+    LOCK_RESOURCE(5, "lock_resource"),
+    LOCK_ACK(6, "lock_ack"),
+    UPDATE_RESOURCE(7, "update_resource"),
+    PING(8, "ping"),
+    ASKSTATE(9, "sync-askstate"),
+    REPLY_ASKSTATE(10, "reply-askstate"),
+    UPDATE_BATCH(11, "update_batch"),
+    NACK(12, "nack"),
+    REPAIR(13, "repair"),
+    STATE_CHUNK(14, "reply-statechunk"),
+    GOSSIP(15, "sync-gossip"),
+    REPLY_GOSSIP(16, "reply-gossip");
+    
+    /** The opcodes by code, to decode them */
+    private static final Opcode[] BY_CODE;
+    /** The opcodes by header, to encode them */
+    private static final HashMap<String, Opcode> BY_HEADER;
+    
+    static {
+        BY_CODE = new Opcode[values().length];
+        BY_HEADER = new HashMap<String, Opcode>();
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+            if (opcode.header != null) {
+                BY_HEADER.put(opcode.header, opcode);
+            }
+        }
+    }
+    
+    /** The byte written on the wire */
+    private final int code;
+    /** The header of the messages of this type */
+    private final String header;
+    
+    private Opcode(int code, String header) {
+        this.code = code;
+        this.header = header;
+    }
+    
+    /**
+     * Returns the opcode for a code read from the wire.
+     * @param code The code
+     * @return The opcode, or null if the code is unknown
+     */
+    public static Opcode fromCode(int code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            return null;
+        }
+        return BY_CODE[code];
+    }
+    
+    /**
+     * Returns the opcode for the header of a message.
+     * @param header The header
+     * @return The opcode, CUSTOM if the header has no opcode of its own
+     */
+    public static Opcode fromHeader(String header) {
+        Opcode opcode = BY_HEADER.get(header);
+        return opcode == null ? CUSTOM : opcode;
+    }
+
+    /**
+     * @return the code
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return the header
+     */
+    public String getHeader() {
+        return header;
+    }
+}
@@ -0,0 +1,182 @@
+
+package damulticast;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages waiting to be written to a peer, in one bounded queue per Lane.
+ * The messages are taken by weighted round robin: a lane gives up to its
+ * weight of messages in a row before the next lane with messages is served,
+ * and the lanes that are empty are skipped. So a CONTROL message waits at most
+ * for the weights of the other lanes, whatever the number of messages queued
+ * in them.
+ * The lock requests and their replies are never refused nor evicted to make
+ * room, whatever the capacity: a lost request would count as a vote and a
+ * lost reply would leave the requester waiting for good.
+ * Guarded by a ReentrantLock so a virtual thread waiting in take does not pin
+ * its carrier thread.
+ * @author cesar
+ */
+public class OutboundQueue {
+
+    /** The messages of every lane, by ordinal */
+    private ArrayDeque<Message>[] lanes;
+    /** The weight of every lane, by ordinal */
+    private int[] weights;
+    /** The most messages in every lane */
+    private int capacity;
+    /** The lane being served */
+    private int current;
+    /** The messages the lane being served can still give */
+    private int credit;
+    /** The messages in all the lanes */
+    private int size;
+    /** Guards the lanes */
+    private ReentrantLock lock;
+    /** Signaled when a message is added */
+    private Condition notEmpty;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OutboundQueue(DeviceConfig config) {
+        Lane[] all = Lane.values();
+        this.lanes = new ArrayDeque[all.length];
+        this.weights = new int[all.length];
+        for (Lane lane : all) {
+            lanes[lane.ordinal()] = new ArrayDeque<Message>();
+            weights[lane.ordinal()] = Math.max(1, config.getLaneWeight(lane));
+        }
+        this.capacity = config.getQueueCapacity();
+        this.current = 0;
+        this.credit = weights[0];
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    /**
+     * @return true if the messages with this header are never dropped, the
+     * lock requests and their replies
+     */
+    public static boolean isExempt(String header) {
+        return header.equals("lock_resource") || header.equals("lock_ack");
+    }
+
+    /**
+     * Adds a message to the end of its lane.
+     * @param m The message
+     * @return false if the lane is full, never for the exempt messages
+     */
+    public boolean offer(Message m) {
+        lock.lock();
+        try {
+            ArrayDeque<Message> lane = lanes[Lane.of(m.getHeader()).ordinal()];
+            if (lane.size() >= capacity && !isExempt(m.getHeader())) {
+                return false;
+            }
+            lane.add(m);
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message of a lane that is not exempt, to make room
+     * in it.
+     * @param lane The lane
+     * @return The message, null if the lane has only exempt messages
+     */
+    public Message pollOldest(Lane lane) {
+        lock.lock();
+        try {
+            Iterator<Message> messages = lanes[lane.ordinal()].iterator();
+            while (messages.hasNext()) {
+                Message m = messages.next();
+                if (!isExempt(m.getHeader())) {
+                    messages.remove();
+                    size--;
+                    return m;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a message of any lane, without waiting, the lanes of more
+     * priority first.
+     * @return The message, null if all the lanes are empty
+     */
+    public Message poll() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Message> lane : lanes) {
+                Message m = lane.poll();
+                if (m != null) {
+                    size--;
+                    return m;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a message and removes the next one by weighted round robin.
+     * @return The message
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public Message take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            while (true) {
+                ArrayDeque<Message> lane = lanes[current];
+                if (credit > 0 && !lane.isEmpty()) {
+                    credit--;
+                    size--;
+                    return lane.poll();
+                }
+                current = (current + 1) % lanes.length;
+                credit = weights[current];
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages in all the lanes
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane The lane
+     * @return the number of messages in a lane
+     */
+    public int size(Lane lane) {
+        lock.lock();
+        try {
+            return lanes[lane.ordinal()].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
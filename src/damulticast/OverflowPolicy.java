@@ -0,0 +1,15 @@
+
+package damulticast;
+
+/**
+ * What a peer connection does when its outbound queue is full. The lock
+ * requests and replies are never dropped, see OutboundQueue.
+ * @author cesar
+ */
+public enum OverflowPolicy {
+    
+    /** The new message is refused, send throws an IOException */
+    DROP_NEWEST,
+    /** The oldest queued message is discarded to make room for the new one */
+    DROP_OLDEST
+}
@@ -0,0 +1,402 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a long lived connection to a peer. The connection is opened lazily the
+ * first time a message is written, and it is reused for every message after
+ * that instead of opening a new connection per message. When the connection is
+ * opened the device identifies itself once (id and listening port), after that
+ * every message is written as a frame encoded by the FrameCodec.
+ * Messages are not written by the thread that sends them, they are added to an
+ * outbound queue that is drained by the writer thread of the connection. This
+ * way a peer that is slow or unreachable only delays its own messages. If a
+ * frame can not be written the connection is reopened and the frame is written
+ * again, up to the retries in the DeviceConfig, after that the device is
+ * notified that the message could not be delivered.
+ * The queue has a lane for every class of traffic, see Lane and OutboundQueue,
+ * so the messages of the locks are written before a burst of updates or a
+ * transfer of the state that was queued earlier.
+ * The 'sync-' requests are queued like the rest of the messages, the caller
+ * gets a ReplyFuture. The transport hands the replies to the connection, which
+ * completes the futures by the id of the request, so many requests can be
+ * waiting for replies at once. The chunks of the state are queued by the peer
+ * and come on the connection it opened, the device hands them to replied.
+ * The replies queued to the peer carry the ids of its requests, they are
+ * never matched with the requests of this device.
+ * The writer is a platform or a virtual thread depending on the ThreadMode of
+ * the configuration. The transport connection is guarded by a ReentrantLock 
+ * instead of the monitor of the connection, so a virtual thread blocked 
+ * writing does not pin its carrier thread.
+ * @author cesar
+ */
+public class PeerConnection implements Runnable, TransportListener {
+
+    /** The device that owns the connection */
+    private Device device;
+    /** The peer at the other side of the connection */
+    private RemoteDevice peer;
+    /** The settings for the queue and the retries */
+    private DeviceConfig config;
+    /** The messages waiting to be written */
+    private OutboundQueue queue;
+    /** The thread that writes the queued messages, null until the first message */
+    private volatile Thread writer;
+    /** If the connection was closed for good */
+    private volatile boolean closed;
+    /** Encodes the frames written */
+    private FrameCodec codec;
+    /** Decodes the replies */
+    private FrameCodec replyCodec;
+    /** The connection of the transport, null if it is not open */
+    private volatile TransportConnection channel;
+    /** The requests waiting for a reply, by id */
+    private ConcurrentHashMap<Integer, ReplyFuture> pending;
+    /** Guards the transport connection and the codec */
+    private ReentrantLock lock;
+
+    public PeerConnection(Device device, RemoteDevice peer, DeviceConfig config) {
+        this.device = device;
+        this.peer = peer;
+        this.config = config;
+        this.queue = new OutboundQueue(config);
+        this.codec = new FrameCodec();
+        this.replyCodec = new FrameCodec();
+        this.lock = new ReentrantLock();
+        this.pending = new ConcurrentHashMap<Integer, ReplyFuture>();
+    }
+
+    /**
+     * The writer thread. Takes the messages from the queue and writes them.
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            Message m;
+            try {
+                m = queue.take();
+            } catch (InterruptedException ie) {
+                break;
+            }
+            deliver(m);
+        }
+    }
+
+    /**
+     * Adds a message to the outbound queue and returns right away. If the lane
+     * of the message is full the OverflowPolicy of the configuration is applied
+     * to that lane. The lock requests and replies are always queued, see
+     * OutboundQueue.
+     * @param m The message to be sent, with its id already assigned
+     * @throws IOException If the queue is full and the policy refuses the message,
+     * or if the connection was closed.
+     */
+    public void enqueue(Message m) throws IOException {
+        if (closed) {
+            throw new IOException("Connection with peer " + peer.getId() + " is closed");
+        }
+        startWriter();
+        while (!queue.offer(m)) {
+            if (config.getOverflowPolicy() == OverflowPolicy.DROP_NEWEST) {
+                throw new IOException("Outbound queue full for peer " + peer.getId());
+            }
+            Message dropped = queue.pollOldest(Lane.of(m.getHeader()));
+            if (dropped == null) {
+                /* Only lock messages in the lane, they are not evicted */
+                throw new IOException("Outbound queue full for peer " + peer.getId());
+            }
+            failed(dropped, new IOException(
+                "Outbound queue full for peer " + peer.getId()));
+        }
+    }
+
+    /**
+     * Queues a request, a message prefixed with 'sync-', and returns right away.
+     * The id of the message is the correlation id of the reply.
+     * @param m The request, with its id already assigned
+     * @return The future reply of the peer
+     * @throws IOException If the request could not be queued
+     */
+    public ReplyFuture request(Message m) throws IOException {
+        ReplyFuture reply = new ReplyFuture(this, m.getId());
+        pending.put(m.getId(), reply);
+        try {
+            enqueue(m);
+        } catch (IOException ioe) {
+            pending.remove(m.getId());
+            throw ioe;
+        }
+        return reply;
+    }
+
+    /**
+     * Stops waiting for the reply of a request.
+     * @param id The id of the request
+     */
+    public void forget(int id) {
+        pending.remove(id);
+    }
+
+    /**
+     * Closes the connection for good, the messages still in the queue are
+     * discarded and their deliveries failed.
+     */
+    public void close() {
+        closed = true;
+        Thread w = writer;
+        if (w != null) {
+            w.interrupt();
+        }
+        /* The messages that were not written are failed */
+        Message m;
+        while ((m = queue.poll()) != null) {
+            if (m.getDelivery() != null) {
+                m.getDelivery().complete(DeliveryOutcome.FAILED);
+            }
+        }
+        failPending(null, new IOException("Connection with peer " + peer.getId()
+            + " is closed"));
+        /* The channel is closed without waiting for the writer, in case it is
+         * blocked connecting or writing */
+        TransportConnection c = channel;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    /**
+     * Called by the transport with the replies of the peer.
+     */
+    @Override
+    public void received(TransportConnection connection, ByteBuffer frame) {
+        Message reply;
+        try {
+            reply = replyCodec.decode(frame);
+        } catch (ProtocolException pe) {
+            System.err.println("Malformed reply from peer " + peer.getId()
+                + ", " + pe.getMessage());
+            return;
+        }
+        reply.setSenderId(peer);
+        complete(reply, true);
+    }
+
+    /**
+     * Completes the request of a reply queued by the peer. It is not sampled
+     * for the round trip time, it waited in the queue of the peer.
+     * @param reply The reply, with the id of the request
+     */
+    public void replied(Message reply) {
+        complete(reply, false);
+    }
+
+    /**
+     * Completes the request of a reply.
+     * @param sample If the time since the request was written is a sample of
+     * the round trip time
+     */
+    private void complete(Message reply, boolean sample) {
+        ReplyFuture future = pending.remove(reply.getId());
+        if (future != null) {
+            long sent = future.getSent();
+            if (sample && sent > 0) {
+                peer.getRtt().sample(System.nanoTime() - sent);
+            }
+            future.complete(reply);
+        } else {
+            System.err.println("Unexpected reply " + reply.getId() 
+                + " from peer " + peer.getId());
+        }
+    }
+
+    /**
+     * Called by the transport when the connection is closed, the requests
+     * written to it will not get a reply.
+     */
+    @Override
+    public void closed(TransportConnection connection, IOException cause) {
+        if (cause == null) {
+            cause = new IOException("Connection with peer " + peer.getId() 
+                + " was closed");
+        }
+        failPending(connection, cause);
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @param lane The lane
+     * @return the number of messages of a lane waiting to be written
+     */
+    public int getQueueSize(Lane lane) {
+        return queue.size(lane);
+    }
+
+    /**
+     * Writes a message retrying as configured. If all the attempts fail the
+     * device is notified.
+     */
+    private void deliver(Message m) {
+        IOException failure = null;
+        for (int attempt = 0; attempt <= config.getMaxRetries() && !closed; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(config.getRetryDelay());
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            try {
+                lock.lock();
+                try {
+                    writeFrame(m);
+                    ReplyFuture reply = isRequest(m) ? pending.get(m.getId()) : null;
+                    if (reply != null) {
+                        reply.setChannel(channel);
+                        /* The requests written again are not sampled */
+                        reply.setSent(attempt == 0 ? System.nanoTime() : -1);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (m.getDelivery() != null) {
+                    m.getDelivery().complete(DeliveryOutcome.DELIVERED);
+                }
+                return;
+            } catch (IOException ioe) {
+                /* The connection might have been closed by the peer, reconnect */
+                disconnect();
+                failure = ioe;
+            }
+        }
+        if (failure == null) {
+            failure = new IOException("Connection with peer " + peer.getId() + " is closed");
+        }
+        failed(m, failure);
+    }
+
+    /**
+     * Notifies the device that a message could not be delivered, and fails
+     * the reply if it was a request.
+     */
+    private void failed(Message m, IOException ioe) {
+        ReplyFuture reply = isRequest(m) ? pending.remove(m.getId()) : null;
+        if (reply != null) {
+            reply.fail(ioe);
+        }
+        device.deliveryFailed(m, ioe);
+    }
+
+    /**
+     * @return true if a message is a 'sync-' request, its id is the one of a
+     * reply waited for
+     */
+    private static boolean isRequest(Message m) {
+        return m.getHeader().startsWith("sync-");
+    }
+
+    /**
+     * Fails the requests waiting for a reply in a transport connection.
+     * @param c The connection, null for all the requests
+     */
+    private void failPending(TransportConnection c, IOException ioe) {
+        Iterator<ReplyFuture> replies = pending.values().iterator();
+        while (replies.hasNext()) {
+            ReplyFuture reply = replies.next();
+            if (c == null || reply.getChannel() == c) {
+                replies.remove();
+                reply.fail(ioe);
+            }
+        }
+    }
+
+    /**
+     * Starts the writer thread if it was not started yet.
+     */
+    private void startWriter() {
+        /* The queue is used as lock since the connection is locked while writing */
+        synchronized (queue) {
+            if (writer == null) {
+                writer = Threads.start(config.getThreadMode(), this, 
+                    "writer-" + peer.getId());
+            }
+        }
+    }
+
+    /**
+     * Closes the transport connection, the next write will open it again.
+     */
+    private void disconnect() {
+        lock.lock();
+        try {
+            if (channel == null) {
+                return;
+            }
+            channel.close();
+            channel = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the connection if needed and writes the frame.
+     */
+    private void writeFrame(Message m) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            connect();
+        }
+        channel.send(codec.encode(m));
+    }
+
+    /**
+     * Opens the transport connection and identifies the device to the peer,
+     * the replies are received by this object.
+     */
+    private void connect() throws IOException {
+        long start = System.nanoTime();
+        TransportConnection c;
+        try {
+            c = device.getTransport().connect(peer.getIpAddress(), peer.getPort(),
+                (int) device.getTimeout(peer), this);
+        } catch (SocketTimeoutException ste) {
+            peer.getRtt().timedOut();
+            throw ste;
+        }
+        /* Establishing a connection takes a round trip */
+        peer.getRtt().sample(System.nanoTime() - start);
+        try {
+            c.send(codec.encodeIdentification(device.getId(), device.getPort()));
+        } catch (IOException ioe) {
+            c.close();
+            throw ioe;
+        }
+        channel = c;
+    }
+
+    /**
+     * @return true if the connection was closed for good
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the peer
+     */
+    public RemoteDevice getPeer() {
+        return peer;
+    }
+}
@@ -13,15 +13,21 @@ public class RemoteDevice {
     private String ipAddress;
     /** The port in which the peer listens */
     private int port;
+    /** The connection kept with the peer, null if no message was sent yet */
+    private PeerConnection connection;
+    /** The round trip time to the peer, drives the timeouts */
+    private RttEstimator rtt;
 
     public RemoteDevice(int id, String ipAddress, int port) {
         this.id = id;
         this.ipAddress = ipAddress;
         this.port = port;
+        this.rtt = new RttEstimator();
     }
     
     public RemoteDevice(int id) {
         this.id = id;
+        this.rtt = new RttEstimator();
     }
     /**
      * @return the id
@@ -65,6 +71,27 @@ public class RemoteDevice {
         this.port = port;
     }
 
+    /**
+     * @return the connection
+     */
+    public PeerConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @param connection the connection to set
+     */
+    public void setConnection(PeerConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @return the rtt
+     */
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
     /**
      * Equals method. One peer will be equal to another if their id is equal.
      * @param obj
@@ -0,0 +1,168 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The reply to a 'sync-' request sent to a peer. The id of the request is used
+ * as correlation id, the peer writes it in the reply, so several requests can
+ * be waiting for their replies in the same connection and the replies can
+ * arrive in any order. The peer connection completes the future when the reply
+ * is read, or fails it if the request could not be written or the connection
+ * was lost before the reply arrived.
+ * @author cesar
+ */
+public class ReplyFuture implements Future<Message> {
+    
+    /** The connection in which the request was sent */
+    private PeerConnection connection;
+    /** The id of the request */
+    private int id;
+    /** The reply, null while pending */
+    private volatile Message reply;
+    /** Why there is no reply, null while pending */
+    private volatile IOException failure;
+    /** If the request was cancelled */
+    private volatile boolean cancelled;
+    /** The transport connection the request was written to, null until written */
+    private volatile TransportConnection channel;
+    /** When the request was written, in nanoseconds, 0 until written and -1
+     * if written more than once */
+    private volatile long sent;
+    /** Released when the reply or the failure are known */
+    private CountDownLatch done;
+    
+    public ReplyFuture(PeerConnection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+        this.done = new CountDownLatch(1);
+    }
+    
+    /**
+     * Sets the reply of the request, unless the future is done already.
+     * @param reply The reply
+     */
+    public synchronized void complete(Message reply) {
+        if (done.getCount() > 0) {
+            this.reply = reply;
+            done.countDown();
+        }
+    }
+    
+    /**
+     * Fails the request, unless the future is done already.
+     * @param failure Why there will be no reply
+     */
+    public synchronized void fail(IOException failure) {
+        if (done.getCount() > 0) {
+            this.failure = failure;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Stops waiting for the reply, it is discarded if it arrives later.
+     * @param mayInterruptIfRunning Ignored, nothing runs for the future
+     * @return false if the future was done already
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done.getCount() == 0) {
+                return false;
+            }
+            cancelled = true;
+            done.countDown();
+        }
+        connection.forget(id);
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Message get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Message get(long timeout, TimeUnit unit) throws InterruptedException, 
+            ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("No reply for message " + id);
+        }
+        return result();
+    }
+    
+    /**
+     * Returns the reply once done, or throws why there is none.
+     */
+    private Message result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException(
+                "Request " + id + " was cancelled");
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return reply;
+    }
+
+    /**
+     * @return the id of the request
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the peer the request was sent to
+     */
+    public RemoteDevice getPeer() {
+        return connection.getPeer();
+    }
+
+    /**
+     * @return the sent
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @param sent the sent to set
+     */
+    public void setSent(long sent) {
+        this.sent = sent;
+    }
+
+    /**
+     * @return the transport connection the request was written to, null if
+     * not written yet
+     */
+    public TransportConnection getChannel() {
+        return channel;
+    }
+
+    /**
+     * @param channel the channel to set
+     */
+    public void setChannel(TransportConnection channel) {
+        this.channel = channel;
+    }
+}
@@ -0,0 +1,162 @@
+
+package damulticast;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the handling of the messages of every resource in order, one at a time,
+ * and the ones of different resources in parallel on a shared pool of threads.
+ * Every key has a queue of tasks that is run by one thread of the pool while
+ * it has tasks, so a lock_ack of a resource does not wait behind the updates
+ * of another one, and the messages of a resource are still handled in the
+ * order they were received. A queue hands its thread back to the pool after
+ * BATCH tasks, so a busy resource does not keep the rest waiting. The queues
+ * are removed when they are empty.
+ * @author cesar
+ */
+public class ResourceExecutor {
+
+    /** The tasks run in a row by a queue before it goes back to the pool */
+    private static final int BATCH = 32;
+
+    /** The threads that run the queues */
+    private ExecutorService pool;
+    /** The queues that have tasks, by key */
+    private HashMap<String, SerialQueue> queues;
+    /** The tasks run */
+    private long executed;
+    /** The tasks that found the queue of their key running */
+    private long queued;
+
+    public ResourceExecutor(final ThreadMode mode, int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return Threads.newThread(mode, r, "resource-" + count.incrementAndGet());
+            }
+        });
+        this.queues = new HashMap<String, SerialQueue>();
+    }
+
+    /**
+     * Runs a task after the tasks of the same key that were given before.
+     * @param key The key, the id of a resource or any other name
+     * @param task The task
+     */
+    public void execute(String key, Runnable task) {
+        SerialQueue queue;
+        synchronized (this) {
+            queue = queues.get(key);
+            if (queue == null) {
+                queue = new SerialQueue(key);
+                queues.put(key, queue);
+            }
+            queue.tasks.add(task);
+            if (queue.running) {
+                queued++;
+                return;
+            }
+            queue.running = true;
+        }
+        submit(queue);
+    }
+
+    /**
+     * Hands a queue to the pool, the tasks of the queue are dropped if the
+     * pool was stopped.
+     */
+    private void submit(SerialQueue queue) {
+        try {
+            pool.execute(queue);
+        } catch (RejectedExecutionException ree) {
+            synchronized (this) {
+                System.err.println("Dropping " + queue.tasks.size()
+                    + " tasks of " + queue.key + ", the executor was closed.");
+                queues.remove(queue.key);
+            }
+        }
+    }
+
+    /**
+     * Stops the threads, the tasks still waiting are not run.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * @return the number of keys with tasks
+     */
+    public synchronized int getActiveCount() {
+        return queues.size();
+    }
+
+    /**
+     * @return the executed
+     */
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    /**
+     * @return the queued
+     */
+    public synchronized long getQueued() {
+        return queued;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "active=" + queues.size() + " executed=" + executed
+            + " queued=" + queued;
+    }
+
+    /**
+     * The tasks of a key, run by one thread of the pool at a time.
+     */
+    private class SerialQueue implements Runnable {
+
+        /** The key */
+        private String key;
+        /** The tasks not run yet */
+        private ArrayDeque<Runnable> tasks;
+        /** If the queue is in the pool */
+        private boolean running;
+
+        private SerialQueue(String key) {
+            this.key = key;
+            this.tasks = new ArrayDeque<Runnable>();
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Runnable task;
+                synchronized (ResourceExecutor.this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        queues.remove(key);
+                        return;
+                    }
+                    executed++;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException re) {
+                    System.err.println("Error while handling a message of " + key
+                        + ", " + re.getMessage());
+                }
+            }
+            /* Let the queues of the other keys run */
+            submit(this);
+        }
+    }
+}
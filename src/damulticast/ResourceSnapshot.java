@@ -0,0 +1,49 @@
+
+package damulticast;
+
+/**
+ * The value of a shared resource together with the state of its lock in this
+ * device, read at once. It does not change when the resource does.
+ * @author cesar
+ */
+public class ResourceSnapshot {
+
+    /** The id of the resource */
+    private final String key;
+    /** The value of the resource */
+    private final int value;
+    /** The state of the lock (RELEASED, WANTED, or HELD) */
+    private final String state;
+
+    public ResourceSnapshot(String key, int value, String state) {
+        this.key = key;
+        this.value = value;
+        this.state = state;
+    }
+
+    /**
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the value
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @return the state
+     */
+    public String getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return key + ":" + value + ":" + state;
+    }
+}
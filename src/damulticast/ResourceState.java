@@ -2,6 +2,8 @@
 package damulticast;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * Stores the state of a shared resource in a device. It is very important to note
@@ -9,7 +11,9 @@ import java.util.ArrayList;
  * This means that if a resource appears as RELEASED in this device, it does not
  * mean it might not be HELD or WANTED in another device (check the algorithm for
  * details). It also holds the queue in case requests have to be queued and the
- * number of acknowledgements for the WANTED request that have been received.
+ * peers that acknowledged the WANTED request that have been received.
+ * The states kept by SharedResources also hold the key, the id and the value
+ * of their resource, so a resource found by its id needs no other lookup.
  * @author cesar
  */
 public class ResourceState {
@@ -18,22 +22,40 @@ public class ResourceState {
     private String state;
     /** The queue of requests, if the device wants it it will always be first */
     private ArrayList<ResourceRequest> requestQueue;
-    /** The number of replies received for a request of a shared resource */
-    private long acks;
+    /** The ids of the peers that replied to a request of a shared resource */
+    private HashSet<Integer> acks;
+    /** The key of the resource, null if the state is not kept by SharedResources */
+    private String key;
+    /** The id of the resource sent in the messages, see KeyDictionary */
+    private volatile int id;
+    /** The value of the resource */
+    private volatile int value;
 
     public ResourceState() {
         this.state = "";
         this.requestQueue = new ArrayList<ResourceRequest>();
+        this.acks = new HashSet<Integer>();
+        this.id = KeyDictionary.NONE;
     }
     
     public ResourceState(String state, ArrayList<ResourceRequest> requestQueue) {
         this.state = state;
         this.requestQueue = requestQueue;
+        this.acks = new HashSet<Integer>();
+        this.id = KeyDictionary.NONE;
     }
     
     public ResourceState(String state) {
         this.state = state;
         this.requestQueue = new ArrayList<ResourceRequest>();
+        this.acks = new HashSet<Integer>();
+        this.id = KeyDictionary.NONE;
+    }
+    
+    public ResourceState(String key, String state, int value) {
+        this(state);
+        this.key = key;
+        this.value = value;
     }
     
     /**
@@ -42,7 +64,10 @@ public class ResourceState {
      * @return The requester or null if not found
      */
     public ResourceRequest getRequester(int id) {
-        for (ResourceRequest requester : requestQueue) {
+        /* A linear scan, the queue holds one request per peer at most. The
+         * loop is indexed so no iterator is created for every lock request */
+        for (int i = 0; i < requestQueue.size(); i++) {
+            ResourceRequest requester = requestQueue.get(i);
             if (requester.getRequester().getId() == id)
                 return requester;
         }
@@ -63,6 +88,41 @@ public class ResourceState {
         this.state = state;
     }
 
+    /**
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the id, NONE if it has none
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @param id the id to set
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the value
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @param value the value to set
+     */
+    public void setValue(int value) {
+        this.value = value;
+    }
+
     /**
      * @return the requestQueue
      */
@@ -78,17 +138,38 @@ public class ResourceState {
     }
 
     /**
-     * @return the acks
+     * @return the number of peers that replied to the request
      */
-    public long getAcks() {
-        return acks;
+    public int getAcks() {
+        return acks.size();
     }
 
     /**
-     * @param acks the acks to set
+     * Counts the reply of a peer, once however many times it replies.
+     * @param id The id of the peer
      */
-    public void setAcks(long acks) {
-        this.acks = acks;
+    public void addAck(int id) {
+        acks.add(id);
+    }
+
+    /**
+     * Forgets the replies, for the next request.
+     */
+    public void clearAcks() {
+        acks.clear();
+    }
+
+    /**
+     * @param peers The peers
+     * @return true if all the peers replied to the request
+     */
+    public boolean isAckedBy(List<RemoteDevice> peers) {
+        for (RemoteDevice peer : peers) {
+            if (!acks.contains(peer.getId())) {
+                return false;
+            }
+        }
+        return true;
     }
     
     
@@ -0,0 +1,104 @@
+
+package damulticast;
+
+/**
+ * Estimates the round trip time to a peer and the time to wait for it, as TCP
+ * does (Jacobson/Karels): a smoothed round trip time and its mean deviation
+ * are updated with every sample, and the timeout is the smoothed time plus
+ * four deviations. Every timeout doubles the next one until a new sample is
+ * taken. The samples are the times to connect to the peer and the times
+ * between writing a 'sync-' request and reading its reply; the requests that
+ * were written more than once are not sampled (Karn's algorithm).
+ * The times are kept in microseconds, the timeouts are in milliseconds.
+ * @author cesar
+ */
+public class RttEstimator {
+
+    /** The most times a timeout is doubled */
+    private static final int MAX_BACKOFF = 6;
+
+    /** The smoothed round trip time */
+    private long smoothedRtt;
+    /** The mean deviation of the round trip time */
+    private long rttVariance;
+    /** The number of samples taken */
+    private long samples;
+    /** The times the timeout was doubled since the last sample */
+    private int backoff;
+
+    /**
+     * Takes a sample of the round trip time.
+     * @param nanos The time measured, in nanoseconds
+     */
+    public synchronized void sample(long nanos) {
+        long rtt = Math.max(1, nanos / 1000);
+        if (samples == 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            long delta = rtt - smoothedRtt;
+            rttVariance += (Math.abs(delta) - rttVariance) / 4;
+            smoothedRtt += delta / 8;
+        }
+        samples++;
+        backoff = 0;
+    }
+
+    /**
+     * Doubles the timeout, called when the peer did not answer in time.
+     */
+    public synchronized void timedOut() {
+        if (backoff < MAX_BACKOFF) {
+            backoff++;
+        }
+    }
+
+    /**
+     * Returns the time to wait for the peer.
+     * @param min The shortest timeout, in milliseconds
+     * @param max The longest timeout, also used while there are no samples
+     * @return The timeout in milliseconds
+     */
+    public synchronized long getTimeout(long min, long max) {
+        if (samples == 0) {
+            return max;
+        }
+        long timeout = (smoothedRtt + 4 * rttVariance + 999) / 1000;
+        timeout = Math.max(min, timeout) << backoff;
+        return Math.min(max, timeout);
+    }
+
+    /**
+     * @return the smoothedRtt, in microseconds
+     */
+    public synchronized long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * @return the rttVariance, in microseconds
+     */
+    public synchronized long getRttVariance() {
+        return rttVariance;
+    }
+
+    /**
+     * @return the samples
+     */
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the backoff
+     */
+    public synchronized int getBackoff() {
+        return backoff;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "srtt=" + smoothedRtt + "us rttvar=" + rttVariance + "us samples="
+            + samples + " backoff=" + backoff;
+    }
+}
@@ -0,0 +1,497 @@
+
+package damulticast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.net.SocketTimeoutException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Transport that moves the frames between processes of the same host through
+ * files mapped in memory, and uses another transport for the rest. Every server
+ * has a directory named after its port; a device that connects to a peer in the
+ * same host with that directory creates a file in it with two MappedRing, one
+ * for each direction, and tells the peer the name of the file with an ATTACH
+ * message over the other transport. The peer maps the file and removes it. The
+ * frames are then written in place in the mapping, without system calls, and
+ * the connection of the other transport is only kept to notice if the peer
+ * dies.
+ * The reader of a connection spins for a while after every frame, so the
+ * frames that follow are received without waking a thread, and then yields
+ * and parks for longer and longer times while the connection is idle. The
+ * spinning keeps a processor busy for every connection that just received a
+ * frame, up to a few milliseconds each: the spins are given to the
+ * constructor, 0 to only yield and park.
+ * A send to a ring that is full waits for the peer to read, yielding and
+ * parking without holding the lock of the connection, and fails after
+ * SEND_TIMEOUT, as with the NioTransport.
+ * @author cesar
+ */
+public class SharedMemoryTransport implements Transport {
+
+    /** The header of the message that attaches a file to a connection */
+    public static final String ATTACH = "shm-attach";
+    /** The size of the data of every ring, fits the biggest frame */
+    public static final int RING_CAPACITY = 1 << 21;
+    /** The times the reader checks an empty ring before yielding by default,
+     * spinning with a single processor only delays the thread that would write */
+    public static final int DEFAULT_SPINS =
+        Runtime.getRuntime().availableProcessors() > 1 ? 20000 : 0;
+    /** The times the reader yields before parking */
+    private static final int YIELDS = 100;
+    /** The longest time the reader parks, in nanoseconds */
+    private static final long MAX_PARK = 1000000;
+    /** The most time send waits for the peer to make room, in ms */
+    public static final long SEND_TIMEOUT = 30000;
+
+    /** The transport for the peers in other hosts and for attaching files */
+    private Transport transport;
+    /** The kind of threads for the readers */
+    private ThreadMode mode;
+    /** The times the readers check an empty ring before yielding */
+    private int spins;
+    /** The servers that are open */
+    private Set<SharedMemoryServer> servers;
+    /** The connections that are open */
+    private Set<SharedMemoryConnection> connections;
+
+    public SharedMemoryTransport(Transport transport, ThreadMode mode) {
+        this(transport, mode, DEFAULT_SPINS);
+    }
+
+    public SharedMemoryTransport(Transport transport, ThreadMode mode, int spins) {
+        this.transport = transport;
+        this.mode = mode;
+        this.spins = Math.max(0, spins);
+        this.servers = Collections.newSetFromMap(
+            new ConcurrentHashMap<SharedMemoryServer, Boolean>());
+        this.connections = Collections.newSetFromMap(
+            new ConcurrentHashMap<SharedMemoryConnection, Boolean>());
+    }
+
+    /**
+     * Returns the directory of a port, in /dev/shm if it exists so the files
+     * are never written to a disk.
+     * @param port The port of the server
+     * @return The directory
+     */
+    public static File directory(int port) {
+        File base = new File("/dev/shm");
+        if (!base.isDirectory()) {
+            base = new File(System.getProperty("java.io.tmpdir"));
+        }
+        return new File(base, "damulticast-" + port + ".shm");
+    }
+
+    @Override
+    public TransportServer listen(int port, TransportListener listener)
+            throws IOException {
+        Acceptor acceptor = new Acceptor(listener);
+        TransportServer server = transport.listen(port, acceptor);
+        File directory = directory(server.getPort());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Could not create " + directory
+                + ", not using shared memory");
+            return server;
+        }
+        directory.deleteOnExit();
+        acceptor.directory = directory;
+        SharedMemoryServer shared = new SharedMemoryServer(server, directory);
+        servers.add(shared);
+        return shared;
+    }
+
+    @Override
+    public TransportConnection connect(String host, int port, int timeout,
+            TransportListener listener) throws IOException {
+        File directory = directory(port);
+        if (UnixDomainTransport.isLocalHost(host) && directory.isDirectory()) {
+            try {
+                return attach(host, port, timeout, directory, listener);
+            } catch (IOException ioe) {
+                /* The directory might have been left by a process that died */
+            }
+        }
+        return transport.connect(host, port, timeout, listener);
+    }
+
+    @Override
+    public void close() {
+        for (SharedMemoryServer server : new ArrayList<SharedMemoryServer>(servers)) {
+            server.close();
+        }
+        for (SharedMemoryConnection connection
+                : new ArrayList<SharedMemoryConnection>(connections)) {
+            connection.close();
+        }
+        transport.close();
+    }
+
+    /**
+     * Creates a file for a connection and asks the peer to attach it.
+     */
+    private SharedMemoryConnection attach(String host, int port, int timeout,
+            File directory, TransportListener listener) throws IOException {
+        File file = File.createTempFile("ring-", ".map", directory);
+        SharedMemoryConnection connection;
+        try {
+            MappedByteBuffer map = map(file, true);
+            connection = new SharedMemoryConnection(host, listener,
+                ring(map, 0, true), ring(map, 1, false), file);
+            connection.control = transport.connect(host, port, timeout,
+                connection);
+            FrameCodec codec = new FrameCodec();
+            connection.control.send(codec.encode(
+                new Message(null, ATTACH, file.getName())));
+        } catch (IOException ioe) {
+            file.delete();
+            throw ioe;
+        }
+        start(connection);
+        return connection;
+    }
+
+    /**
+     * Maps the file of a connection.
+     * @param create If the file must be given the size of the rings
+     */
+    private static MappedByteBuffer map(File file, boolean create) throws IOException {
+        long size = 2L * MappedRing.size(RING_CAPACITY);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (create) {
+                raf.setLength(size);
+            } else if (raf.length() != size) {
+                throw new IOException("Wrong size of " + file);
+            }
+            /* The mapping stays valid once the file is closed */
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns one of the two rings of a file.
+     */
+    private static MappedRing ring(MappedByteBuffer map, int index, boolean producer) {
+        ByteBuffer region = map.duplicate();
+        region.limit((index + 1) * MappedRing.size(RING_CAPACITY));
+        region.position(index * MappedRing.size(RING_CAPACITY));
+        return new MappedRing(region.slice(), RING_CAPACITY, producer);
+    }
+
+    /**
+     * Keeps a connection and starts its reader if there is a listener.
+     */
+    private void start(SharedMemoryConnection connection) {
+        connections.add(connection);
+        if (connection.listener != null) {
+            Threads.start(mode, connection, "reader-shm");
+        }
+    }
+
+    /**
+     * Waits for a ring that is empty or full, spinning first, then yielding
+     * and then parking for longer and longer times.
+     * @param round The times it has been called since the ring changed
+     * @param spins The rounds spent spinning
+     * @return The next round
+     */
+    private static int idle(int round, int spins) {
+        if (round < spins) {
+            /* Busy wait */
+        } else if (round < spins + YIELDS) {
+            Thread.yield();
+        } else {
+            int shift = Math.min(round - spins - YIELDS, 10);
+            LockSupport.parkNanos(Math.min(1000L << shift, MAX_PARK));
+        }
+        return round + 1;
+    }
+
+    /**
+     * Receives the connections of the other transport and attaches the files
+     * of the ones that ask for it. The rest are handed to the listener.
+     */
+    private class Acceptor implements TransportListener {
+
+        /** Receives the frames of all the connections */
+        private TransportListener listener;
+        /** The directory of the files, null while it is not created */
+        private volatile File directory;
+
+        private Acceptor(TransportListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void received(TransportConnection connection, ByteBuffer frame) {
+            Object attachment = connection.getAttachment();
+            if (attachment instanceof SharedMemoryConnection) {
+                /* Nothing else is sent on the connection of an attached file */
+                return;
+            }
+            if (attachment == null && directory != null
+                    && FrameCodec.opcodeOf(frame) == Opcode.CUSTOM) {
+                try {
+                    Message m = new FrameCodec().decode(frame.duplicate());
+                    if (m.getHeader().equals(ATTACH)) {
+                        accept(connection, m.getMessage());
+                        return;
+                    }
+                } catch (IOException ioe) {
+                    System.err.println("IOE while attaching shared memory from peer: "
+                        + connection.getRemoteAddress() + ", " + ioe.getMessage());
+                    connection.close();
+                    return;
+                }
+            }
+            listener.received(connection, frame);
+        }
+
+        @Override
+        public void closed(TransportConnection connection, IOException cause) {
+            Object attachment = connection.getAttachment();
+            if (attachment instanceof SharedMemoryConnection) {
+                ((SharedMemoryConnection) attachment).peerClosed();
+            } else {
+                listener.closed(connection, cause);
+            }
+        }
+
+        /**
+         * Maps the file named by a peer and removes it.
+         */
+        private void accept(TransportConnection control, String name)
+                throws IOException {
+            File file = new File(directory, name);
+            if (!directory.equals(file.getParentFile())) {
+                throw new IOException("Incorrect format for file: " + name);
+            }
+            MappedByteBuffer map;
+            try {
+                map = map(file, false);
+            } finally {
+                file.delete();
+            }
+            SharedMemoryConnection connection = new SharedMemoryConnection(
+                control.getRemoteAddress(), listener, ring(map, 1, true),
+                ring(map, 0, false), null);
+            connection.control = control;
+            control.setAttachment(connection);
+            start(connection);
+        }
+    }
+
+    /**
+     * A server of the other transport, that removes the directory when closed.
+     */
+    private class SharedMemoryServer implements TransportServer {
+
+        /** The server of the other transport */
+        private TransportServer server;
+        /** The directory of the files */
+        private File directory;
+
+        private SharedMemoryServer(TransportServer server, File directory) {
+            this.server = server;
+            this.directory = directory;
+        }
+
+        @Override
+        public int getPort() {
+            return server.getPort();
+        }
+
+        @Override
+        public void close() {
+            servers.remove(this);
+            server.close();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                /* Left by peers that died before being attached */
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * A connection over a mapped file, the reader is the thread that runs it.
+     * It is also the listener of the connection of the other transport opened
+     * to attach the file.
+     */
+    private class SharedMemoryConnection implements TransportConnection, Runnable,
+            TransportListener {
+
+        /** The ip address at the other side */
+        private String remoteAddress;
+        /** Receives the frames read, null to discard them */
+        private TransportListener listener;
+        /** The frames sent */
+        private MappedRing out;
+        /** The frames received */
+        private MappedRing in;
+        /** The file, removed when closed, null if attached by the peer */
+        private File file;
+        /** The connection of the other transport, closed when the peer dies */
+        private volatile TransportConnection control;
+        /** Guards the writes, not a monitor so virtual threads are not pinned */
+        private ReentrantLock writeLock;
+        /** If the connection was closed by this side */
+        private volatile boolean closed;
+        /** The object attached by the listener */
+        private volatile Object attachment;
+
+        private SharedMemoryConnection(String remoteAddress, TransportListener listener,
+                MappedRing out, MappedRing in, File file) {
+            this.remoteAddress = remoteAddress;
+            this.listener = listener;
+            this.out = out;
+            this.in = in;
+            this.file = file;
+            this.writeLock = new ReentrantLock();
+        }
+
+        @Override
+        public void run() {
+            int round = 0;
+            try {
+                while (true) {
+                    /* Checked before peeking so no frame is left behind */
+                    boolean ended = in.isClosed();
+                    ByteBuffer frame = in.peek();
+                    if (frame == null) {
+                        if (ended) {
+                            break;
+                        }
+                        round = idle(round, spins);
+                        continue;
+                    }
+                    round = 0;
+                    try {
+                        listener.received(this, frame);
+                    } finally {
+                        in.advance();
+                    }
+                }
+            } finally {
+                close();
+                listener.closed(this, null);
+            }
+        }
+
+        /**
+         * Writes a frame in the ring, waiting up to SEND_TIMEOUT while it is
+         * full. The lock is only held to write, the other senders are not
+         * kept waiting behind one that waits for room.
+         */
+        @Override
+        public void send(ByteBuffer frame) throws IOException {
+            long deadline = 0;
+            int round = 0;
+            while (true) {
+                writeLock.lock();
+                try {
+                    if (closed || out.isClosed()) {
+                        throw new IOException("Connection with " + remoteAddress
+                            + " is closed");
+                    }
+                    if (out.offer(frame)) {
+                        return;
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+                if (round == 0) {
+                    deadline = System.currentTimeMillis() + SEND_TIMEOUT;
+                } else if (System.currentTimeMillis() > deadline) {
+                    throw new SocketTimeoutException("Connection with "
+                        + remoteAddress + " is not being read");
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while "
+                        + "waiting to write to " + remoteAddress);
+                }
+                /* Yields and parks at once, spinning would only take the
+                 * processor from the reader of the peer */
+                round = idle(round, 0);
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && !out.isClosed();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            /* The peer reads the frames already written before closing */
+            out.close();
+            in.close();
+            connections.remove(this);
+            if (control != null) {
+                control.close();
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        /**
+         * Called when the connection of the other transport is closed, which
+         * happens when the peer closes or dies.
+         */
+        private void peerClosed() {
+            out.close();
+            in.close();
+            if (listener == null) {
+                close();
+            }
+        }
+
+        @Override
+        public void received(TransportConnection connection, ByteBuffer frame) {
+            /* Nothing is sent back on the connection that attached the file */
+        }
+
+        @Override
+        public void closed(TransportConnection connection, IOException cause) {
+            peerClosed();
+        }
+    }
+}
@@ -1,74 +1,207 @@
 package damulticast;
 
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Contains the keys and values of the shared resources in the P2P network. 
+ * Contains the keys and values of the shared resources in the P2P network.
  * It also contains the resource state for the locks for each resource. For the
- * time being the shared resources are just values in a hashmap, identified by
- * a key (String). The lock and its state are encapsulated in a ResourceState
- * object.
+ * time being the shared resources are just values identified by a key
+ * (String). The lock, the value and the id of a resource are encapsulated in
+ * a ResourceState object.
+ * The states are kept in a ConcurrentHashMap by key, and in a
+ * ConcurrentSkipListMap sorted by key so the state can be transferred in
+ * chunks that start after the last key transferred, so none of the methods
+ * blocks the rest. The resources with an id are also kept in a table indexed
+ * by the id, see KeyDictionary, so the messages that carry the id find them
+ * without hashing the key. A resource is always added to the map by key
+ * before the sorted one: a resource with a value always has its lock. The
+ * values are given out as copies and the locks as a read-only view.
  * @author cesar
  */
 public class SharedResources {
-   
-    private HashMap<String, Integer> values;
-    private HashMap<String, ResourceState> locks;
-    
+
+    /** The resources with a value, sorted by key */
+    private ConcurrentSkipListMap<String, ResourceState> values;
+    private ConcurrentHashMap<String, ResourceState> locks;
+    /** The resources with an id, by the device that assigned it and then by
+     * its count of resources. The rows grow by copying them, guarded by this */
+    private volatile AtomicReferenceArray<AtomicReferenceArray<ResourceState>> byId;
+
     public SharedResources() {
-        values = new HashMap();
-        locks = new HashMap();
+        values = new ConcurrentSkipListMap<String, ResourceState>();
+        locks = new ConcurrentHashMap<String, ResourceState>();
+        byId = new AtomicReferenceArray<AtomicReferenceArray<ResourceState>>(0);
     }
-    
+
+    /**
+     * @throws NullPointerException If the resource does not exist
+     */
     public int getValue(String key) {
-        return getValues().get(key).intValue();
+        return values.get(key).getValue();
     }
-    
+
+    /**
+     * Sets the value of a resource, it is created with its lock if it does
+     * not exist.
+     * @param key The id of the resource
+     * @param i The value
+     */
     public void setValue(String key, int i) {
-        getValues().put(key, new Integer(i));
+        ResourceState lock = locks.get(key);
+        if (lock == null) {
+            lock = addIfAbsent(new ResourceState(key, "RELEASED", i));
+            if (lock == null) {
+                return;
+            }
+        }
+        lock.setValue(i);
     }
-    
+
+    /**
+     * Creates a resource with its lock, unless it already exists.
+     * @param key The id of the resource
+     * @param i The value
+     * @return true if it was created, false if it already existed
+     */
+    public boolean createIfAbsent(String key, int i) {
+        return !locks.containsKey(key)
+            && addIfAbsent(new ResourceState(key, "RELEASED", i)) == null;
+    }
+
     public ResourceState getLock(String key) {
-        return getLocks().get(key);
+        return locks.get(key);
     }
-    
-    public boolean hasValue(String key) {
-        return getValues().containsKey(key);
+
+    /**
+     * Returns the lock of a resource by its id, see KeyDictionary.
+     * @param id The id of the resource
+     * @return The lock, null if no resource has the id
+     */
+    public ResourceState getLock(int id) {
+        if (id < 0) {
+            return null;
+        }
+        AtomicReferenceArray<AtomicReferenceArray<ResourceState>> table = byId;
+        int device = id >>> KeyDictionary.SEQUENCE_BITS;
+        int sequence = id & ((1 << KeyDictionary.SEQUENCE_BITS) - 1);
+        if (device >= table.length()) {
+            return null;
+        }
+        AtomicReferenceArray<ResourceState> row = table.get(device);
+        if (row == null || sequence >= row.length()) {
+            return null;
+        }
+        return row.get(sequence);
     }
-    
-    public void initLock(String key) {
-        getLocks().put(key, new ResourceState("RELEASED"));
+
+    /**
+     * Keeps a resource by an id, the ids are never reused.
+     * @param id The id
+     * @param lock The lock of the resource
+     * @return false if the id was already given to a resource
+     */
+    synchronized boolean index(int id, ResourceState lock) {
+        if (id < 0) {
+            return false;
+        }
+        int device = id >>> KeyDictionary.SEQUENCE_BITS;
+        int sequence = id & ((1 << KeyDictionary.SEQUENCE_BITS) - 1);
+        AtomicReferenceArray<AtomicReferenceArray<ResourceState>> table = byId;
+        if (device >= table.length()) {
+            /* The devices get dense ids from the tracker */
+            table = grow(table, device + 1);
+            byId = table;
+        }
+        AtomicReferenceArray<ResourceState> row = table.get(device);
+        if (row == null || sequence >= row.length()) {
+            /* The counts of a device are assigned in order */
+            row = grow(row, Math.max(sequence + 1, row == null ? 16 : row.length() * 2));
+            table.set(device, row);
+        }
+        return row.compareAndSet(sequence, null, lock);
     }
-    
-    public void setLock(String key, ResourceState state) {
-        getLocks().put(key, state);
+
+    /**
+     * @return a copy of an array, longer
+     */
+    private static <T> AtomicReferenceArray<T> grow(AtomicReferenceArray<T> array,
+            int length) {
+        AtomicReferenceArray<T> bigger = new AtomicReferenceArray<T>(length);
+        for (int i = 0; array != null && i < array.length(); i++) {
+            bigger.set(i, array.get(i));
+        }
+        return bigger;
+    }
+
+    public boolean hasValue(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * Adds a resource that does not exist.
+     * @param lock The lock of the resource, with its key and value
+     * @return The lock of the resource if it existed, null if it was added
+     */
+    private ResourceState addIfAbsent(ResourceState lock) {
+        ResourceState old = locks.putIfAbsent(lock.getKey(), lock);
+        if (old == null) {
+            values.put(lock.getKey(), lock);
+        }
+        return old;
     }
 
     /**
-     * @return the values
+     * Returns the value of a resource with the state of its lock at that
+     * moment.
+     * @param key The id of the resource
+     * @return The value and state, null if the resource does not exist
      */
-    public HashMap<String, Integer> getValues() {
-        return values;
+    public ResourceSnapshot getSnapshot(String key) {
+        ResourceState lock = values.get(key);
+        if (lock == null) {
+            return null;
+        }
+        /* The value is read under the lock, so it is not changed by the
+         * holder in between */
+        synchronized (lock) {
+            return new ResourceSnapshot(key, lock.getValue(), lock.getState());
+        }
     }
 
     /**
-     * @param values the values to set
+     * Returns the values of the keys that follow a key, in the order of the keys.
+     * @param after The last key not returned, null to start by the first key
+     * @param max The most values returned
+     * @return The keys and their values
      */
-    public void setValues(HashMap<String, Integer> values) {
-        this.values = values;
+    public LinkedHashMap<String, Integer> getValuesAfter(String after, int max) {
+        LinkedHashMap<String, Integer> chunk = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, ResourceState> entry : after == null ? values.entrySet()
+                : values.tailMap(after, false).entrySet()) {
+            if (chunk.size() >= max) {
+                break;
+            }
+            chunk.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return chunk;
     }
 
     /**
-     * @return the locks
+     * @return a copy of the values, sorted by key
      */
-    public HashMap<String, ResourceState> getLocks() {
-        return locks;
+    public Map<String, Integer> getValues() {
+        return getValuesAfter(null, Integer.MAX_VALUE);
     }
 
     /**
-     * @param locks the locks to set
+     * @return a read-only view of the locks
      */
-    public void setLocks(HashMap<String, ResourceState> locks) {
-        this.locks = locks;
+    public Map<String, ResourceState> getLocks() {
+        return Collections.unmodifiableMap(locks);
     }
 }
@@ -0,0 +1,245 @@
+
+package damulticast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Transport over TCP with blocking sockets. Every server has a thread that
+ * accepts the connections, and every connection has a thread that reads its
+ * frames and hands them to the listener, so the listener is called
+ * concurrently for different connections. The threads are platform or virtual
+ * threads depending on the ThreadMode. Frames are written by the thread that
+ * sends them.
+ * @author cesar
+ */
+public class TcpTransport implements Transport {
+
+    /** The kind of threads for the servers and the connections */
+    private ThreadMode mode;
+    /** The servers that are open */
+    private Set<TcpServer> servers;
+    /** The connections that are open */
+    private Set<TcpConnection> connections;
+
+    public TcpTransport(ThreadMode mode) {
+        this.mode = mode;
+        this.servers = Collections.newSetFromMap(
+            new ConcurrentHashMap<TcpServer, Boolean>());
+        this.connections = Collections.newSetFromMap(
+            new ConcurrentHashMap<TcpConnection, Boolean>());
+    }
+
+    @Override
+    public TransportServer listen(int port, TransportListener listener)
+            throws IOException {
+        TcpServer server = new TcpServer(new ServerSocket(port), listener);
+        servers.add(server);
+        Threads.start(mode, server, "accept-" + server.getPort());
+        return server;
+    }
+
+    @Override
+    public TransportConnection connect(String host, int port, int timeout,
+            TransportListener listener) throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), timeout);
+            s.setTcpNoDelay(true);
+        } catch (IOException ioe) {
+            s.close();
+            throw ioe;
+        }
+        return open(s, listener);
+    }
+
+    @Override
+    public void close() {
+        for (TcpServer server : new ArrayList<TcpServer>(servers)) {
+            server.close();
+        }
+        for (TcpConnection connection : new ArrayList<TcpConnection>(connections)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Wraps a connected socket and starts its reader if there is a listener.
+     */
+    private TcpConnection open(Socket s, TransportListener listener)
+            throws IOException {
+        TcpConnection connection = new TcpConnection(s, listener);
+        connections.add(connection);
+        if (listener != null) {
+            Threads.start(mode, connection, "reader-"
+                + connection.getRemoteAddress() + ":" + s.getPort());
+        }
+        return connection;
+    }
+
+    /**
+     * Accepts the connections of a port.
+     */
+    private class TcpServer implements TransportServer, Runnable {
+
+        /** The socket in which the connections are accepted */
+        private ServerSocket serverSocket;
+        /** Receives the frames of the connections accepted */
+        private TransportListener listener;
+
+        private TcpServer(ServerSocket serverSocket, TransportListener listener) {
+            this.serverSocket = serverSocket;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket s = serverSocket.accept();
+                    s.setTcpNoDelay(true);
+                    open(s, listener);
+                } catch (IOException ioe) {
+                    if (!serverSocket.isClosed()) {
+                        System.err.println("IOE while accepting connection: "
+                            + ioe.getMessage());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() {
+            servers.remove(this);
+            try {
+                serverSocket.close();
+            } catch (IOException ioe) {
+                System.err.println("IOException while closing listener "
+                    + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A connection over a socket, the reader is the thread that runs it.
+     */
+    private class TcpConnection implements TransportConnection, Runnable {
+
+        /** The socket */
+        private Socket socket;
+        /** The ip address at the other side */
+        private String remoteAddress;
+        /** Receives the frames read */
+        private TransportListener listener;
+        /** The stream the frames are written to */
+        private DataOutputStream out;
+        /** Guards the writes, not a monitor so virtual threads are not pinned */
+        private ReentrantLock writeLock;
+        /** If the connection was closed by this side */
+        private volatile boolean closed;
+        /** The object attached by the listener */
+        private volatile Object attachment;
+
+        private TcpConnection(Socket socket, TransportListener listener)
+                throws IOException {
+            this.socket = socket;
+            this.remoteAddress = socket.getInetAddress().getHostAddress();
+            this.listener = listener;
+            this.out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+            this.writeLock = new ReentrantLock();
+        }
+
+        @Override
+        public void run() {
+            IOException cause = null;
+            FrameCodec codec = new FrameCodec();
+            try {
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    ByteBuffer frame = codec.readRaw(in);
+                    listener.received(this, frame);
+                }
+            } catch (EOFException eofe) {
+                /* The other side closed the connection */
+            } catch (SocketException se) {
+                if (!closed) {
+                    cause = se;
+                }
+            } catch (IOException ioe) {
+                cause = ioe;
+            } finally {
+                close();
+                listener.closed(this, cause);
+            }
+        }
+
+        @Override
+        public void send(ByteBuffer frame) throws IOException {
+            writeLock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Connection with " + remoteAddress
+                        + " is closed");
+                }
+                FrameCodec.write(frame, out);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && !socket.isClosed();
+        }
+
+        @Override
+        public void close() {
+            /* The frames are flushed by send, so nothing is pending */
+            closed = true;
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                System.err.println("IOException while closing peer "
+                    + ioe.getMessage());
+            }
+        }
+    }
+}
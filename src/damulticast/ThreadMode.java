@@ -0,0 +1,47 @@
+
+package damulticast;
+
+/**
+ * How the connections of a device or the tracker are serviced.
+ * @author cesar
+ */
+public enum ThreadMode {
+    
+    /** All the incoming connections are read by a single Selector thread */
+    SELECTOR,
+    /** Every connection and every writer runs on its own platform thread */
+    PLATFORM,
+    /** Every connection and every writer runs on its own virtual thread, 
+     * needs JDK 21 or later, platform threads are used otherwise */
+    VIRTUAL;
+    
+    /**
+     * Creates the default transport for the mode: a NioTransport for SELECTOR
+     * and a TcpTransport with threads of the mode otherwise. The peers in the
+     * same host are reached with Unix domain sockets if the JVM supports them.
+     * @return The transport
+     */
+    public Transport newTransport() {
+        Transport tcp;
+        if (this == SELECTOR) {
+            tcp = new NioTransport();
+        } else {
+            tcp = new TcpTransport(this);
+        }
+        return UnixDomainTransport.wrap(tcp, this);
+    }
+    
+    /**
+     * Parses a mode from the command line, ignoring the case.
+     * @param name The name of the mode
+     * @return The mode, null if there is no mode with that name
+     */
+    public static ThreadMode fromName(String name) {
+        for (ThreadMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
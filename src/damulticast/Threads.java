@@ -0,0 +1,98 @@
+
+package damulticast;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Creates the threads of the connections for a ThreadMode. The virtual threads
+ * are created by reflection, since they only exist from JDK 21 on and the 
+ * project is compiled for older versions. They are looked up, and one is
+ * created without starting it, once when the class is loaded: on JDK 19 and 20
+ * the methods exist but fail without --enable-preview. If they are not
+ * available the threads are platform threads, and a warning is printed once.
+ * @author cesar
+ */
+public class Threads {
+    
+    /** Thread.ofVirtual(), null if virtual threads are not available */
+    private static final Method OF_VIRTUAL;
+    /** Thread.Builder.name(String) */
+    private static final Method NAME;
+    /** Thread.Builder.unstarted(Runnable) */
+    private static final Method UNSTARTED;
+    /** If the warning for the missing virtual threads was printed */
+    private static final AtomicBoolean WARNED = new AtomicBoolean();
+    
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            /* Fails on the JDKs that have them as a preview feature */
+            unstarted.invoke(name.invoke(ofVirtual.invoke(null), "probe"), 
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+    
+    private Threads() {
+    }
+    
+    /**
+     * Creates a thread that is not started. The platform threads are daemons,
+     * virtual threads always are.
+     * @param mode The mode, VIRTUAL for a virtual thread, a platform thread 
+     * otherwise
+     * @param task The task of the thread
+     * @param name The name of the thread
+     * @return The thread
+     */
+    public static Thread newThread(ThreadMode mode, Runnable task, String name) {
+        if (mode == ThreadMode.VIRTUAL && isVirtualAvailable()) try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) UNSTARTED.invoke(builder, task);
+        } catch (Exception e) {
+            if (WARNED.compareAndSet(false, true)) {
+                System.err.println("Could not create virtual thread: " + e);
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+    
+    /**
+     * Creates and starts a thread.
+     * @see #newThread(ThreadMode, Runnable, String)
+     */
+    public static Thread start(ThreadMode mode, Runnable task, String name) {
+        Thread t = newThread(mode, task, name);
+        t.start();
+        return t;
+    }
+    
+    /**
+     * @return true if the JVM supports virtual threads, prints a warning the
+     * first time it does not. Only reads what was found when the class was
+     * loaded, so it takes no lock
+     */
+    public static boolean isVirtualAvailable() {
+        if (OF_VIRTUAL == null && !WARNED.get() && WARNED.compareAndSet(false, true)) {
+            System.err.println("Virtual threads need JDK 21, using platform threads.");
+        }
+        return OF_VIRTUAL != null;
+    }
+}
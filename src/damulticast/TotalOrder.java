@@ -0,0 +1,505 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the new resources and the updates of all the devices in the same
+ * order everywhere. The sequencer is the device with the lowest id: the writers
+ * send it their messages as 'order_request', 'origin|request|header|message',
+ * and it broadcasts them numbered as 'ordered', 'start|seq|origin|request|
+ * header|message', which every device delivers in the order of seq. A device
+ * that finds a gap asks the sequencer for the missing messages with an
+ * 'order_nack', 'from|to', and they are sent again from the last HISTORY ones;
+ * a gap that can not be repaired in twice the gap timeout is skipped.
+ * When the sequencer leaves, the next lowest id takes over and numbers the
+ * messages from the next one it had to deliver, the start of its epoch, and
+ * the writers send it again the requests they have not seen delivered. The
+ * requests are delivered once per writer, but the ones in flight when the
+ * sequencer fails can be delivered in a different order by the devices that
+ * had received them from the old sequencer.
+ * A device that joins takes the next seq from the peer it gets the state from,
+ * the messages numbered before it are in the state.
+ * @author cesar
+ */
+public class TotalOrder implements Runnable {
+
+    /** The number of messages the sequencer can send again */
+    public static final int HISTORY = 1024;
+
+    /** The device that delivers the messages */
+    private Device device;
+    /** The time a gap can wait before it is asked for, in milliseconds */
+    private long gapTimeout;
+    /** The id of the sequencer, the lowest of the members */
+    private int sequencer;
+    /** The sequencer whose numbering is followed, -1 until it is known */
+    private int epoch;
+    /** The seq of the next message to deliver */
+    private long expected;
+    /** The seq of the next message to number, when this device is the sequencer */
+    private long next;
+    /** The first seq numbered by this device as sequencer */
+    private long start;
+    /** The messages received after a gap, by seq */
+    private TreeMap<Long, Ordered> buffer;
+    /** When the current gap was found, 0 if there is none */
+    private long gapSince;
+    /** The last messages numbered by this device, by seq modulo HISTORY */
+    private String[] history;
+    /** The seq of the messages in the history */
+    private long[] historySequences;
+    /** The last request delivered of every writer */
+    private HashMap<Integer, Long> lastRequests;
+    /** The requests of this device not delivered yet */
+    private LinkedHashMap<Long, String> requests;
+    /** The id of the last request of this device */
+    private long requestId;
+    /** When the requests of this device were last sent to the sequencer */
+    private long requestsSent;
+    /** If a thread is delivering the messages */
+    private boolean draining;
+    /** Finds the gaps that are not repaired */
+    private ScheduledExecutorService timer;
+
+    public TotalOrder(Device device, long gapTimeout) {
+        this.device = device;
+        this.gapTimeout = gapTimeout;
+        this.sequencer = -1;
+        this.epoch = -1;
+        this.buffer = new TreeMap<Long, Ordered>();
+        this.history = new String[HISTORY];
+        this.historySequences = new long[HISTORY];
+        this.lastRequests = new HashMap<Integer, Long>();
+        this.requests = new LinkedHashMap<Long, String>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "total-order");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, gapTimeout / 2);
+        timer.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the messages with this header are delivered in order
+     */
+    public static boolean isOrdered(String header) {
+        return header.equals("new_resource") || header.equals("update_resource")
+            || header.equals("update_batch");
+    }
+
+    /**
+     * Sends a message of this device to the sequencer to be numbered.
+     * @param header The header of the message
+     * @param message The content of the message
+     */
+    public void submit(String header, String message) {
+        String request;
+        synchronized (this) {
+            requestId++;
+            request = device.getId() + "|" + requestId + "|" + header + "|" + message;
+            if (requests.isEmpty()) {
+                requestsSent = System.currentTimeMillis();
+            }
+            requests.put(requestId, request);
+        }
+        forward(request);
+    }
+
+    /**
+     * Numbers an 'order_request' if this device is the sequencer, or sends it
+     * to the sequencer otherwise.
+     * @param m The request
+     */
+    public void requested(Message m) {
+        forward(m.getMessage());
+    }
+
+    /**
+     * Checks if the sequencer changed, called when the peer list changes. The
+     * requests not delivered are sent to the new sequencer.
+     */
+    public void membershipChanged() {
+        int lowest = device.getId();
+        for (RemoteDevice peer : device.getPeers()) {
+            lowest = Math.min(lowest, peer.getId());
+        }
+        ArrayList<String> pending;
+        synchronized (this) {
+            if (lowest == sequencer) {
+                return;
+            }
+            sequencer = lowest;
+            if (lowest == device.getId()) {
+                /* The numbering goes on from the next message this device
+                 * had to deliver, the rest of the old epoch is dropped */
+                epoch = lowest;
+                next = expected;
+                start = expected;
+                buffer.clear();
+                gapSince = 0;
+            }
+            pending = new ArrayList<String>(requests.values());
+            requestsSent = System.currentTimeMillis();
+        }
+        for (String request : pending) {
+            forward(request);
+        }
+    }
+
+    /**
+     * Numbers a request and broadcasts it, or sends it to the sequencer.
+     */
+    private void forward(String request) {
+        int target;
+        synchronized (this) {
+            target = sequencer;
+            if (target == device.getId()) {
+                long seq = next++;
+                String ordered = start + "|" + seq + "|" + request;
+                int slot = (int) (seq % HISTORY);
+                history[slot] = ordered;
+                historySequences[slot] = seq;
+                /* Broadcast while holding the lock, so the peers receive the
+                 * messages in the order of seq */
+                device.broadcast("ordered", ordered);
+                accept(device.getId(), ordered);
+            }
+        }
+        if (target == device.getId()) {
+            drain();
+            return;
+        }
+        RemoteDevice peer = device.lookUpPeer(target);
+        if (peer == null) {
+            /* Sent again when the sequencer is known */
+            return;
+        }
+        try {
+            device.send(new Message(peer, "order_request", request));
+        } catch (IOException ioe) {
+            System.err.println("Could not send order request to " + target + ", "
+                + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Receives a message numbered by the sequencer.
+     * @param m The 'ordered' message
+     */
+    public void received(Message m) {
+        synchronized (this) {
+            accept(m.getPeer().getId(), m.getMessage());
+        }
+        drain();
+    }
+
+    /**
+     * Sends again the messages a peer missed, if they are still in the history.
+     * @param m The 'order_nack'
+     */
+    public void nack(Message m) {
+        String message = m.getMessage();
+        int separator = message.indexOf('|');
+        ArrayList<String> missing = new ArrayList<String>();
+        try {
+            long from = Long.parseLong(message.substring(0, separator));
+            long to = Long.parseLong(message.substring(separator + 1));
+            synchronized (this) {
+                for (long seq = from; seq <= to && seq < next; seq++) {
+                    int slot = (int) (seq % HISTORY);
+                    if (historySequences[slot] == seq && history[slot] != null) {
+                        missing.add(history[slot]);
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException ioobe) {
+            System.err.println("Incorrect format for order nack.");
+        } catch (NumberFormatException nfe) {
+            System.err.println("Incorrect format for order nack.");
+        }
+        for (String ordered : missing) {
+            try {
+                device.send(new Message(m.getPeer(), "ordered", ordered));
+            } catch (IOException ioe) {
+                System.err.println("Could not repair order of " + m.getPeer().getId()
+                    + ", " + ioe.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the next seq to deliver from the peer the state comes from.
+     * @param state The reply to 'sync-askorder', 'epoch|expected'
+     */
+    public void receivedState(String state) {
+        int separator = state.indexOf('|');
+        try {
+            int stateEpoch = Integer.parseInt(state.substring(0, separator));
+            long stateExpected = Long.parseLong(state.substring(separator + 1));
+            synchronized (this) {
+                if (stateEpoch < 0 || (epoch >= 0 && epoch != stateEpoch)
+                        || stateExpected <= expected) {
+                    return;
+                }
+                epoch = stateEpoch;
+                expected = stateExpected;
+                buffer.headMap(expected).clear();
+                gapSince = 0;
+            }
+            drain();
+        } catch (IndexOutOfBoundsException ioobe) {
+            System.err.println("Incorrect format for askorder.");
+        } catch (NumberFormatException nfe) {
+            System.err.println("Incorrect format for askorder.");
+        }
+    }
+
+    /**
+     * @return the reply to 'sync-askorder', 'epoch|expected'
+     */
+    public synchronized String getState() {
+        return epoch + "|" + expected;
+    }
+
+    /**
+     * Asks again for the gaps and skips the ones that were not repaired. The
+     * requests of this device that take too long are sent again, in case the
+     * sequencer did not know it was one yet.
+     */
+    @Override
+    public void run() {
+        ArrayList<String> pending = null;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (!requests.isEmpty() && now - requestsSent >= 2 * gapTimeout) {
+                pending = new ArrayList<String>(requests.values());
+                requestsSent = now;
+            }
+        }
+        if (pending != null) {
+            for (String request : pending) {
+                forward(request);
+            }
+        }
+        synchronized (this) {
+            if (buffer.isEmpty() || gapSince == 0) {
+                return;
+            }
+            long waited = System.currentTimeMillis() - gapSince;
+            if (epoch < 0 && waited >= gapTimeout) {
+                /* The state never came, the numbering starts here */
+                epoch = sequencer;
+                expected = buffer.firstKey();
+                gapSince = 0;
+            } else if (epoch >= 0 && waited >= 2 * gapTimeout) {
+                long first = buffer.firstKey();
+                System.err.println("Skipping ordered messages " + expected + " to "
+                    + (first - 1));
+                expected = first;
+                gapSince = 0;
+            } else if (epoch >= 0 && waited >= gapTimeout) {
+                askForGap();
+                return;
+            } else {
+                return;
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Stops the timer.
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Keeps a numbered message until it can be delivered. Called with the lock
+     * held.
+     * @param sender The id of the device that numbered it
+     * @param ordered The message
+     */
+    private void accept(int sender, String ordered) {
+        String[] fields = new String[6];
+        int start = 0;
+        for (int i = 0; i < 5; i++) {
+            int separator = ordered.indexOf('|', start);
+            if (separator < 0) {
+                System.err.println("Incorrect format for ordered.");
+                return;
+            }
+            fields[i] = ordered.substring(start, separator);
+            start = separator + 1;
+        }
+        fields[5] = ordered.substring(start);
+        long epochStart;
+        long seq;
+        int origin;
+        long request;
+        try {
+            epochStart = Long.parseLong(fields[0]);
+            seq = Long.parseLong(fields[1]);
+            origin = Integer.parseInt(fields[2]);
+            request = Long.parseLong(fields[3]);
+        } catch (NumberFormatException nfe) {
+            System.err.println("Incorrect format for ordered.");
+            return;
+        }
+        if (sender < epoch) {
+            /* A late message of a sequencer that left */
+            return;
+        }
+        if (sender > epoch && epoch >= 0) {
+            /* A new sequencer took over */
+            epoch = sender;
+            expected = epochStart;
+            buffer.clear();
+            gapSince = 0;
+        }
+        if (epoch < 0) {
+            /* Waits for the state to know where the numbering starts */
+            if (gapSince == 0) {
+                gapSince = System.currentTimeMillis();
+            }
+        } else if (seq < expected) {
+            return;
+        }
+        RemoteDevice peer = origin == device.getId() ? null : device.lookUpPeer(origin);
+        if (peer == null) {
+            peer = new RemoteDevice(origin);
+        }
+        buffer.put(seq, new Ordered(new Message((int) seq, peer, fields[4], fields[5]),
+            request));
+    }
+
+    /**
+     * Delivers the messages in order while the next one is in the buffer. A
+     * single thread delivers at a time, outside the lock.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            Message m;
+            synchronized (this) {
+                m = poll();
+                if (m == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            try {
+                device.receiveMessage(m);
+            } catch (RuntimeException re) {
+                System.err.println("Error while delivering " + m.getHeader()
+                    + " from peer " + m.getPeer().getId() + ", " + re.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Removes the next message to deliver, skipping the requests delivered
+     * already. Asks for the gap if the next one is missing.
+     * @return The message, null if it has not arrived
+     */
+    private Message poll() {
+        while (epoch >= 0 && !buffer.isEmpty()) {
+            Map.Entry<Long, Ordered> first = buffer.firstEntry();
+            if (first.getKey() > expected) {
+                if (gapSince == 0) {
+                    gapSince = System.currentTimeMillis();
+                    askForGap();
+                }
+                return null;
+            }
+            buffer.remove(first.getKey());
+            expected = first.getKey() + 1;
+            gapSince = 0;
+            Ordered ordered = first.getValue();
+            int origin = ordered.message.getPeer().getId();
+            Long last = lastRequests.get(origin);
+            if (last != null && ordered.request <= last) {
+                continue;
+            }
+            lastRequests.put(origin, ordered.request);
+            if (origin == device.getId()) {
+                requests.remove(ordered.request);
+            }
+            return ordered.message;
+        }
+        return null;
+    }
+
+    /**
+     * Asks the sequencer for the messages between the next one to deliver and
+     * the first one in the buffer. Called with the lock held.
+     */
+    private void askForGap() {
+        RemoteDevice peer = device.lookUpPeer(epoch);
+        if (peer == null || buffer.isEmpty()) {
+            return;
+        }
+        try {
+            device.send(new Message(peer, "order_nack", expected + "|"
+                + (buffer.firstKey() - 1)));
+        } catch (IOException ioe) {
+            System.err.println("Could not ask for ordered messages, " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * @return the id of the sequencer
+     */
+    public synchronized int getSequencer() {
+        return sequencer;
+    }
+
+    /**
+     * @return the seq of the next message to deliver
+     */
+    public synchronized long getExpected() {
+        return expected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sequencer=" + sequencer + " epoch=" + epoch + " expected=" + expected
+            + " buffered=" + buffer.size() + " pending=" + requests.size();
+    }
+
+    /**
+     * A message numbered by the sequencer.
+     */
+    private static class Ordered {
+
+        /** The message of the writer */
+        private Message message;
+        /** The id the writer gave to the request */
+        private long request;
+
+        private Ordered(Message message, long request) {
+            this.message = message;
+            this.request = request;
+        }
+    }
+}
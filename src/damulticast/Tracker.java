@@ -1,33 +1,51 @@
 
 package damulticast;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that implements the tracker of the P2P network. The tracker's sole purpose
  * is to initialize the peer list in every device joining the P2P network. Once
  * this is done, it closes the connection. This is the only process that will 
  * listen on a fixed port (12345), the rest of the ports will be ephemeral.
+ * The connections are made through a Transport, by default the one of the
+ * ThreadMode. With the SELECTOR mode (the default) the connections are read by
+ * the Selector of the NioTransport and the frames of every device joining are
+ * handed to a thread of its pool of dispatchers, so a slow join does not delay
+ * the rest. With the PLATFORM and VIRTUAL modes every device joining, and
+ * every ping, is serviced by its own thread.
  * @author cesar
  */
 public class Tracker implements Runnable {
     
     /** Stores the list of peers in the network */
-    private ArrayList<RemoteDevice> peers;
+    private CopyOnWriteArrayList<RemoteDevice> peers;
     /** Stores the server port for the tracker */
     public static final int serverPort = 12345;
+    /** The shortest time to wait for a peer being pinged, in milliseconds */
+    public static final int MIN_PING_TIMEOUT = 200;
+    /** The longest time to wait for a peer being pinged, also used until its
+     * round trip time is known */
+    public static final int MAX_PING_TIMEOUT = 5000;
+    /** The times a peer that does not respond is pinged before dismissing it */
+    public static final int PING_ATTEMPTS = 2;
     /** Stores the devices that the tracker has removed */
     public ArrayList<RemoteDevice> disPeers;
     /** Stores the amount of peers that have been notified of disconnected peers */
     public int notPeers;
+    /** The last id assigned to a peer */
+    private AtomicInteger lastId;
+    /** How the devices joining and the pings are serviced */
+    private ThreadMode mode;
+    /** Moves the frames to and from the devices */
+    private Transport transport;
     
     /**
      * Listening thread for new peers. 
@@ -43,55 +61,92 @@ public class Tracker implements Runnable {
     }
     
     public Tracker() {
-        this.peers = new ArrayList<RemoteDevice>();
+        this(ThreadMode.SELECTOR);
+    }
+    
+    public Tracker(ThreadMode mode) {
+        this(mode.newTransport(), mode);
+    }
+    
+    public Tracker(Transport transport, ThreadMode mode) {
+        this.transport = transport;
+        this.peers = new CopyOnWriteArrayList<RemoteDevice>();
         this.disPeers = new ArrayList<RemoteDevice>();
         this.notPeers = 0;
+        this.lastId = new AtomicInteger();
+        this.mode = mode;
     }
     
     /**
-     * The listen method for the servicing new peers. 
-     * @throws IOException In case an unexpected error happens while reading connections
+     * The listen method for the servicing new peers. The devices joining are
+     * serviced by the threads of the transport, this method waits until the
+     * thread is interrupted and then stops accepting them.
+     * @throws IOException If the port of the tracker could not be opened
      */
     public void listen() throws IOException {
-        int id = 0;
-        ServerSocket listenSocket = new ServerSocket(serverPort);
-        while(true) {
-            Socket clientSocket = listenSocket.accept();
-            clientSocket.setSoTimeout(5000);
-            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-            DataOutputStream out =new DataOutputStream(clientSocket.getOutputStream());
+        TransportServer server = transport.listen(serverPort, new TransportListener() {
+            @Override
+            public void received(TransportConnection connection, ByteBuffer frame) {
+                join(connection, frame);
+            }
 
-            try {  
-                String ipAddress = clientSocket.getInetAddress().getHostAddress();
-                
-                /* Ask peer which port will it use for the P2P communication */
-                int assignedPort = in.readInt();
-                /* Assign an id to peer, send it and close connection */
-                id++;
-                out.writeInt(id);
-                RemoteDevice newClient = new RemoteDevice(id, ipAddress, assignedPort);
-                
-                /* Send the peer list */
-                ArrayList<RemoteDevice> peersCopy = new ArrayList<RemoteDevice>(peers);
-                for (RemoteDevice peer : peersCopy) {
-                    out.writeBoolean(true);
-                    out.writeInt(peer.getId());
-                    out.writeUTF(peer.getIpAddress());
-                    out.writeInt(peer.getPort());    
-                }
-                out.writeBoolean(false);
-                
-                /* Add new peer to peer list */
-                getPeers().add(newClient);
-            } catch (SocketTimeoutException ste) {
-                System.err.println("Socket timeout from peer: "
-                    + clientSocket.getInetAddress().getHostAddress());
-            } catch (IOException ioe) {
-                System.err.println("IOE exception while initializing peer: " 
-                    + clientSocket.getInetAddress().getHostAddress());
-            } finally {
-                clientSocket.close();
+            @Override
+            public void closed(TransportConnection connection, IOException cause) {
+            }
+        });
+        try {
+            while (true) {
+                Thread.sleep(Long.MAX_VALUE);
             }
+        } catch (InterruptedException ie) {
+            /* Interrupted to stop listening */
+        } finally {
+            server.close();
+        }
+    }
+    
+    /**
+     * Services a device joining the network. The device sends a 'join' frame
+     * with the port it will use for the P2P communication, it is given an id
+     * and the peer list in a 'joined' frame, 'id&peerId|ip|port&...', and then
+     * the connection is closed.
+     * @param connection The connection with the device
+     * @param frame The 'join' frame
+     */
+    private void join(TransportConnection connection, ByteBuffer frame) {
+        String ipAddress = connection.getRemoteAddress();
+        FrameCodec codec = new FrameCodec();
+        try {  
+            Message m = codec.decode(frame);
+            if (!m.getHeader().equals("join")) {
+                System.err.println("Unexpected message from peer: " + ipAddress);
+                return;
+            }
+
+            /* The peer tells which port will it use for the P2P communication */
+            int assignedPort = Integer.parseInt(m.getMessage());
+            /* Assign an id to peer, send it and close connection */
+            int id = lastId.incrementAndGet();
+            RemoteDevice newClient = new RemoteDevice(id, ipAddress, assignedPort);
+
+            /* Send the peer list, the iterator does not see later changes */
+            StringBuilder reply = new StringBuilder().append(id);
+            for (RemoteDevice peer : peers) {
+                reply.append('&').append(peer.getId()).append('|')
+                    .append(peer.getIpAddress()).append('|').append(peer.getPort());
+            }
+            connection.send(codec.encode(new Message(m.getId(), newClient, 
+                "joined", reply.toString())));
+
+            /* Add new peer to peer list */
+            getPeers().add(newClient);
+        } catch (NumberFormatException nfe) {
+            System.err.println("Incorrect format for join from peer: " + ipAddress);
+        } catch (IOException ioe) {
+            System.err.println("IOE exception while initializing peer: " 
+                + ipAddress);
+        } finally {
+            connection.close();
         }
     }
     
@@ -102,21 +157,20 @@ public class Tracker implements Runnable {
      */
     public void ping(RemoteDevice peer) throws IOException {
         
+        TransportConnection connection = null;
         try {
-            Socket peerSocket = new Socket();
-            peerSocket.connect(new InetSocketAddress(peer.getIpAddress(), 
-                peer.getPort()), 5000);
-            
-            DataInputStream in = new DataInputStream(peerSocket.getInputStream());
-            DataOutputStream out =new DataOutputStream(peerSocket.getOutputStream());
+            connection = connect(peer);
+            FrameCodec codec = new FrameCodec();
             
             /* The tracker will use the special ID -2 */
-            out.writeInt(-2);
-            out.writeInt(serverPort);
+            connection.send(codec.encodeIdentification(-2, serverPort));
             
             /* We prepare the list of peers that have been disconnected */
             String message = "";
-            ArrayList<RemoteDevice> disPeersCopy = new ArrayList<RemoteDevice>(disPeers);
+            ArrayList<RemoteDevice> disPeersCopy;
+            synchronized (this) {
+                disPeersCopy = new ArrayList<RemoteDevice>(disPeers);
+            }
             for (RemoteDevice opeer : disPeersCopy) {
                 message += opeer.getId() + "|";
             }
@@ -125,44 +179,83 @@ public class Tracker implements Runnable {
             }
             
             /* We send the reply */
-            out.writeInt(0);
-            out.writeUTF("ping");
-            out.writeUTF("pong" + message);
+            connection.send(codec.encode(new Message(0, peer, "ping", 
+                "pong" + message)));
             
             /* We clear the notifying list if everyone has been notified */
-            notPeers++;
-            if (notPeers >= peers.size()) {
-                disPeers = new ArrayList<RemoteDevice>();
-                notPeers = 0;
-            }
-            
-            try {
-                peerSocket.close();
-            } catch (IOException ioe) {
-                System.err.println("IOException while closing peer "
-                    + ioe.getMessage());
+            synchronized (this) {
+                notPeers++;
+                if (notPeers >= peers.size()) {
+                    disPeers = new ArrayList<RemoteDevice>();
+                    notPeers = 0;
+                }
             }
         /* The peer appears to be disconnected, remove it from the peerlist */    
         } catch (SocketTimeoutException ste) {
             System.out.println("Peer " + peer.getId() + " is no longer responding.");
-            peers.remove(peer);
-            disPeers.add(peer);
-            notPeers = 0;
+            dismiss(peer);
         } catch (UnknownHostException uhe) {
             System.err.println("Unknown host: " + peer.getIpAddress());
         } catch (IOException ioe) {
             System.out.println("Peer " + peer.getId() + " is no longer responding.");
-            peers.remove(peer);
-            disPeers.add(peer);
-            notPeers = 0;
+            dismiss(peer);
+        } finally {
+            /* Also when the ping could not be sent */
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+    
+    /**
+     * Opens a connection to ping a peer. The time to wait is estimated from
+     * the round trip time of the peer, and doubled on every attempt.
+     * @param peer The peer
+     * @return The connection
+     * @throws IOException If the connection could not be opened
+     */
+    private TransportConnection connect(RemoteDevice peer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                TransportConnection connection = transport.connect(
+                    peer.getIpAddress(), peer.getPort(), (int) peer.getRtt()
+                    .getTimeout(MIN_PING_TIMEOUT, MAX_PING_TIMEOUT), null);
+                /* Establishing a connection takes a round trip */
+                peer.getRtt().sample(System.nanoTime() - start);
+                return connection;
+            } catch (SocketTimeoutException ste) {
+                peer.getRtt().timedOut();
+                if (attempt >= PING_ATTEMPTS) {
+                    throw ste;
+                }
+            }
         }
     }
+    
+    /**
+     * Removes a peer that does not respond, the rest of the peers are told in
+     * the next pings.
+     * @param peer The peer
+     */
+    private synchronized void dismiss(RemoteDevice peer) {
+        peers.remove(peer);
+        disPeers.add(peer);
+        notPeers = 0;
+    }
 
     /**
      * @return the peers
      */
-    public ArrayList<RemoteDevice> getPeers() {
+    public List<RemoteDevice> getPeers() {
         return peers;
     }
     
+    /**
+     * @return the mode in which the devices joining and the pings are serviced
+     */
+    public ThreadMode getMode() {
+        return mode;
+    }
+    
 }
@@ -13,7 +13,16 @@ public class Tracker_Main {
     
     public static void main(String args[]) {
         
-        Tracker tracker = new Tracker();
+        ThreadMode mode = ThreadMode.SELECTOR;
+        if (args.length > 0) {
+            mode = ThreadMode.fromName(args[0]);
+            if (mode == null) {
+                System.err.println("Usage: tracker.sh [selector|platform|virtual]\n"
+                    + "selector|platform|virtual: The threads for the connections");
+                System.exit(1);
+            }
+        }
+        Tracker tracker = new Tracker(mode);
         Thread t = new Thread(tracker);
         t.start();
         KeepAliver keepAliver = new KeepAliver(tracker);
@@ -0,0 +1,45 @@
+
+package damulticast;
+
+import java.io.IOException;
+
+/**
+ * Moves the frames of the protocol between devices and the tracker. The 
+ * devices and the tracker only deal with frames encoded by the FrameCodec, so
+ * the same protocol code can run over TCP with blocking threads (TcpTransport),
+ * over TCP with a Selector (NioTransport) or in memory, with many devices in
+ * the same JVM (LoopbackTransport).
+ * @author cesar
+ */
+public interface Transport {
+    
+    /**
+     * Starts accepting connections in a port. The frames received in the 
+     * connections accepted are handed to the listener.
+     * @param port The port, 0 for an ephemeral (random) one
+     * @param listener Receives the frames of the connections accepted
+     * @return The server, to know the port assigned and to close it
+     * @throws IOException If the port could not be opened
+     */
+    public TransportServer listen(int port, TransportListener listener) 
+            throws IOException;
+    
+    /**
+     * Opens a connection.
+     * @param host The ip address
+     * @param port The port
+     * @param timeout The time to wait for the connection to be established,
+     * in milliseconds
+     * @param listener Receives the frames sent back in the connection, null
+     * if nothing is expected back
+     * @return The connection
+     * @throws IOException If the connection could not be opened
+     */
+    public TransportConnection connect(String host, int port, int timeout,
+            TransportListener listener) throws IOException;
+    
+    /**
+     * Closes all the servers and connections of the transport.
+     */
+    public void close();
+}
@@ -0,0 +1,46 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A connection opened or accepted by a Transport, through which frames are
+ * sent in both directions.
+ * @author cesar
+ */
+public interface TransportConnection {
+    
+    /**
+     * Sends a frame. The frame is written or copied before returning, so the
+     * buffer can be reused. The frames are received in the order they are sent.
+     * @param frame A complete frame, with its length prefix
+     * @throws IOException If the connection is closed or could not be written
+     */
+    public void send(ByteBuffer frame) throws IOException;
+    
+    /**
+     * @return the ip address at the other side of the connection
+     */
+    public String getRemoteAddress();
+    
+    /**
+     * @return the object attached to the connection by its listener
+     */
+    public Object getAttachment();
+    
+    /**
+     * @param attachment the attachment to set
+     */
+    public void setAttachment(Object attachment);
+    
+    /**
+     * @return true until the connection is closed by either side
+     */
+    public boolean isOpen();
+    
+    /**
+     * Closes the connection once the frames already sent are written.
+     */
+    public void close();
+}
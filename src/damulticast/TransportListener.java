@@ -0,0 +1,30 @@
+
+package damulticast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the frames of the connections of a Transport. The calls for a
+ * connection are never concurrent and come in the order the frames were sent,
+ * the calls for different connections might be concurrent depending on the
+ * transport.
+ * @author cesar
+ */
+public interface TransportListener {
+    
+    /**
+     * Called for every frame received.
+     * @param connection The connection the frame came from
+     * @param frame A complete frame, with its length prefix, only valid 
+     * during the call
+     */
+    public void received(TransportConnection connection, ByteBuffer frame);
+    
+    /**
+     * Called once when the connection is closed by either side.
+     * @param connection The connection
+     * @param cause The error that closed it, null if it was closed normally
+     */
+    public void closed(TransportConnection connection, IOException cause);
+}
@@ -0,0 +1,20 @@
+
+package damulticast;
+
+/**
+ * A port in which a Transport accepts connections.
+ * @author cesar
+ */
+public interface TransportServer {
+    
+    /**
+     * @return the port in which the connections are accepted
+     */
+    public int getPort();
+    
+    /**
+     * Stops accepting connections. The connections already accepted are not
+     * closed.
+     */
+    public void close();
+}
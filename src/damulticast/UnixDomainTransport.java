@@ -0,0 +1,455 @@
+
+package damulticast;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Transport that uses Unix domain sockets (AF_UNIX) for the peers in the
+ * same host, and another transport (TCP) for the rest. Every server listens in
+ * the TCP port and also in a socket file named after the port, so a device
+ * that knows the address and port of a peer can tell if it can reach it with
+ * the socket file: the address belongs to this host and the file exists. If
+ * connecting to the file fails the TCP transport is used.
+ * The socket files are kept in a directory of the user in the temporary
+ * directory, only accessible by the user, so the devices of other users reach
+ * the peers by TCP and can not take or remove their files. A file left in it
+ * is only replaced if nothing accepts connections on it.
+ * The connections of the socket files have a thread that reads their frames,
+ * of the kind of the ThreadMode, like the TcpTransport. The connections
+ * accepted in socket files appear to come from 127.0.0.1.
+ * Unix domain sockets need JDK 16, and the project is compiled for older
+ * versions, so the channels are opened by reflection. See wrap.
+ * @author cesar
+ */
+public class UnixDomainTransport implements Transport {
+
+    /** The address the connections of socket files appear to come from */
+    public static final String ADDRESS = "127.0.0.1";
+
+    /** UnixDomainSocketAddress.of(String), null if not available */
+    private static final Method ADDRESS_OF;
+    /** ServerSocketChannel.open(ProtocolFamily) */
+    private static final Method OPEN_SERVER;
+    /** SocketChannel.open(ProtocolFamily) */
+    private static final Method OPEN_CHANNEL;
+    /** StandardProtocolFamily.UNIX */
+    private static final ProtocolFamily UNIX;
+    /** If a host is this one, by the address used to connect */
+    private static final ConcurrentHashMap<String, Boolean> LOCAL_HOSTS =
+        new ConcurrentHashMap<String, Boolean>();
+
+    static {
+        Method addressOf = null;
+        Method openServer = null;
+        Method openChannel = null;
+        ProtocolFamily unix = null;
+        try {
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress")
+                .getMethod("of", String.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            unix = StandardProtocolFamily.valueOf("UNIX");
+        } catch (ClassNotFoundException cnfe) {
+            addressOf = null;
+        } catch (NoSuchMethodException nsme) {
+            addressOf = null;
+        } catch (IllegalArgumentException iae) {
+            addressOf = null;
+        }
+        ADDRESS_OF = addressOf;
+        OPEN_SERVER = openServer;
+        OPEN_CHANNEL = openChannel;
+        UNIX = unix;
+    }
+
+    /** The transport for the peers in other hosts */
+    private Transport tcp;
+    /** The kind of threads for the connections */
+    private ThreadMode mode;
+    /** The servers that are open */
+    private Set<UnixServer> servers;
+    /** The connections that are open */
+    private Set<UnixConnection> connections;
+
+    public UnixDomainTransport(Transport tcp, ThreadMode mode) {
+        this.tcp = tcp;
+        this.mode = mode;
+        this.servers = Collections.newSetFromMap(
+            new ConcurrentHashMap<UnixServer, Boolean>());
+        this.connections = Collections.newSetFromMap(
+            new ConcurrentHashMap<UnixConnection, Boolean>());
+    }
+
+    /**
+     * Adds Unix domain sockets for the peers in the same host to a transport,
+     * if the JVM supports them.
+     * @param tcp The transport for the peers in other hosts
+     * @param mode The kind of threads for the connections
+     * @return The new transport, or tcp if Unix domain sockets are not available
+     */
+    public static Transport wrap(Transport tcp, ThreadMode mode) {
+        if (!isAvailable()) {
+            return tcp;
+        }
+        return new UnixDomainTransport(tcp, mode);
+    }
+
+    /**
+     * @return true if the JVM supports Unix domain socket channels
+     */
+    public static boolean isAvailable() {
+        return ADDRESS_OF != null;
+    }
+
+    /**
+     * @return the directory of the socket files of the user
+     */
+    public static File socketDirectory() {
+        String user = System.getProperty("user.name", "");
+        return new File(System.getProperty("java.io.tmpdir"),
+            "damulticast-" + user.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * Returns the socket file for a port.
+     * @param port The TCP port of the server
+     * @return The file
+     */
+    public static File socketFile(int port) {
+        return new File(socketDirectory(), port + ".sock");
+    }
+
+    /**
+     * Creates the directory of the socket files if it does not exist, only
+     * accessible by the user where the file system supports it.
+     * @throws IOException If it can not be created or belongs to another user
+     */
+    private static void createSocketDirectory() throws IOException {
+        Path directory = socketDirectory().toPath();
+        try {
+            Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(
+                PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException uoe) {
+            Files.createDirectories(directory);
+        } catch (FileAlreadyExistsException faee) {
+            /* Created by another device of the user, checked below */
+        }
+        UserPrincipal user = FileSystems.getDefault().getUserPrincipalLookupService()
+            .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!Files.isDirectory(directory) || !Files.getOwner(directory).equals(user)) {
+            throw new IOException(directory + " does not belong to the user");
+        }
+    }
+
+    /**
+     * Tells if a server accepts connections on a socket file.
+     * @param file The file
+     * @return false if connecting fails, the file was left by a process that
+     * died
+     */
+    private static boolean isAccepting(File file) throws IOException {
+        SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+        try {
+            channel.connect(address(file));
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public TransportServer listen(int port, TransportListener listener)
+            throws IOException {
+        TransportServer tcpServer = tcp.listen(port, listener);
+        File file = socketFile(tcpServer.getPort());
+        ServerSocketChannel channel;
+        try {
+            createSocketDirectory();
+            if (file.exists()) {
+                if (isAccepting(file)) {
+                    System.err.println(file + " is used by another process,"
+                        + " using TCP only");
+                    return tcpServer;
+                }
+                file.delete();
+            }
+            channel = (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+            channel.bind(address(file));
+        } catch (IOException ioe) {
+            System.err.println("Could not open " + file + ", using TCP only: "
+                + ioe.getMessage());
+            return tcpServer;
+        }
+        file.deleteOnExit();
+        UnixServer server = new UnixServer(tcpServer, channel, file, listener);
+        servers.add(server);
+        Threads.start(mode, server, "accept-unix-" + tcpServer.getPort());
+        return server;
+    }
+
+    @Override
+    public TransportConnection connect(String host, int port, int timeout,
+            TransportListener listener) throws IOException {
+        File file = socketFile(port);
+        if (isLocalHost(host) && file.exists()) {
+            SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+            try {
+                channel.connect(address(file));
+                return open(channel, listener);
+            } catch (IOException ioe) {
+                /* The file might have been left by a process that died */
+                channel.close();
+            }
+        }
+        return tcp.connect(host, port, timeout, listener);
+    }
+
+    @Override
+    public void close() {
+        for (UnixServer server : new ArrayList<UnixServer>(servers)) {
+            server.close();
+        }
+        for (UnixConnection connection : new ArrayList<UnixConnection>(connections)) {
+            connection.close();
+        }
+        tcp.close();
+    }
+
+    /**
+     * Tells if a host is this one. The result is kept for the next time.
+     * @param host The ip address or name of the host
+     * @return true if the address is a loopback one or belongs to an
+     * interface of this host
+     */
+    public static boolean isLocalHost(String host) {
+        Boolean local = LOCAL_HOSTS.get(host);
+        if (local == null) {
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                local = address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+            } catch (IOException ioe) {
+                local = false;
+            }
+            LOCAL_HOSTS.put(host, local);
+        }
+        return local;
+    }
+
+    /**
+     * Wraps a connected channel and starts its reader if there is a listener.
+     */
+    private UnixConnection open(SocketChannel channel, TransportListener listener) {
+        UnixConnection connection = new UnixConnection(channel, listener);
+        connections.add(connection);
+        if (listener != null) {
+            Threads.start(mode, connection, "reader-unix");
+        }
+        return connection;
+    }
+
+    /**
+     * @return the UnixDomainSocketAddress of a file
+     */
+    private static SocketAddress address(File file) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, file.getPath());
+    }
+
+    /**
+     * Calls a static method found by reflection.
+     * @throws IOException The IOException thrown by the method
+     */
+    private static Object invoke(Method method, Object argument) throws IOException {
+        try {
+            return method.invoke(null, argument);
+        } catch (InvocationTargetException ite) {
+            if (ite.getCause() instanceof IOException) {
+                throw (IOException) ite.getCause();
+            }
+            throw new IOException(ite.getCause());
+        } catch (IllegalAccessException iae) {
+            throw new IOException(iae);
+        }
+    }
+
+    /**
+     * Accepts the connections of a socket file, together with the TCP server
+     * of the same port.
+     */
+    private class UnixServer implements TransportServer, Runnable {
+
+        /** The server for the peers in other hosts */
+        private TransportServer tcpServer;
+        /** The channel bound to the socket file */
+        private ServerSocketChannel channel;
+        /** The socket file */
+        private File file;
+        /** Receives the frames of the connections accepted */
+        private TransportListener listener;
+
+        private UnixServer(TransportServer tcpServer, ServerSocketChannel channel,
+                File file, TransportListener listener) {
+            this.tcpServer = tcpServer;
+            this.channel = channel;
+            this.file = file;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            while (channel.isOpen()) {
+                try {
+                    open(channel.accept(), listener);
+                } catch (AsynchronousCloseException ace) {
+                    /* The server was closed */
+                } catch (IOException ioe) {
+                    System.err.println("IOE while accepting connection: "
+                        + ioe.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public int getPort() {
+            return tcpServer.getPort();
+        }
+
+        @Override
+        public void close() {
+            servers.remove(this);
+            tcpServer.close();
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                System.err.println("IOException while closing listener "
+                    + ioe.getMessage());
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * A connection over a socket file, the reader is the thread that runs it.
+     */
+    private class UnixConnection implements TransportConnection, Runnable {
+
+        /** The channel, in blocking mode */
+        private SocketChannel channel;
+        /** Receives the frames read */
+        private TransportListener listener;
+        /** Guards the writes, not a monitor so virtual threads are not pinned */
+        private ReentrantLock writeLock;
+        /** If the connection was closed by this side */
+        private volatile boolean closed;
+        /** The object attached by the listener */
+        private volatile Object attachment;
+
+        private UnixConnection(SocketChannel channel, TransportListener listener) {
+            this.channel = channel;
+            this.listener = listener;
+            this.writeLock = new ReentrantLock();
+        }
+
+        @Override
+        public void run() {
+            IOException cause = null;
+            FrameCodec codec = new FrameCodec();
+            try {
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel)));
+                while (true) {
+                    ByteBuffer frame = codec.readRaw(in);
+                    listener.received(this, frame);
+                }
+            } catch (EOFException eofe) {
+                /* The other side closed the connection */
+            } catch (IOException ioe) {
+                if (!closed) {
+                    cause = ioe;
+                }
+            } finally {
+                close();
+                listener.closed(this, cause);
+            }
+        }
+
+        @Override
+        public void send(ByteBuffer frame) throws IOException {
+            writeLock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Connection with " + ADDRESS
+                        + " is closed");
+                }
+                /* The frame is written by the thread that sends it */
+                ByteBuffer buffer = frame.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return ADDRESS;
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            connections.remove(this);
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                System.err.println("IOException while closing peer "
+                    + ioe.getMessage());
+            }
+        }
+    }
+}
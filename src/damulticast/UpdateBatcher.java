@@ -0,0 +1,118 @@
+
+package damulticast;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the updates of resources made by the device and sends them to the
+ * peers in batches. Only the latest value of a resource matters, so an update
+ * replaces the pending update of the same resource instead of being sent on its
+ * own. The pending updates are sent as a single 'update_batch' message per peer
+ * when the batch window passes, when there are batchSize resources pending, or
+ * when flush is called. The device flushes before releasing a lock so the peers
+ * always receive the updates before the lock_ack.
+ * @author cesar
+ */
+public class UpdateBatcher {
+
+    /** The device that sends the batches */
+    private Device device;
+    /** The time updates can wait to be sent, in milliseconds */
+    private long window;
+    /** The number of resources that makes a batch be sent right away */
+    private int batchSize;
+    /** The latest value of every resource updated since the last flush */
+    private LinkedHashMap<String, Integer> pending;
+    /** The thread that flushes the batches when the window passes */
+    private ScheduledExecutorService timer;
+    /** If a flush is scheduled for the pending updates */
+    private boolean scheduled;
+
+    public UpdateBatcher(Device device, long window, int batchSize) {
+        this.device = device;
+        this.window = window;
+        this.batchSize = batchSize;
+        this.pending = new LinkedHashMap<String, Integer>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "update-batcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Adds an update of a resource. If the resource already has a pending
+     * update, the old value is discarded.
+     * @param key The id of the resource
+     * @param value The new value
+     */
+    public void add(String key, int value) {
+        boolean full;
+        synchronized (this) {
+            /* Remove it first so the resource moves to the end of the batch */
+            pending.remove(key);
+            pending.put(key, value);
+            full = pending.size() >= batchSize;
+            if (!full && !scheduled) {
+                scheduled = true;
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the pending updates to the peers right away. A single update is
+     * sent as 'update_resource', several as one 'update_batch'.
+     */
+    public void flush() {
+        synchronized (this) {
+            scheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            LinkedHashMap<String, Integer> batch = pending;
+            pending = new LinkedHashMap<String, Integer>();
+            /* The batch is queued while holding the lock, so batches reach the
+             * peers in the order they were taken */
+            if (batch.size() == 1) {
+                Map.Entry<String, Integer> entry = batch.entrySet().iterator().next();
+                device.broadcast("update_resource", device.reference(entry.getKey())
+                    + "|" + entry.getValue());
+                return;
+            }
+            StringBuilder message = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : batch.entrySet()) {
+                if (message.length() > 0) {
+                    message.append('&');
+                }
+                message.append(device.reference(entry.getKey())).append('|')
+                    .append(entry.getValue());
+            }
+            device.broadcast("update_batch", message.toString());
+        }
+    }
+
+    /**
+     * Flushes the pending updates and stops the timer.
+     */
+    public void close() {
+        flush();
+        timer.shutdown();
+    }
+}
@@ -0,0 +1,103 @@
+
+package damulticast;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Counts the updates sent by every device, by id. The devices that have not
+ * sent any update have no entry, which is the same as a count of 0. Written as
+ * 'id:count,id:count'. Not synchronized, the owner guards it.
+ * @author cesar
+ */
+public class VectorClock {
+
+    /** The count of every device */
+    private HashMap<Integer, Long> counters;
+
+    public VectorClock() {
+        this.counters = new HashMap<Integer, Long>();
+    }
+
+    /**
+     * Reads a clock written by toString.
+     * @param text The clock
+     * @return The clock
+     * @throws NumberFormatException If the text is not a clock
+     */
+    public static VectorClock parse(String text) throws NumberFormatException {
+        VectorClock clock = new VectorClock();
+        StringTokenizer st = new StringTokenizer(text, ",");
+        while (st.hasMoreTokens()) {
+            String entry = st.nextToken();
+            int separator = entry.indexOf(':');
+            if (separator < 0) {
+                throw new NumberFormatException("Not a clock entry: " + entry);
+            }
+            clock.counters.put(Integer.parseInt(entry.substring(0, separator)),
+                Long.parseLong(entry.substring(separator + 1)));
+        }
+        return clock;
+    }
+
+    /**
+     * @param id The id of a device
+     * @return the count of the device
+     */
+    public long get(int id) {
+        Long count = counters.get(id);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Adds one to the count of a device.
+     * @param id The id of the device
+     * @return The new count
+     */
+    public long increment(int id) {
+        long count = get(id) + 1;
+        counters.put(id, count);
+        return count;
+    }
+
+    /**
+     * Keeps the highest count of every device of this clock and another one.
+     * @param other The other clock
+     */
+    public void merge(VectorClock other) {
+        for (Map.Entry<Integer, Long> entry : other.counters.entrySet()) {
+            if (entry.getValue() > get(entry.getKey())) {
+                counters.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Checks if every count of this clock, except the one of a device, is not
+     * higher than the count in another clock.
+     * @param other The other clock
+     * @param except The id of the device not compared, or -1 to compare all
+     * @return true if the other clock has seen everything this one has
+     */
+    public boolean isCoveredBy(VectorClock other, int except) {
+        for (Map.Entry<Integer, Long> entry : counters.entrySet()) {
+            if (entry.getKey() != except && entry.getValue() > other.get(entry.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<Integer, Long> entry : counters.entrySet()) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return text.toString();
+    }
+}
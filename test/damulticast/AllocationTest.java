@@ -0,0 +1,260 @@
+package damulticast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the receive path does not create objects for every message: the
+ * frames decoded into a message that is reused, the frames handled by the
+ * InboundHandler and the frames read by the NioTransport. The bytes allocated
+ * by a thread are measured, the tests are skipped if the JVM can not measure
+ * them.
+ * @author cesar
+ */
+public class AllocationTest {
+
+    /** The messages received while measuring */
+    private static final int MESSAGES = 100000;
+    /** The most bytes allocated per message, on average */
+    private static final double MAX_BYTES = 1;
+
+    /**
+     * A connection that sends nothing, for the InboundHandler.
+     */
+    private static class NullConnection implements TransportConnection {
+
+        private Object attachment;
+
+        @Override
+        public void send(ByteBuffer frame) {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Counts the frames received, without creating objects.
+     */
+    private static class CountingListener implements TransportListener {
+
+        private int received;
+
+        @Override
+        public void received(TransportConnection connection, ByteBuffer frame) {
+            synchronized (this) {
+                received++;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void closed(TransportConnection connection, IOException cause) {
+        }
+
+        /**
+         * Waits until a number of frames has been received.
+         */
+        private synchronized void await(int frames) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received < frames) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("Received " + received + " of " + frames, left > 0);
+                wait(left);
+            }
+        }
+    }
+
+    private com.sun.management.ThreadMXBean threads;
+    private Device device;
+    private NioTransport transport;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+            instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        if (device != null) {
+            device.close();
+        }
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * @return a copy of a frame, the one returned by encode is reused
+     */
+    private static ByteBuffer copy(ByteBuffer frame) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * @return the bytes allocated by a thread so far
+     */
+    private long allocated(Thread thread) {
+        return threads.getThreadAllocatedBytes(thread.getId());
+    }
+
+    /**
+     * Decodes the frames given in turn into the same message.
+     */
+    private static void decode(FrameCodec codec, Message holder, ByteBuffer[] frames,
+            int count) throws ProtocolException {
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = frames[i % frames.length];
+            frame.position(0);
+            codec.decode(frame, holder);
+        }
+    }
+
+    @Test
+    public void testDecode() throws ProtocolException {
+        FrameCodec encoder = new FrameCodec();
+        ByteBuffer[] frames = {
+            copy(encoder.encode(new Message(1, null, "lock_resource", "resource-a|1700000000000"))),
+            copy(encoder.encode(new Message(2, null, "update_resource", "resource-a|12345"))),
+            copy(encoder.encode(new Message(3, null, "update_resource", "#1c|-5"))),
+            copy(encoder.encode(new Message(4, null, "ping", "pong1|2"))),
+            copy(encoder.encode(new Message(5, null, "lock_ack", "resource-a|7")))
+        };
+        FrameCodec codec = new FrameCodec();
+        Message holder = new Message(0, null, Opcode.HELLO);
+        /* The keys are cached and the entries grown the first time */
+        decode(codec, holder, frames, MESSAGES);
+        long before = allocated(Thread.currentThread());
+        decode(codec, holder, frames, MESSAGES);
+        long bytes = allocated(Thread.currentThread()) - before;
+        assertTrue(bytes + " bytes allocated", (double) bytes / MESSAGES < MAX_BYTES);
+    }
+
+    /**
+     * Hands the frames given in turn to a handler.
+     */
+    private static void receive(InboundHandler handler, TransportConnection connection,
+            ByteBuffer[] frames, int count) {
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = frames[i % frames.length];
+            frame.position(0);
+            handler.received(connection, frame);
+        }
+    }
+
+    @Test
+    public void testInboundHandler() throws IOException {
+        FrameCodec encoder = new FrameCodec();
+        ByteBuffer[] frames = {
+            copy(encoder.encode(new Message(1, null, "update_resource", "resource-a|12345"))),
+            copy(encoder.encode(new Message(2, null, "ping", "pong")))
+        };
+        device = new Device(new RicartListener() {
+
+            @Override
+            public void resourceUpdate(String resource, int value) {
+            }
+
+            @Override
+            public void lockGranted(String resource) {
+            }
+        });
+        device.getSharedResources().setValue("resource-a", 1);
+        InboundHandler handler = new InboundHandler(device);
+        TransportConnection connection = new NullConnection();
+        handler.received(connection, copy(encoder.encodeIdentification(2, 5000)));
+        assertNotNull(connection.getAttachment());
+        receive(handler, connection, frames, MESSAGES);
+        long before = allocated(Thread.currentThread());
+        receive(handler, connection, frames, MESSAGES);
+        long bytes = allocated(Thread.currentThread()) - before;
+        assertEquals(12345, device.getSharedResources().getValue("resource-a"));
+        assertTrue(bytes + " bytes allocated", (double) bytes / MESSAGES < MAX_BYTES);
+    }
+
+    /**
+     * @return the thread of the event loop of the NioTransport
+     */
+    private static Thread findLoop() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("nio-loop")) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends the frames in writes of a thousand frames.
+     */
+    private static void send(TransportConnection connection, ByteBuffer frames,
+            int count) throws IOException {
+        for (int i = 0; i < count; i += 1000) {
+            frames.position(0);
+            connection.send(frames);
+        }
+    }
+
+    @Test
+    public void testNioTransport() throws Exception {
+        transport = new NioTransport();
+        CountingListener listener = new CountingListener();
+        TransportServer server = transport.listen(0, listener);
+        TransportConnection connection = transport.connect("127.0.0.1",
+            server.getPort(), 5000, new CountingListener());
+        Thread loop = findLoop();
+        assertNotNull(loop);
+        ByteBuffer ping = new FrameCodec().encode(new Message(1, null, "ping", "pong"));
+        ByteBuffer frames = ByteBuffer.allocate(ping.remaining() * 1000);
+        for (int i = 0; i < 1000; i++) {
+            frames.put(ping.duplicate());
+        }
+        frames.flip();
+        send(connection, frames, MESSAGES);
+        listener.await(MESSAGES);
+        /* The frames are not copied, the reads are amortized over many */
+        long before = allocated(loop);
+        send(connection, frames, MESSAGES);
+        listener.await(2 * MESSAGES);
+        long bytes = allocated(loop) - before;
+        assertTrue(bytes + " bytes allocated", (double) bytes / MESSAGES < MAX_BYTES);
+        connection.close();
+    }
+}
@@ -0,0 +1,512 @@
+package damulticast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the FrameCodec: the frames of every opcode encoded and decoded again,
+ * the varints, the biggest frame, the keys kept to decode them again, the
+ * fields parsed from the text of the messages and the text made from them,
+ * and the frames that are malformed.
+ * @author cesar
+ */
+public class FrameCodecTest {
+
+    /**
+     * The header and the text of messages of every opcode, with the text
+     * written the way format writes it so it is made again the same.
+     */
+    private static final String[][] MESSAGES = {
+        {"hello", ""},
+        {"goodbye", ""},
+        {"new_resource", "a|1"},
+        {"new_resource", "a|-1|1c"},
+        {"update_resource", "a|5"},
+        {"update_resource", "#1c|-5"},
+        {"lock_resource", "a|123"},
+        {"lock_ack", "a"},
+        {"lock_ack", "#z|4"},
+        {"lock_ack", "a|0|a|5|2|1|99"},
+        {"ping", "pong"},
+        {"ping", "pong1|2|-3"},
+        {"sync-askstate", ""},
+        {"sync-askstate", "5"},
+        {"sync-askstate", "5|k"},
+        {"reply-askstate", ""},
+        {"reply-askstate", "a|1&b|-2|3"},
+        {"update_batch", "#1|2&b|3"},
+        {"nack", "3|7"},
+        {"repair", "3|update_resource|a|5"},
+        {"repair", "3||"},
+        {"reply-statechunk", "a|1&\u00fc|2|z"},
+        {"sync-gossip", "a|1|2|3|4&b|-1|2|-3|4"},
+        {"reply-gossip", ""},
+        {"custom", "x|y"}
+    };
+
+    private FrameCodec encoder;
+    private FrameCodec decoder;
+
+    @Before
+    public void setUp() {
+        encoder = new FrameCodec();
+        decoder = new FrameCodec();
+    }
+
+    /**
+     * @return a copy of a frame, the one returned by encode is reused
+     */
+    private static ByteBuffer copy(ByteBuffer frame) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Encodes a message and decodes it with another codec.
+     */
+    private Message roundTrip(Message m) throws ProtocolException {
+        ByteBuffer frame = copy(encoder.encode(m));
+        Message decoded = decoder.decode(frame);
+        assertFalse(frame.hasRemaining());
+        return decoded;
+    }
+
+    /**
+     * @return a frame with a length prefix and the bytes given
+     */
+    private static ByteBuffer frame(int... bytes) {
+        ByteBuffer frame = ByteBuffer.allocate(bytes.length + 5);
+        FrameCodec.putVarint(frame, bytes.length);
+        for (int b : bytes) {
+            frame.put((byte) b);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    @Test
+    public void testRoundTripText() throws ProtocolException {
+        Message holder = new Message(0, null, Opcode.HELLO);
+        for (String[] text : MESSAGES) {
+            Message m = roundTrip(new Message(7, null, text[0], text[1]));
+            assertEquals(7, m.getId());
+            assertEquals(text[0], m.getHeader());
+            assertEquals(text[0], text[1], m.getMessage());
+            /* The same decoded into a message that is reused */
+            m = decoder.decode(copy(encoder.encode(new Message(7, null, text[0],
+                text[1]))), holder);
+            assertEquals(text[0], m.getHeader());
+            assertEquals(text[0], text[1], m.getMessage());
+        }
+    }
+
+    @Test
+    public void testOpcodes() throws ProtocolException {
+        for (String[] text : MESSAGES) {
+            Opcode opcode = Opcode.fromHeader(text[0]);
+            ByteBuffer frame = encoder.encode(new Message(1, null, text[0], text[1]));
+            assertEquals(text[0] + " " + text[1], opcode, FrameCodec.opcodeOf(frame));
+        }
+        /* A text that does not fit its opcode is sent as it is */
+        ByteBuffer frame = encoder.encode(new Message(1, null, "lock_resource", "a|-5"));
+        assertEquals(Opcode.CUSTOM, FrameCodec.opcodeOf(frame));
+        Message m = decoder.decode(frame);
+        assertEquals("lock_resource", m.getHeader());
+        assertEquals("a|-5", m.getMessage());
+        /* The fields are parsed from the text received */
+        assertTrue(m.hasFields());
+        assertEquals(-5, m.getNumber());
+    }
+
+    @Test
+    public void testRoundTripFields() throws ProtocolException {
+        Message m = new Message(3, null, Opcode.LOCK_RESOURCE);
+        m.setResource(40);
+        m.setNumber(1L << 40);
+        Message decoded = roundTrip(m);
+        assertEquals(Opcode.LOCK_RESOURCE, decoded.getOpcode());
+        assertEquals(40, decoded.getResource());
+        assertNull(decoded.getKey());
+        assertEquals(1L << 40, decoded.getNumber());
+
+        m = new Message(4, null, Opcode.NEW_RESOURCE);
+        m.setKey("a");
+        m.setValue(Integer.MIN_VALUE);
+        decoded = roundTrip(m);
+        assertEquals("a", decoded.getKey());
+        assertEquals(Integer.MIN_VALUE, decoded.getValue());
+        assertEquals(KeyDictionary.NONE, decoded.getResource());
+
+        m = new Message(5, null, Opcode.NACK);
+        m.setNumber(3);
+        m.setLast(Long.MAX_VALUE);
+        decoded = roundTrip(m);
+        assertEquals(3, decoded.getNumber());
+        assertEquals(Long.MAX_VALUE, decoded.getLast());
+    }
+
+    @Test
+    public void testRepair() throws ProtocolException {
+        Message carried = new Message(9, null, "update_resource", "a|5");
+        Message repair = new Message(2, null, Opcode.REPAIR);
+        repair.setNumber(12);
+        repair.setCarried(carried);
+        Message m = roundTrip(repair);
+        assertEquals(12, m.getNumber());
+        assertEquals("update_resource", m.getCarried().getHeader());
+        assertEquals("a|5", m.getCarried().getMessage());
+        assertTrue(m.getCarried().hasFields());
+        assertEquals("a", m.getCarried().getKey());
+        assertEquals(5, m.getCarried().getValue());
+        assertEquals("12|update_resource|a|5", m.getMessage());
+        /* A repair of a message too old carries nothing */
+        repair.setCarried(null);
+        m = roundTrip(repair);
+        assertEquals(12, m.getNumber());
+        assertNull(m.getCarried());
+    }
+
+    @Test
+    public void testEntries() throws ProtocolException {
+        Message batch = new Message(1, null, Opcode.UPDATE_BATCH);
+        batch.addEntry(null, 2, 1, 0, 0);
+        batch.addEntry("b", -3, KeyDictionary.NONE, 0, 0);
+        Message m = roundTrip(batch);
+        assertEquals(2, m.getSize());
+        assertEquals(1, m.getId(0));
+        assertNull(m.getKey(0));
+        assertEquals(2, m.getValue(0));
+        assertEquals("b", m.getKey(1));
+        assertEquals(-3, m.getValue(1));
+
+        Message gossip = new Message(1, null, Opcode.GOSSIP);
+        gossip.addEntry("a", 1, -2, 3, 4);
+        m = roundTrip(gossip);
+        assertEquals(1, m.getSize());
+        assertEquals("a", m.getKey(0));
+        assertEquals(1, m.getValue(0));
+        assertEquals(-2, m.getId(0));
+        assertEquals(3, m.getCounter(0));
+        assertEquals(4, m.getTime(0));
+        /* A negative counter does not fit a varint, it is sent as text */
+        gossip.addEntry("b", 1, 2, -1, 4);
+        assertEquals(Opcode.CUSTOM, FrameCodec.opcodeOf(encoder.encode(gossip)));
+
+        Message chunk = new Message(1, null, Opcode.STATE_CHUNK);
+        for (int i = 0; i < 100; i++) {
+            chunk.addEntry("r" + i, i, i % 2 == 0 ? i : KeyDictionary.NONE, 0, 0);
+        }
+        m = roundTrip(chunk);
+        assertEquals(100, m.getSize());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("r" + i, m.getKey(i));
+            assertEquals(i, m.getValue(i));
+            assertEquals(i % 2 == 0 ? i : KeyDictionary.NONE, m.getId(i));
+        }
+    }
+
+    @Test
+    public void testIdentification() throws ProtocolException {
+        ByteBuffer frame = copy(encoder.encodeIdentification(-1, 65535));
+        assertEquals(Opcode.IDENTIFY, FrameCodec.opcodeOf(frame));
+        assertArrayEquals(new int[] {-1, 65535}, decoder.decodeIdentification(frame));
+        assertFalse(frame.hasRemaining());
+        try {
+            decoder.decodeIdentification(copy(encoder.encode(
+                new Message(null, "hello", ""))));
+            fail("Not an identification frame");
+        } catch (ProtocolException pe) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (String[] text : MESSAGES) {
+            FrameCodec.write(encoder.encode(new Message(1, null, text[0], text[1])),
+                bytes);
+        }
+        DataInputStream stream = new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+        for (String[] text : MESSAGES) {
+            Message m = decoder.read(stream);
+            assertEquals(text[0], m.getHeader());
+            assertEquals(text[1], m.getMessage());
+        }
+        assertEquals(0, stream.available());
+    }
+
+    @Test
+    public void testSeveralFrames() throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(encoder.encode(new Message(1, null, "nack", "1|2")));
+        buffer.put(encoder.encode(new Message(2, null, "nack", "3|4")));
+        buffer.flip();
+        assertEquals("1|2", decoder.decode(buffer).getMessage());
+        assertEquals("3|4", decoder.decode(buffer).getMessage());
+        assertNull(decoder.decode(buffer));
+    }
+
+    @Test
+    public void testIncompleteFrame() throws ProtocolException {
+        ByteBuffer frame = copy(encoder.encode(new Message(1, null, "nack", "1|2")));
+        for (int limit = 0; limit < frame.capacity(); limit++) {
+            frame.limit(limit);
+            assertNull(decoder.decode(frame));
+            /* The buffer is left as it was */
+            assertEquals(0, frame.position());
+        }
+        frame.limit(frame.capacity());
+        assertEquals("1|2", decoder.decode(frame).getMessage());
+    }
+
+    @Test
+    public void testTruncatedFrame() {
+        /* A nack without its sequence numbers */
+        try {
+            decoder.decode(frame(FrameCodec.VERSION, Opcode.NACK.getCode(), 0));
+            fail("Truncated frame");
+        } catch (ProtocolException pe) {
+            assertEquals("Truncated frame", pe.getMessage());
+        }
+        /* A key longer than the frame */
+        try {
+            decoder.decode(frame(FrameCodec.VERSION, Opcode.NEW_RESOURCE.getCode(),
+                0, 10, 'a'));
+            fail("Truncated string");
+        } catch (ProtocolException pe) {
+            assertEquals("Truncated string", pe.getMessage());
+        }
+    }
+
+    @Test
+    public void testBadVersion() {
+        try {
+            decoder.decode(frame(FrameCodec.VERSION + 1, Opcode.HELLO.getCode(), 0));
+            fail("Bad version");
+        } catch (ProtocolException pe) {
+            assertTrue(pe.getMessage().startsWith("Unsupported protocol version"));
+        }
+        assertNull(FrameCodec.opcodeOf(frame(FrameCodec.VERSION + 1,
+            Opcode.HELLO.getCode(), 0)));
+        try {
+            decoder.decode(frame(FrameCodec.VERSION, 127, 0));
+            fail("Unknown opcode");
+        } catch (ProtocolException pe) {
+            assertEquals("Unknown opcode", pe.getMessage());
+        }
+    }
+
+    @Test
+    public void testOversizeFrame() throws IOException {
+        /* The biggest frame is encoded, one more byte is not */
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < FrameCodec.MAX_FRAME - 16; i++) {
+            text.append('x');
+        }
+        ByteBuffer frame = copy(encoder.encode(new Message(1, null, "custom",
+            text.toString())));
+        assertEquals(text.length(), decoder.decode(frame).getMessage().length());
+        for (int i = 0; i < 16; i++) {
+            text.append('x');
+        }
+        try {
+            encoder.encode(new Message(1, null, "custom", text.toString()));
+            fail("Frame too big");
+        } catch (ProtocolException pe) {
+            assertTrue(pe.getMessage().startsWith("Frame bigger than"));
+        }
+        /* A length bigger than the biggest frame is refused before it is read */
+        ByteBuffer length = ByteBuffer.allocate(8);
+        FrameCodec.putVarint(length, FrameCodec.MAX_FRAME + 1);
+        length.flip();
+        try {
+            decoder.decode(length.duplicate());
+            fail("Frame too big");
+        } catch (ProtocolException pe) {
+            assertTrue(pe.getMessage().startsWith("Frame bigger than"));
+        }
+        try {
+            decoder.readRaw(new DataInputStream(new ByteArrayInputStream(
+                length.array(), 0, length.limit())));
+            fail("Frame too big");
+        } catch (ProtocolException pe) {
+            assertTrue(pe.getMessage().startsWith("Frame bigger than"));
+        }
+    }
+
+    @Test
+    public void testVarints() throws ProtocolException {
+        long[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE,
+            1L << 35, Long.MAX_VALUE, -1};
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        for (long value : values) {
+            buffer.clear();
+            FrameCodec.putVarint(buffer, value);
+            assertEquals(FrameCodec.varintSize(value), buffer.position());
+            buffer.flip();
+            assertEquals(value, FrameCodec.getVarint(buffer));
+        }
+        assertEquals(1, FrameCodec.varintSize(127));
+        assertEquals(2, FrameCodec.varintSize(128));
+        assertEquals(10, FrameCodec.varintSize(-1));
+        buffer.clear();
+        FrameCodec.putVarint(buffer, 300);
+        assertEquals((byte) 0xAC, buffer.get(0));
+        assertEquals((byte) 0x02, buffer.get(1));
+        /* More than ten bytes with the continuation bit */
+        buffer.clear();
+        for (int i = 0; i < 11; i++) {
+            buffer.put((byte) 0xFF);
+        }
+        buffer.flip();
+        try {
+            FrameCodec.getVarint(buffer);
+            fail("Malformed varint");
+        } catch (ProtocolException pe) {
+            assertEquals("Malformed varint", pe.getMessage());
+        }
+    }
+
+    @Test
+    public void testZigzag() {
+        assertEquals(0, FrameCodec.zigzag(0));
+        assertEquals(1, FrameCodec.zigzag(-1));
+        assertEquals(2, FrameCodec.zigzag(1));
+        assertEquals(3, FrameCodec.zigzag(-2));
+        assertEquals(0xFFFFFFFEL, FrameCodec.zigzag(Integer.MAX_VALUE));
+        assertEquals(0xFFFFFFFFL, FrameCodec.zigzag(Integer.MIN_VALUE));
+        int[] values = {0, 1, -1, 63, -64, 64, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int value : values) {
+            assertEquals(value, FrameCodec.unzigzag(FrameCodec.zigzag(value)));
+        }
+        /* Small negatives take a byte */
+        assertEquals(1, FrameCodec.varintSize(FrameCodec.zigzag(-64)));
+    }
+
+    @Test
+    public void testKeyCache() throws ProtocolException {
+        Message m = new Message(1, null, "update_resource", "key|1");
+        String first = decoder.decode(copy(encoder.encode(m))).getKey();
+        String second = decoder.decode(copy(encoder.encode(m))).getKey();
+        assertEquals("key", first);
+        /* Decoded again without a new String */
+        assertSame(first, second);
+        /* Another key in the same slot replaces it */
+        String other = decoder.decode(copy(encoder.encode(
+            new Message(1, null, "update_resource", "kez|1")))).getKey();
+        assertEquals("kez", other);
+        assertEquals("key", decoder.decode(copy(encoder.encode(m))).getKey());
+        /* The keys that are not ASCII are not kept */
+        m = new Message(1, null, "update_resource", "\u00fc|1");
+        first = decoder.decode(copy(encoder.encode(m))).getKey();
+        second = decoder.decode(copy(encoder.encode(m))).getKey();
+        assertEquals("\u00fc", second);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void testParse() {
+        Message m = new Message(1, null, "lock_ack", "#z|4|a|5|2|-1|99");
+        assertTrue(m.hasFields());
+        assertEquals(35, m.getResource());
+        assertNull(m.getKey());
+        assertEquals(4, m.getNumber());
+        assertEquals(1, m.getSize());
+        assertEquals("a", m.getKey(0));
+        assertEquals(5, m.getValue(0));
+        assertEquals(2, m.getCounter(0));
+        assertEquals(-1, m.getId(0));
+        assertEquals(99, m.getTime(0));
+
+        m = new Message(1, null, "reply-askstate", "a|1&b|2|z");
+        assertTrue(m.hasFields());
+        assertEquals(2, m.getSize());
+        assertEquals(KeyDictionary.NONE, m.getId(0));
+        assertEquals(35, m.getId(1));
+
+        /* Only the ids written the way format writes them are ids */
+        m = new Message(1, null, "update_resource", "#01|2");
+        assertTrue(m.hasFields());
+        assertEquals("#01", m.getKey());
+
+        String[][] malformed = {
+            {"hello", "x"},
+            {"new_resource", "a"},
+            {"update_resource", "a|b"},
+            {"nack", "1"},
+            {"nack", "x|y"},
+            {"repair", "1|update_resource"},
+            {"ping", "pang"},
+            {"sync-askstate", "0"},
+            {"update_batch", "a&b"},
+            {"reply-statechunk", "a|99999999999"}
+        };
+        for (String[] text : malformed) {
+            assertFalse(text[0] + " " + text[1],
+                new Message(1, null, text[0], text[1]).hasFields());
+        }
+        assertTrue(new Message(1, null, "custom", "anything").hasFields());
+    }
+
+    @Test
+    public void testFormat() {
+        for (String[] text : MESSAGES) {
+            Message m = new Message(1, null, text[0], text[1]);
+            assertTrue(text[0] + " " + text[1], m.hasFields());
+            if (m.getOpcode() != Opcode.CUSTOM) {
+                assertEquals(text[1], FrameCodec.format(m));
+            }
+        }
+        Message m = new Message(1, null, Opcode.UPDATE_RESOURCE);
+        m.setResource(71);
+        m.setValue(-5);
+        assertEquals("#1z|-5", m.getMessage());
+        m = new Message(1, null, Opcode.PING);
+        m.addEntry(null, 0, 2, 0, 0);
+        m.addEntry(null, 0, -3, 0, 0);
+        assertEquals("pong2|-3", m.getMessage());
+    }
+
+    @Test
+    public void testParseNumbers() {
+        assertEquals(-123, FrameCodec.parseLong("x-123y", 1, 5, 10));
+        assertEquals(Long.MAX_VALUE, FrameCodec.parseLong(
+            String.valueOf(Long.MAX_VALUE), 0, 19, 10));
+        assertEquals(Long.MIN_VALUE, FrameCodec.parseLong(
+            String.valueOf(Long.MIN_VALUE), 0, 20, 10));
+        assertEquals(35, FrameCodec.parseInt("z", 0, 1, KeyDictionary.RADIX));
+        String[] wrong = {"", "-", "1a", "9223372036854775808", "+1"};
+        for (String text : wrong) {
+            try {
+                FrameCodec.parseLong(text, 0, text.length(), 10);
+                fail(text);
+            } catch (NumberFormatException nfe) {
+                /* Expected */
+            }
+        }
+        try {
+            FrameCodec.parseInt("2147483648", 0, 10, 10);
+            fail("Out of range");
+        } catch (NumberFormatException nfe) {
+            /* Expected */
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package damulticast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a tracker and two devices over a LoopbackTransport, and checks that a
+ * device that gets a lock has the updates sent by the previous holder before
+ * releasing it: the updates of a resource and the replies to its lock requests
+ * must be received in the order they were sent.
+ * @author cesar
+ */
+public class LoopbackTransportTest {
+
+    /** The longest wait for a lock or an update, in milliseconds */
+    private static final long TIMEOUT = 5000;
+    /** The updates written every time the lock is held */
+    private static final int UPDATES = 50;
+
+    /**
+     * Keeps the locks granted and the values updated of a device.
+     */
+    private static class Listener implements RicartListener {
+
+        /** The device, to read the value when the lock is granted */
+        private volatile Device device;
+        /** The value of the resource when its lock was granted */
+        private LinkedBlockingQueue<Integer> granted = new LinkedBlockingQueue<Integer>();
+        /** The values of the updates, in the order received */
+        private List<Integer> updates = new ArrayList<Integer>();
+
+        @Override
+        public void resourceUpdate(String resource, int value) {
+            synchronized (updates) {
+                updates.add(value);
+                updates.notifyAll();
+            }
+        }
+
+        @Override
+        public void lockGranted(String resource) {
+            granted.add(device.getSharedResources().getValue(resource));
+        }
+
+        /**
+         * @return the value of the resource when the lock was granted
+         */
+        private int awaitGranted() throws InterruptedException {
+            Integer value = granted.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("The lock was not granted", value);
+            return value;
+        }
+
+        /**
+         * Waits until an update with a value has been received.
+         */
+        private void awaitUpdate(int value) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            synchronized (updates) {
+                while (!updates.contains(value)) {
+                    long left = deadline - System.currentTimeMillis();
+                    assertTrue("The update was not received: " + value, left > 0);
+                    updates.wait(left);
+                }
+            }
+        }
+    }
+
+    private LoopbackTransport transport;
+    private Thread tracker;
+    private List<Device> devices;
+
+    @Before
+    public void setUp() {
+        transport = new LoopbackTransport();
+        tracker = new Thread(new Tracker(transport, ThreadMode.PLATFORM), "tracker");
+        tracker.setDaemon(true);
+        tracker.start();
+        devices = new ArrayList<Device>();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (Device device : devices) {
+            device.close();
+        }
+        tracker.interrupt();
+        tracker.join(TIMEOUT);
+        transport.close();
+    }
+
+    /**
+     * Joins a device to the network, the way Device_Main does.
+     * @param batched If the updates are batched, else every one is sent
+     */
+    private Device join(Listener listener, boolean batched)
+            throws IOException, InterruptedException {
+        DeviceConfig config = new DeviceConfig();
+        config.setTransport(transport);
+        if (!batched) {
+            config.setBatchWindow(0);
+        }
+        config.setThreadMode(ThreadMode.PLATFORM);
+        Device device = new Device(listener, config);
+        listener.device = device;
+        devices.add(device);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            try {
+                device.establishConnection(LoopbackTransport.ADDRESS);
+                break;
+            } catch (ConnectException ce) {
+                /* The tracker is not listening yet */
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+        Thread t = new Thread(device, "device-" + device.getId());
+        t.setDaemon(true);
+        t.start();
+        device.sayHello();
+        device.askForState();
+        return device;
+    }
+
+    /**
+     * Waits until a device has a resource.
+     */
+    private static void awaitResource(Device device, String key)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!device.getSharedResources().hasValue(key)) {
+            assertTrue("The resource was not received: " + key,
+                System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Writes the updates of a round while holding the lock.
+     * @return the last value written
+     */
+    private static int writeUpdates(Device device, int round) throws IOException {
+        int value = 0;
+        for (int i = 1; i <= UPDATES; i++) {
+            value = round * 1000 + i;
+            device.updateResource("a", value);
+        }
+        return value;
+    }
+
+    @Test
+    public void testLockAfterUpdates() throws Exception {
+        Listener firstListener = new Listener();
+        Listener secondListener = new Listener();
+        /* The updates are batched, the batch is flushed before the release */
+        Device first = join(firstListener, true);
+        Device second = join(secondListener, true);
+        assertEquals(1, first.getPeers().size());
+        assertEquals(1, second.getPeers().size());
+
+        first.addNewResource("a", 1);
+        awaitResource(second, "a");
+        Device holder = first;
+        Listener holderListener = firstListener;
+        Device other = second;
+        Listener otherListener = secondListener;
+        holder.lockResource("a");
+        assertEquals(1, holderListener.awaitGranted());
+        for (int round = 1; round <= 10; round++) {
+            int last = writeUpdates(holder, round);
+            /* Asked for while it is held, granted when it is released */
+            other.lockResource("a");
+            assertNull(otherListener.granted.poll(50, TimeUnit.MILLISECONDS));
+            holder.releaseResource("a");
+            /* The reply to the request comes after the updates */
+            assertEquals(last, otherListener.awaitGranted());
+            otherListener.awaitUpdate(last);
+            Device swap = holder;
+            holder = other;
+            other = swap;
+            Listener swapListener = holderListener;
+            holderListener = otherListener;
+            otherListener = swapListener;
+        }
+        holder.releaseResource("a");
+        assertEquals(first.getSharedResources().getValue("a"),
+            second.getSharedResources().getValue("a"));
+        assertEquals("RELEASED", first.getSharedResources().getLock("a").getState());
+        assertEquals("RELEASED", second.getSharedResources().getLock("a").getState());
+    }
+
+    @Test
+    public void testUpdatesInOrder() throws Exception {
+        Listener firstListener = new Listener();
+        Listener secondListener = new Listener();
+        Device first = join(firstListener, false);
+        Device second = join(secondListener, false);
+        first.addNewResource("a", 0);
+        awaitResource(second, "a");
+        first.lockResource("a");
+        firstListener.awaitGranted();
+        int last = writeUpdates(first, 1);
+        secondListener.awaitUpdate(last);
+        synchronized (secondListener.updates) {
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int value = 1001; value <= last; value++) {
+                expected.add(value);
+            }
+            assertEquals(expected, secondListener.updates);
+        }
+        first.releaseResource("a");
+    }
+
+    @Test
+    public void testStateInChunks() throws Exception {
+        Device first = join(new Listener(), true);
+        /* More than fit in a chunk, they are queued on the BULK lane */
+        int resources = new DeviceConfig().getStateChunkSize() * 2 + 10;
+        for (int i = 0; i < resources; i++) {
+            first.getSharedResources().setValue("r" + i, i);
+        }
+        Device second = join(new Listener(), true);
+        assertEquals(resources, second.getSharedResources().getValues().size());
+        for (int i = 0; i < resources; i++) {
+            assertEquals(i, second.getSharedResources().getValue("r" + i));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package damulticast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the MappedRing: the frames written and read in order, their
+ * alignment, the padding written when a frame does not fit before the end of
+ * the data and the ring that is full. Both sides share a heap buffer instead
+ * of a mapping.
+ * @author cesar
+ */
+public class MappedRingTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int CAPACITY = 64;
+
+    private ByteBuffer region;
+    private MappedRing producer;
+    private MappedRing consumer;
+
+    @Before
+    public void setUp() {
+        region = ByteBuffer.allocate(MappedRing.size(CAPACITY));
+        producer = new MappedRing(region, CAPACITY, true);
+        consumer = new MappedRing(region, CAPACITY, false);
+    }
+
+    /**
+     * @return a frame of the length given, filled with a letter
+     */
+    private static ByteBuffer frame(char letter, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(letter);
+        }
+        return ByteBuffer.wrap(text.toString().getBytes(ASCII));
+    }
+
+    /**
+     * Reads and releases the next frame.
+     * @return its content, null if the ring is empty
+     */
+    private String take() {
+        ByteBuffer frame = consumer.peek();
+        if (frame == null) {
+            return null;
+        }
+        String text = ASCII.decode(frame).toString();
+        consumer.advance();
+        return text;
+    }
+
+    @Test
+    public void testInOrder() throws ProtocolException {
+        assertNull(consumer.peek());
+        ByteBuffer first = frame('a', 3);
+        assertTrue(producer.offer(first));
+        /* The frame written is not consumed */
+        assertEquals(3, first.remaining());
+        assertTrue(producer.offer(frame('b', 5)));
+        assertEquals("aaa", ASCII.decode(consumer.peek()).toString());
+        /* Not released, peek returns it again */
+        assertEquals("aaa", ASCII.decode(consumer.peek()).toString());
+        consumer.advance();
+        assertEquals("bbbbb", take());
+        assertNull(take());
+    }
+
+    @Test
+    public void testEmptyFrame() throws ProtocolException {
+        assertTrue(producer.offer(ByteBuffer.allocate(0)));
+        assertEquals("", take());
+        assertNull(take());
+    }
+
+    @Test
+    public void testAlignment() throws ProtocolException {
+        /* The length and one byte take 8 bytes */
+        for (int i = 0; i < CAPACITY / 8; i++) {
+            assertTrue(producer.offer(frame('a', 1)));
+        }
+        assertFalse(producer.offer(frame('b', 1)));
+        assertFalse(producer.offer(ByteBuffer.allocate(0)));
+        assertEquals("a", take());
+        assertTrue(producer.offer(frame('b', 4)));
+        assertFalse(producer.offer(ByteBuffer.allocate(0)));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testTooBig() throws ProtocolException {
+        /* The biggest frame that fits fills the data */
+        assertTrue(producer.offer(frame('a', CAPACITY - 4)));
+        producer.offer(frame('b', CAPACITY - 3));
+    }
+
+    @Test
+    public void testWrap() throws ProtocolException {
+        /* Two records of 24 bytes, 16 bytes left before the end */
+        assertTrue(producer.offer(frame('a', 20)));
+        assertTrue(producer.offer(frame('b', 20)));
+        assertEquals(frame('a', 20), consumer.peek());
+        consumer.advance();
+        /* Written at the start after the padding */
+        assertTrue(producer.offer(frame('c', 18)));
+        assertEquals(-1, region.getInt(MappedRing.HEADER + 48));
+        assertEquals(18, region.getInt(MappedRing.HEADER));
+        assertEquals(frame('b', 20), consumer.peek());
+        consumer.advance();
+        /* The padding is skipped */
+        assertEquals(frame('c', 18), consumer.peek());
+        consumer.advance();
+        assertNull(consumer.peek());
+    }
+
+    @Test
+    public void testPaddingCountsAsUsed() throws ProtocolException {
+        assertTrue(producer.offer(frame('a', 4)));
+        assertTrue(producer.offer(frame('b', 36)));
+        assertEquals("aaaa", take());
+        /* 24 bytes are free, 8 at the start and 16 at the end, but not in a
+         * row */
+        assertFalse(producer.offer(frame('c', 20)));
+        assertTrue(producer.offer(frame('c', 12)));
+        assertEquals(36, take().length());
+        assertEquals("cccccccccccc", take());
+        /* The padding and the frame are released, so it fits now */
+        assertTrue(producer.offer(frame('d', 20)));
+        assertEquals(frame('d', 20), consumer.peek());
+    }
+
+    @Test
+    public void testManyWraps() throws ProtocolException {
+        int written = 0;
+        int read = 0;
+        while (read < 1000) {
+            char letter = (char) ('a' + written % 26);
+            if (written < 1000 && producer.offer(frame(letter, written % 29))) {
+                written++;
+                continue;
+            }
+            char expected = (char) ('a' + read % 26);
+            assertEquals(frame(expected, read % 29), consumer.peek());
+            consumer.advance();
+            read++;
+        }
+        assertNull(consumer.peek());
+    }
+
+    @Test
+    public void testReopen() throws ProtocolException {
+        assertTrue(producer.offer(frame('a', 20)));
+        assertTrue(producer.offer(frame('b', 20)));
+        assertEquals(frame('a', 20), consumer.peek());
+        consumer.advance();
+        /* The sides start from the positions kept in the region */
+        producer = new MappedRing(region, CAPACITY, true);
+        consumer = new MappedRing(region, CAPACITY, false);
+        assertTrue(producer.offer(frame('c', 20)));
+        assertEquals(frame('b', 20), consumer.peek());
+        consumer.advance();
+        assertEquals(frame('c', 20), consumer.peek());
+    }
+
+    @Test
+    public void testClose() throws ProtocolException {
+        assertTrue(producer.offer(frame('a', 1)));
+        assertFalse(consumer.isClosed());
+        producer.close();
+        assertTrue(consumer.isClosed());
+        assertTrue(producer.isClosed());
+        /* The frames written can still be read */
+        assertEquals("a", take());
+    }
+}
@@ -0,0 +1,219 @@
+package damulticast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the delivery in order of the MulticastChannel: the messages held
+ * after a gap, the nacks that ask for the gap, the duplicates and the base of
+ * a sender. The messages are handed to the channel as repairs, the way the
+ * datagrams received are, so no datagram is received.
+ * @author cesar
+ */
+public class MulticastChannelTest {
+
+    /**
+     * A device that keeps the messages delivered and sent instead of
+     * handling them.
+     */
+    private static class RecordingDevice extends Device {
+
+        /** The sequence numbers of the messages delivered */
+        private List<Long> delivered;
+        /** The messages sent */
+        private List<Message> sent;
+
+        private RecordingDevice() {
+            super(null);
+            this.delivered = new ArrayList<Long>();
+            this.sent = new ArrayList<Message>();
+        }
+
+        @Override
+        public void receiveMessage(Message m) {
+            delivered.add((long) m.getId());
+        }
+
+        @Override
+        public void send(Message m) throws IOException {
+            sent.add(m);
+        }
+
+        /**
+         * @return the ranges asked for with a nack, as 'from-last'
+         */
+        private List<String> getNacks() {
+            List<String> nacks = new ArrayList<String>();
+            for (Message m : sent) {
+                if (m.getOpcode() == Opcode.NACK) {
+                    nacks.add(m.getNumber() + "-" + m.getLast());
+                }
+            }
+            return nacks;
+        }
+    }
+
+    private RecordingDevice device;
+    private MulticastChannel channel;
+    private RemoteDevice peer;
+
+    @Before
+    public void setUp() throws IOException {
+        device = new RecordingDevice();
+        channel = new MulticastChannel(device, "230.0.0.1", 0);
+        peer = new RemoteDevice(2);
+    }
+
+    @After
+    public void tearDown() {
+        channel.close();
+    }
+
+    private void receive(long... sequences) {
+        for (long seq : sequences) {
+            channel.repaired(peer, seq, new Message((int) seq, peer,
+                "update_resource", "a:" + seq));
+        }
+    }
+
+    private static List<Long> sequences(long... sequences) {
+        List<Long> list = new ArrayList<Long>();
+        for (long seq : sequences) {
+            list.add(seq);
+        }
+        return list;
+    }
+
+    @Test
+    public void testInOrder() {
+        channel.setBase(peer, 0);
+        receive(1, 2, 3);
+        assertEquals(sequences(1, 2, 3), device.delivered);
+        assertTrue(device.sent.isEmpty());
+        assertEquals("0:0,2:3", channel.getState());
+    }
+
+    @Test
+    public void testGap() {
+        channel.setBase(peer, 0);
+        receive(1, 4);
+        /* 4 is held until 2 and 3 are repaired */
+        assertEquals(sequences(1), device.delivered);
+        assertEquals(Arrays.asList("2-3"), device.getNacks());
+        receive(3);
+        assertEquals(sequences(1), device.delivered);
+        receive(2);
+        assertEquals(sequences(1, 2, 3, 4), device.delivered);
+        assertEquals(1, device.getNacks().size());
+    }
+
+    @Test
+    public void testNackOnlyOnce() {
+        channel.setBase(peer, 0);
+        receive(3, 4);
+        /* Only what was not asked for already is asked for */
+        receive(6);
+        assertEquals(Arrays.asList("1-2", "5-5"), device.getNacks());
+        receive(1, 2, 5);
+        assertEquals(sequences(1, 2, 3, 4, 5, 6), device.delivered);
+    }
+
+    @Test
+    public void testLost() {
+        channel.setBase(peer, 0);
+        receive(1, 3);
+        /* A message too old to be repaired is skipped */
+        channel.repaired(peer, 2, null);
+        assertEquals(sequences(1, 3), device.delivered);
+    }
+
+    @Test
+    public void testDuplicates() {
+        channel.setBase(peer, 0);
+        receive(1, 1, 3, 3);
+        assertEquals(sequences(1), device.delivered);
+        receive(2, 2, 3, 1);
+        assertEquals(sequences(1, 2, 3), device.delivered);
+    }
+
+    @Test
+    public void testHeldUntilBase() {
+        receive(5, 6);
+        assertTrue(device.delivered.isEmpty());
+        assertTrue(device.sent.isEmpty());
+        assertEquals("0:0", channel.getState());
+        /* The messages counted in the state are dropped */
+        channel.setBase(peer, 5);
+        assertEquals(sequences(6), device.delivered);
+        assertTrue(device.sent.isEmpty());
+        receive(5, 7);
+        assertEquals(sequences(6, 7), device.delivered);
+    }
+
+    @Test
+    public void testGapAfterBase() {
+        receive(2, 5);
+        channel.setBase(peer, 1);
+        /* Everything missing after the base up to the last message held */
+        assertEquals(sequences(2), device.delivered);
+        assertEquals(Arrays.asList("3-4"), device.getNacks());
+        /* The message held is not asked for */
+        receive(6);
+        assertEquals(1, device.getNacks().size());
+        /* The base is set once */
+        channel.setBase(peer, 4);
+        receive(3, 4);
+        assertEquals(sequences(2, 3, 4, 5, 6), device.delivered);
+    }
+
+    @Test
+    public void testWhenDelivered() {
+        final List<String> ran = new ArrayList<String>();
+        channel.whenDelivered(peer, 2, new Runnable() {
+
+            @Override
+            public void run() {
+                ran.add("2");
+            }
+        });
+        /* Nothing is asked for until the base is known */
+        assertTrue(device.sent.isEmpty());
+        channel.setBase(peer, 0);
+        assertEquals(Arrays.asList("1-2"), device.getNacks());
+        receive(1);
+        assertTrue(ran.isEmpty());
+        receive(2);
+        assertEquals(Arrays.asList("2"), ran);
+        /* Already delivered, it runs at once */
+        channel.whenDelivered(peer, 1, new Runnable() {
+
+            @Override
+            public void run() {
+                ran.add("1");
+            }
+        });
+        assertEquals(Arrays.asList("2", "1"), ran);
+        assertEquals(1, device.getNacks().size());
+    }
+
+    @Test
+    public void testRepairTooOld() {
+        channel.repair(peer, 1, 2);
+        assertEquals(2, device.sent.size());
+        Message repair = device.sent.get(0);
+        assertEquals(Opcode.REPAIR, repair.getOpcode());
+        assertSame(peer, repair.getPeer());
+        assertEquals(1, repair.getNumber());
+        /* Nothing was sent, the peer will skip them */
+        assertNull(repair.getCarried());
+    }
+}
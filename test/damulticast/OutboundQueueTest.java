@@ -0,0 +1,161 @@
+package damulticast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the OutboundQueue: the weighted round robin of the lanes, the
+ * capacity of every lane and the lock messages that are never dropped.
+ * @author cesar
+ */
+public class OutboundQueueTest {
+
+    /**
+     * @return a queue with small weights and capacity
+     */
+    private static OutboundQueue queue(int capacity) {
+        DeviceConfig config = new DeviceConfig();
+        config.setQueueCapacity(capacity);
+        config.setLaneWeight(Lane.CONTROL, 2);
+        config.setLaneWeight(Lane.DATA, 1);
+        config.setLaneWeight(Lane.BULK, 1);
+        return new OutboundQueue(config);
+    }
+
+    private static Message message(String header) {
+        return new Message(null, header, "");
+    }
+
+    /**
+     * @return the first letters of the lanes of the messages taken
+     */
+    private static String takeAll(OutboundQueue queue) throws InterruptedException {
+        StringBuilder order = new StringBuilder();
+        while (queue.size() > 0) {
+            order.append(Lane.of(queue.take().getHeader()).name().charAt(0));
+        }
+        return order.toString();
+    }
+
+    @Test
+    public void testWeightedRoundRobin() throws InterruptedException {
+        OutboundQueue queue = queue(16);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(message("repair")));
+            assertTrue(queue.offer(message("update_resource")));
+            assertTrue(queue.offer(message("ping")));
+        }
+        assertEquals(15, queue.size());
+        assertEquals(5, queue.size(Lane.CONTROL));
+        /* Two CONTROL for every DATA and BULK, the empty lanes are skipped */
+        assertEquals("CCDBCCDBCDBDBDB", takeAll(queue));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testOrderInLane() throws InterruptedException {
+        OutboundQueue queue = queue(16);
+        Message first = message("update_resource");
+        Message second = message("new_resource");
+        queue.offer(first);
+        queue.offer(second);
+        assertSame(first, queue.take());
+        assertSame(second, queue.take());
+    }
+
+    @Test
+    public void testTakeWaits() throws InterruptedException {
+        final OutboundQueue queue = queue(16);
+        final Message m = message("ping");
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                queue.offer(m);
+            }
+        });
+        producer.start();
+        assertSame(m, queue.take());
+        producer.join();
+    }
+
+    @Test
+    public void testOverflow() {
+        OutboundQueue queue = queue(2);
+        Message oldest = message("update_resource");
+        assertTrue(queue.offer(oldest));
+        assertTrue(queue.offer(message("update_resource")));
+        assertFalse(queue.offer(message("update_resource")));
+        /* The capacity is per lane */
+        assertTrue(queue.offer(message("ping")));
+        assertTrue(queue.offer(message("repair")));
+        assertEquals(4, queue.size());
+        /* Evicting the oldest message makes room */
+        assertSame(oldest, queue.pollOldest(Lane.DATA));
+        assertEquals(1, queue.size(Lane.DATA));
+        assertTrue(queue.offer(message("update_resource")));
+        assertFalse(queue.offer(message("update_resource")));
+    }
+
+    @Test
+    public void testLockMessagesExempt() {
+        OutboundQueue queue = queue(1);
+        assertTrue(queue.offer(message("ping")));
+        assertTrue(queue.offer(message("update_resource")));
+        /* The lanes are full, the lock requests and replies still go */
+        assertFalse(queue.offer(message("hello")));
+        assertTrue(queue.offer(message("lock_resource")));
+        assertTrue(queue.offer(message("lock_resource")));
+        assertTrue(queue.offer(message("lock_ack")));
+        assertEquals(3, queue.size(Lane.CONTROL));
+        assertEquals(2, queue.size(Lane.DATA));
+        assertTrue(OutboundQueue.isExempt("lock_resource"));
+        assertTrue(OutboundQueue.isExempt("lock_ack"));
+        assertFalse(OutboundQueue.isExempt("update_resource"));
+    }
+
+    @Test
+    public void testLockMessagesNotEvicted() {
+        OutboundQueue queue = queue(2);
+        Message request = message("lock_resource");
+        Message ping = message("ping");
+        queue.offer(request);
+        queue.offer(ping);
+        /* The oldest message that is not exempt is evicted */
+        assertSame(ping, queue.pollOldest(Lane.CONTROL));
+        assertNull(queue.pollOldest(Lane.CONTROL));
+        assertEquals(1, queue.size());
+        assertSame(request, queue.poll());
+    }
+
+    @Test
+    public void testStateOnBulkLane() {
+        assertEquals(Lane.BULK, Lane.of("sync-askstate"));
+        assertEquals(Lane.BULK, Lane.of("reply-askstate"));
+        assertEquals(Lane.BULK, Lane.of("reply-statechunk"));
+        assertEquals(Lane.CONTROL, Lane.of("lock_resource"));
+        assertEquals(Lane.DATA, Lane.of("lock_ack"));
+    }
+
+    @Test
+    public void testPollByPriority() {
+        OutboundQueue queue = queue(16);
+        queue.offer(message("repair"));
+        queue.offer(message("update_resource"));
+        queue.offer(message("ping"));
+        assertEquals("ping", queue.poll().getHeader());
+        assertEquals("update_resource", queue.poll().getHeader());
+        assertEquals("repair", queue.poll().getHeader());
+        assertNull(queue.poll());
+        assertNull(queue.pollOldest(Lane.DATA));
+    }
+}
@@ -0,0 +1,80 @@
+package damulticast;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests the RttEstimator: the first sample, the smoothing of the next ones,
+ * the bounds of the timeout and its backoff.
+ * @author cesar
+ */
+public class RttEstimatorTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testNoSamples() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(2000, rtt.getTimeout(5, 2000));
+        /* The backoff does not apply until there is a sample */
+        rtt.timedOut();
+        assertEquals(2000, rtt.getTimeout(5, 2000));
+    }
+
+    @Test
+    public void testFirstSample() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(10 * MS);
+        assertEquals(1, rtt.getSamples());
+        assertEquals(10000, rtt.getSmoothedRtt());
+        assertEquals(5000, rtt.getRttVariance());
+        /* 10ms plus four deviations of 5ms */
+        assertEquals(30, rtt.getTimeout(5, 2000));
+    }
+
+    @Test
+    public void testSmoothing() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(10 * MS);
+        rtt.sample(10 * MS);
+        assertEquals(10000, rtt.getSmoothedRtt());
+        assertEquals(3750, rtt.getRttVariance());
+        assertEquals(25, rtt.getTimeout(5, 2000));
+        /* A slow sample moves the time an eighth and the deviation a quarter */
+        rtt.sample(18 * MS);
+        assertEquals(11000, rtt.getSmoothedRtt());
+        assertEquals(4812, rtt.getRttVariance());
+        assertEquals(31, rtt.getTimeout(5, 2000));
+    }
+
+    @Test
+    public void testBounds() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(0);
+        assertEquals(1, rtt.getSmoothedRtt());
+        assertEquals(5, rtt.getTimeout(5, 2000));
+        rtt = new RttEstimator();
+        rtt.sample(5000 * MS);
+        assertEquals(2000, rtt.getTimeout(5, 2000));
+    }
+
+    @Test
+    public void testBackoff() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(10 * MS);
+        rtt.timedOut();
+        assertEquals(60, rtt.getTimeout(5, 100000));
+        rtt.timedOut();
+        assertEquals(120, rtt.getTimeout(5, 100000));
+        for (int i = 0; i < 10; i++) {
+            rtt.timedOut();
+        }
+        assertEquals(6, rtt.getBackoff());
+        assertEquals(30 << 6, rtt.getTimeout(5, 100000));
+        assertEquals(1000, rtt.getTimeout(5, 1000));
+        /* A new sample ends the backoff */
+        rtt.sample(10 * MS);
+        assertEquals(0, rtt.getBackoff());
+        assertEquals(25, rtt.getTimeout(5, 100000));
+    }
+}